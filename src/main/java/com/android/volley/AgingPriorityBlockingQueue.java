@@ -0,0 +1,268 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.volley;
+
+import android.os.SystemClock;
+
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A priority queue of requests that applies a {@link PriorityAging} policy and records how
+ * long requests wait in it.
+ * <p>
+ * Behaves like a {@link java.util.concurrent.PriorityBlockingQueue}, but owns its lock so that
+ * {@link #offerAll(Collection)} can insert a batch of requests with a single wakeup.
+ */
+class AgingPriorityBlockingQueue extends AbstractQueue<Request<?>>
+        implements BlockingQueue<Request<?>> {
+
+    private static final int INITIAL_CAPACITY = 11;
+
+    private final ReentrantLock mLock = new ReentrantLock();
+    private final Condition mNotEmpty = mLock.newCondition();
+
+    private final PriorityQueue<Request<?>> mQueue =
+            new PriorityQueue<Request<?>>(INITIAL_CAPACITY, PriorityAging.QUEUE_ORDER);
+
+    private final QueueWaitStats mWaitStats = new QueueWaitStats();
+
+    private volatile PriorityAging mAging;
+
+    /**
+     * Told whenever a request leaves this queue, or null.
+     */
+    private final DequeueSignal mDequeueSignal;
+
+    /**
+     * @param dequeueSignal Signal to give whenever a request leaves this queue, or null
+     */
+    AgingPriorityBlockingQueue(DequeueSignal dequeueSignal) {
+        mDequeueSignal = dequeueSignal;
+    }
+
+    /**
+     * Sets the aging policy for requests queued from now on.
+     *
+     * @param aging The aging policy, or null for strict priority order
+     */
+    void setPriorityAging(PriorityAging aging) {
+        mAging = aging;
+    }
+
+    /**
+     * @return the waits of the requests taken from this queue
+     */
+    QueueWaitStats getWaitStats() {
+        return mWaitStats;
+    }
+
+    @Override
+    public boolean offer(Request<?> request) {
+        if (request == null) {
+            throw new NullPointerException();
+        }
+        PriorityAging.stamp(mAging, request, SystemClock.elapsedRealtime());
+        mLock.lock();
+        try {
+            mQueue.offer(request);
+            mNotEmpty.signal();
+            return true;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Inserts all the requests under one acquisition of the lock and wakes the waiting takers
+     * once, rather than once per request.
+     *
+     * @param requests The requests to insert
+     */
+    void offerAll(Collection<? extends Request<?>> requests) {
+        if (requests.isEmpty()) {
+            return;
+        }
+        long nowMs = SystemClock.elapsedRealtime();
+        PriorityAging aging = mAging;
+        for (Request<?> request : requests) {
+            if (request == null) {
+                throw new NullPointerException();
+            }
+            PriorityAging.stamp(aging, request, nowMs);
+        }
+        mLock.lock();
+        try {
+            mQueue.addAll(requests);
+            mNotEmpty.signalAll();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public void put(Request<?> request) {
+        offer(request);
+    }
+
+    @Override
+    public boolean offer(Request<?> request, long timeout, TimeUnit unit) {
+        return offer(request);
+    }
+
+    @Override
+    public Request<?> take() throws InterruptedException {
+        mLock.lockInterruptibly();
+        try {
+            Request<?> request;
+            while ((request = dequeue()) == null) {
+                mNotEmpty.await();
+            }
+            return request;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public Request<?> poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        mLock.lockInterruptibly();
+        try {
+            Request<?> request;
+            while ((request = dequeue()) == null) {
+                if (nanos <= 0) {
+                    return null;
+                }
+                nanos = mNotEmpty.awaitNanos(nanos);
+            }
+            return request;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public Request<?> poll() {
+        mLock.lock();
+        try {
+            return dequeue();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public Request<?> peek() {
+        mLock.lock();
+        try {
+            return mQueue.peek();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        mLock.lock();
+        try {
+            return mQueue.size();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public int remainingCapacity() {
+        return Integer.MAX_VALUE;
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        mLock.lock();
+        try {
+            if (!mQueue.remove(o)) {
+                return false;
+            }
+            signalDequeue();
+            return true;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public int drainTo(Collection<? super Request<?>> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public int drainTo(Collection<? super Request<?>> c, int maxElements) {
+        if (c == this) {
+            throw new IllegalArgumentException();
+        }
+        mLock.lock();
+        try {
+            int n = 0;
+            Request<?> request;
+            while (n < maxElements && (request = dequeue()) != null) {
+                c.add(request);
+                n++;
+            }
+            return n;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Returns an iterator over a snapshot of the waiting requests, in no particular order.
+     */
+    @Override
+    public Iterator<Request<?>> iterator() {
+        mLock.lock();
+        try {
+            return new ArrayList<Request<?>>(mQueue).iterator();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Removes the next request and records its wait. Must hold the lock.
+     */
+    private Request<?> dequeue() {
+        Request<?> request = mQueue.poll();
+        if (request != null) {
+            mWaitStats.record(request, SystemClock.elapsedRealtime());
+            signalDequeue();
+        }
+        return request;
+    }
+
+    private void signalDequeue() {
+        if (mDequeueSignal != null) {
+            mDequeueSignal.signal();
+        }
+    }
+}
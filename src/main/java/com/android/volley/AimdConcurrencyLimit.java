@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.volley;
+
+/**
+ * Additive-increase, multiplicative-decrease {@link ConcurrencyLimit}, as used for TCP
+ * congestion control.
+ * <p>
+ * The limit grows by one for every request that completes within the latency threshold while
+ * at least half of the limit is in use, and is cut by the backoff ratio whenever a request
+ * times out or exceeds the threshold. It finds the largest concurrency the link sustains
+ * without requests slowing down, and backs off quickly when the link gets congested.
+ */
+public class AimdConcurrencyLimit implements ConcurrencyLimit {
+
+    /**
+     * Default factor the limit is multiplied by on congestion.
+     */
+    public static final double DEFAULT_BACKOFF_RATIO = 0.9;
+
+    private final int mMinLimit;
+    private final int mMaxLimit;
+    private final long mLatencyThresholdMs;
+    private final double mBackoffRatio;
+
+    /**
+     * Current limit. Kept fractional so repeated backoffs from a small limit still add up.
+     */
+    private double mLimit;
+
+    /**
+     * @param initialLimit       Limit to start with
+     * @param minLimit           Lowest the limit may drop to, at least 1
+     * @param maxLimit           Highest the limit may grow to
+     * @param latencyThresholdMs Round-trip time above which a request counts as congested
+     */
+    public AimdConcurrencyLimit(int initialLimit, int minLimit, int maxLimit,
+                                long latencyThresholdMs) {
+        this(initialLimit, minLimit, maxLimit, latencyThresholdMs, DEFAULT_BACKOFF_RATIO);
+    }
+
+    /**
+     * @param initialLimit       Limit to start with
+     * @param minLimit           Lowest the limit may drop to, at least 1
+     * @param maxLimit           Highest the limit may grow to
+     * @param latencyThresholdMs Round-trip time above which a request counts as congested
+     * @param backoffRatio       Factor the limit is multiplied by on congestion, in (0, 1)
+     */
+    public AimdConcurrencyLimit(int initialLimit, int minLimit, int maxLimit,
+                                long latencyThresholdMs, double backoffRatio) {
+        if (minLimit < 1 || maxLimit < minLimit || initialLimit < minLimit
+                || initialLimit > maxLimit) {
+            throw new IllegalArgumentException("Require 1 <= minLimit <= initialLimit <= maxLimit");
+        }
+        if (backoffRatio <= 0 || backoffRatio >= 1) {
+            throw new IllegalArgumentException("backoffRatio must be between 0 and 1");
+        }
+        mMinLimit = minLimit;
+        mMaxLimit = maxLimit;
+        mLatencyThresholdMs = latencyThresholdMs;
+        mBackoffRatio = backoffRatio;
+        mLimit = initialLimit;
+    }
+
+    @Override
+    public synchronized int getLimit() {
+        return (int) mLimit;
+    }
+
+    @Override
+    public synchronized void onSample(long rttMs, int inFlight, boolean dropped) {
+        if (dropped || rttMs > mLatencyThresholdMs) {
+            mLimit = Math.max(mMinLimit, mLimit * mBackoffRatio);
+        } else if (inFlight * 2 >= mLimit) {
+            // Only grow while the limit is actually what holds requests back.
+            mLimit = Math.min(mMaxLimit, mLimit + 1);
+        }
+    }
+}
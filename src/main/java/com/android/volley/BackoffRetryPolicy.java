@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.volley;
+
+import org.apache.http.impl.cookie.DateParseException;
+import org.apache.http.impl.cookie.DateUtils;
+
+/**
+ * Retry policy that waits before each retry, for an exponentially growing and randomly
+ * jittered delay, so that clients retrying at once do not hit the server in lockstep. A
+ * delay the server asks for with a <code>Retry-After</code> header is used instead, and no
+ * retry is made if it is longer than the maximum delay. Retries also count against a
+ * {@link RetryBudget}.
+ * <p>
+ * Requests are not held while waiting: the request queue sets them aside and performs them
+ * again once the delay has passed. Besides timeouts, service unavailable (503) and too many
+ * requests (429) responses are retried. Each policy counts as one request towards the budget,
+ * so use one policy per request, as with any retry policy.
+ */
+public class BackoffRetryPolicy extends DefaultRetryPolicy {
+
+    /**
+     * The default number of retries
+     */
+    public static final int DEFAULT_BACKOFF_RETRIES = 3;
+
+    /**
+     * The default delay the first retry is jittered under
+     */
+    public static final long DEFAULT_BASE_DELAY_MS = 500;
+
+    /**
+     * The default longest delay before a retry
+     */
+    public static final long DEFAULT_MAX_DELAY_MS = 30000;
+
+    private static final String HEADER_RETRY_AFTER = "Retry-After";
+
+    private final long mBaseDelayMs;
+    private final long mMaxDelayMs;
+    private final RetryBudget mBudget;
+
+    /**
+     * The delay before the next retry.
+     */
+    private long mRetryDelayMs;
+
+    /**
+     * Constructs a new retry policy using the default timeouts, delays and shared budget.
+     */
+    public BackoffRetryPolicy() {
+        this(DEFAULT_TIMEOUT_MS, DEFAULT_BACKOFF_RETRIES, DEFAULT_BASE_DELAY_MS,
+                DEFAULT_MAX_DELAY_MS, RetryBudget.getDefault());
+    }
+
+    /**
+     * Constructs a new retry policy.
+     *
+     * @param timeoutMs     The timeout of each attempt.
+     * @param maxNumRetries The maximum number of retries.
+     * @param baseDelayMs   The delay the first retry is jittered under; it doubles with each
+     *                      retry.
+     * @param maxDelayMs    The longest delay before a retry.
+     * @param budget        The budget retries count against.
+     */
+    public BackoffRetryPolicy(int timeoutMs, int maxNumRetries, long baseDelayMs,
+                              long maxDelayMs, RetryBudget budget) {
+        // The delays back off instead of the timeout.
+        super(timeoutMs, maxNumRetries, 0f);
+        if (baseDelayMs < 0 || maxDelayMs < baseDelayMs) {
+            throw new IllegalArgumentException("Need 0 <= baseDelayMs <= maxDelayMs");
+        }
+        mBaseDelayMs = baseDelayMs;
+        mMaxDelayMs = maxDelayMs;
+        mBudget = budget;
+        budget.onRequest();
+    }
+
+    /**
+     * Returns the delay before the next retry.
+     *
+     * @return The delay in milliseconds
+     */
+    public long getRetryDelayMs() {
+        return mRetryDelayMs;
+    }
+
+    /**
+     * Prepares for the next retry by working out how long to wait before it.
+     *
+     * @param error The error code of the last attempt.
+     */
+    @Override
+    public void retry(VolleyError error) throws VolleyError {
+        super.retry(error);
+        long retryAfterMs = parseRetryAfter(error.networkResponse);
+        if (retryAfterMs > mMaxDelayMs || !mBudget.tryRetry()) {
+            throw error;
+        }
+        if (retryAfterMs >= 0) {
+            mRetryDelayMs = retryAfterMs;
+        } else {
+            // "Full jitter": anywhere up to the exponential delay.
+            int doublings = Math.min(getCurrentRetryCount() - 1, 30);
+            long ceilingMs = Math.min(mMaxDelayMs, mBaseDelayMs << doublings);
+            mRetryDelayMs = (long) (Math.random() * ceilingMs);
+        }
+    }
+
+    /**
+     * @return the delay asked for by the response's <code>Retry-After</code> header, or -1 if
+     * there is none
+     */
+    private static long parseRetryAfter(NetworkResponse response) {
+        if (response == null || response.headers == null) {
+            return -1;
+        }
+        String retryAfter = response.headers.get(HEADER_RETRY_AFTER);
+        if (retryAfter == null) {
+            return -1;
+        }
+        retryAfter = retryAfter.trim();
+        try {
+            return Math.max(0, Long.parseLong(retryAfter) * 1000);
+        } catch (NumberFormatException e) {
+            // Not a number of seconds, so it should be a date.
+        }
+        try {
+            return Math.max(0,
+                    DateUtils.parseDate(retryAfter).getTime() - System.currentTimeMillis());
+        } catch (DateParseException e) {
+            return -1;
+        }
+    }
+}
@@ -17,6 +17,7 @@
 package com.android.volley;
 
 import android.os.Process;
+import android.os.SystemClock;
 
 import java.util.concurrent.BlockingQueue;
 
@@ -53,6 +54,11 @@ public class CacheDispatcher extends Thread {
      */
     private final ResponseDelivery mDelivery;
 
+    /**
+     * Initializes the cache once for every dispatcher sharing it.
+     */
+    private final CacheInitializer mInitializer;
+
     /**
      * Used for telling us to die.
      */
@@ -70,10 +76,28 @@ public class CacheDispatcher extends Thread {
     public CacheDispatcher(
             BlockingQueue<Request<?>> cacheQueue, BlockingQueue<Request<?>> networkQueue,
             Cache cache, ResponseDelivery delivery) {
+        this(cacheQueue, networkQueue, cache, delivery, new CacheInitializer(cache));
+    }
+
+    /**
+     * Creates a new cache triage dispatcher thread that works the cache queue alongside other
+     * dispatchers created with the same initializer. You must call {@link #start()} in order to
+     * begin processing.
+     *
+     * @param cacheQueue   Queue of incoming requests for triage
+     * @param networkQueue Queue to post requests that require network to
+     * @param cache        Cache interface to use for resolution
+     * @param delivery     Delivery interface to use for posting responses
+     * @param initializer  Initializer shared by all dispatchers reading from cache
+     */
+    CacheDispatcher(
+            BlockingQueue<Request<?>> cacheQueue, BlockingQueue<Request<?>> networkQueue,
+            Cache cache, ResponseDelivery delivery, CacheInitializer initializer) {
         mCacheQueue = cacheQueue;
         mNetworkQueue = networkQueue;
         mCache = cache;
         mDelivery = delivery;
+        mInitializer = initializer;
     }
 
     /**
@@ -90,8 +114,8 @@ public class CacheDispatcher extends Thread {
         if (DEBUG) VolleyLog.v("start new dispatcher");
         Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
 
-        // Make a blocking call to initialize the cache.
-        mCache.initialize();
+        // Make a blocking call to initialize the cache, or wait for another dispatcher to do so.
+        mInitializer.initialize();
 
         Request<?> request;
         while (true) {
@@ -116,6 +140,13 @@ public class CacheDispatcher extends Thread {
                     continue;
                 }
 
+                // If the caller has given up on the request, fail it without going any further.
+                if (request.isPastDeadline(SystemClock.elapsedRealtime())) {
+                    request.addMarker("cache-discard-deadline-exceeded");
+                    mDelivery.postError(request, new DeadlineExceededError());
+                    continue;
+                }
+
                 // Attempt to retrieve this item from cache.
                 Cache.Entry entry = mCache.get(request.getCacheKey());
                 if (entry == null) {
@@ -171,4 +202,24 @@ public class CacheDispatcher extends Thread {
             }
         }
     }
+
+    /**
+     * Runs {@link Cache#initialize()} exactly once for a group of dispatchers. Dispatchers that
+     * arrive while it is running block until it is done, so no lookup ever precedes it.
+     */
+    static class CacheInitializer {
+        private final Cache mCache;
+        private boolean mInitialized = false;
+
+        CacheInitializer(Cache cache) {
+            mCache = cache;
+        }
+
+        synchronized void initialize() {
+            if (!mInitialized) {
+                mCache.initialize();
+                mInitialized = true;
+            }
+        }
+    }
 }
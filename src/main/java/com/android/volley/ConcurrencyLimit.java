@@ -0,0 +1,44 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.volley;
+
+/**
+ * Decides how many network requests may be in flight at once, from the round-trip times and
+ * failures of the requests that complete.
+ * <p>
+ * A dispatch strategy given a limit never performs more requests at once than
+ * {@link #getLimit()}, nor more than its own maximum. Calls to {@link #onSample(long, int,
+ * boolean)} are made one at a time, from the threads performing requests.
+ *
+ * @see AimdConcurrencyLimit
+ * @see GradientConcurrencyLimit
+ */
+public interface ConcurrencyLimit {
+
+    /**
+     * @return the number of requests that may currently be in flight, at least 1
+     */
+    public int getLimit();
+
+    /**
+     * Updates the limit after a request has been performed.
+     *
+     * @param rttMs    Time the request spent on the network, in milliseconds
+     * @param inFlight Number of requests in flight when it completed, itself included
+     * @param dropped  Whether the request timed out, a sign of congestion
+     */
+    public void onSample(long rttMs, int inFlight, boolean dropped);
+}
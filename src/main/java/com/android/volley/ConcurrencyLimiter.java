@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.volley;
+
+/**
+ * Bounds the number of network requests in flight, either at a fixed maximum or at the
+ * current value of a {@link ConcurrencyLimit} capped by that maximum.
+ */
+class ConcurrencyLimiter {
+
+    private final int mMaxConcurrency;
+
+    /**
+     * Adaptive limit, or null to always allow {@link #mMaxConcurrency}.
+     */
+    private final ConcurrencyLimit mLimit;
+
+    /**
+     * Number of requests in flight. Guarded by this.
+     */
+    private int mInFlight;
+
+    /**
+     * @param maxConcurrency Most requests ever in flight at once
+     * @param limit          Adaptive limit below the maximum, or null
+     */
+    ConcurrencyLimiter(int maxConcurrency, ConcurrencyLimit limit) {
+        if (maxConcurrency < 1) {
+            throw new IllegalArgumentException("maxConcurrency must be at least 1");
+        }
+        mMaxConcurrency = maxConcurrency;
+        mLimit = limit;
+    }
+
+    /**
+     * Blocks until a request may be put in flight, and counts it.
+     */
+    synchronized void acquire() throws InterruptedException {
+        while (mInFlight >= effectiveLimit(mMaxConcurrency, mLimit)) {
+            wait();
+        }
+        mInFlight++;
+    }
+
+    /**
+     * Counts a request as no longer in flight.
+     */
+    synchronized void release() {
+        mInFlight--;
+        notifyAll();
+    }
+
+    /**
+     * Feeds the adaptive limit with a request that went out to the network.
+     *
+     * @param rttMs   Time the request spent on the network
+     * @param dropped Whether the request timed out
+     */
+    synchronized void onSample(long rttMs, boolean dropped) {
+        if (mLimit != null) {
+            mLimit.onSample(rttMs, mInFlight, dropped);
+            // The limit may have grown.
+            notifyAll();
+        }
+    }
+
+    /**
+     * @param maxConcurrency Most requests ever in flight at once
+     * @param limit          Adaptive limit below the maximum, or null
+     * @return the number of requests that may currently be in flight
+     */
+    static int effectiveLimit(int maxConcurrency, ConcurrencyLimit limit) {
+        if (limit == null) {
+            return maxConcurrency;
+        }
+        return Math.max(1, Math.min(maxConcurrency, limit.getLimit()));
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A thread-safe set backed by a {@link ConcurrentHashMap}. Stands in for
+ * {@link java.util.Collections#newSetFromMap}, which needs API 9.
+ */
+class ConcurrentHashSet<E> extends AbstractSet<E> {
+
+    private final ConcurrentHashMap<E, Boolean> mMap = new ConcurrentHashMap<E, Boolean>();
+
+    @Override
+    public boolean add(E element) {
+        return mMap.put(element, Boolean.TRUE) == null;
+    }
+
+    @Override
+    public boolean remove(Object element) {
+        return mMap.remove(element) != null;
+    }
+
+    @Override
+    public boolean contains(Object element) {
+        return mMap.containsKey(element);
+    }
+
+    @Override
+    public Iterator<E> iterator() {
+        return mMap.keySet().iterator();
+    }
+
+    @Override
+    public int size() {
+        return mMap.size();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return mMap.isEmpty();
+    }
+
+    @Override
+    public void clear() {
+        mMap.clear();
+    }
+}
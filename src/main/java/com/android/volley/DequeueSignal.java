@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.volley;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Lets threads wait for requests to leave a group of queues. The queues call
+ * {@link #signal()} whenever they give up a request, which costs nothing while nobody waits.
+ * <p>
+ * Waiters read {@link #getCount()}, check the queues, and then wait for the count to move on,
+ * so a request leaving between the check and the wait is never missed.
+ */
+class DequeueSignal {
+
+    private final AtomicInteger mWaiters = new AtomicInteger();
+
+    /**
+     * Number of signals given while someone was waiting. Guarded by this.
+     */
+    private long mCount;
+
+    /**
+     * Registers the calling thread as a waiter; must be paired with {@link #removeWaiter()}.
+     */
+    void addWaiter() {
+        mWaiters.incrementAndGet();
+    }
+
+    void removeWaiter() {
+        mWaiters.decrementAndGet();
+    }
+
+    /**
+     * Wakes the waiters, if there are any.
+     */
+    void signal() {
+        if (mWaiters.get() > 0) {
+            signalAll();
+        }
+    }
+
+    /**
+     * Wakes the waiters unconditionally, e.g. because the condition they wait for changed.
+     */
+    synchronized void signalAll() {
+        mCount++;
+        notifyAll();
+    }
+
+    synchronized long getCount() {
+        return mCount;
+    }
+
+    /**
+     * Waits until a signal is given after <code>count</code> was read.
+     */
+    synchronized void awaitSignalAfter(long count) throws InterruptedException {
+        while (mCount == count) {
+            wait();
+        }
+    }
+}
@@ -18,30 +18,107 @@ package com.android.volley;
 
 import android.os.Handler;
 
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Delivers responses and errors.
+ * <p>
+ * By default every response is posted on its own. In batching mode responses are collected
+ * in a lock-free buffer and delivered in passes, one posted task each, that stop once they
+ * have run for the frame budget; what is left over is posted as the next pass, behind
+ * whatever else the looper has queued in the meantime, such as drawing the next frame. A
+ * burst of responses then costs the main thread a few bounded passes rather than a message
+ * per response.
+ * <p>
+ * Requests with a {@link Request#setDeliveryExecutor(Executor) delivery executor} of their own
+ * are delivered on it instead, never batched.
  */
 public class ExecutorDelivery implements ResponseDelivery {
+    /**
+     * Default time a batching delivery pass may run, a quarter of a 60 fps frame.
+     */
+    public static final long DEFAULT_FRAME_BUDGET_MS = 4;
+
+    /**
+     * Runs deliveries on the thread posting them, for {@link Request#setDeliveryExecutor}.
+     */
+    public static final Executor DIRECT_EXECUTOR = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
     /**
      * Used for posting responses, typically to the main thread.
      */
     private final Executor mResponsePoster;
 
+    /**
+     * Time a delivery pass may run in nanoseconds, or 0 to post each response on its own.
+     */
+    private final long mFrameBudgetNs;
+
+    /**
+     * Deliveries waiting for the next pass, in the order they were posted.
+     */
+    private final ConcurrentLinkedQueue<Runnable> mBatch = new ConcurrentLinkedQueue<Runnable>();
+
+    /**
+     * Whether a pass has been posted and has not yet finished taking deliveries.
+     */
+    private final AtomicBoolean mPassPosted = new AtomicBoolean();
+
+    /**
+     * Delivers the batch until it is empty or the frame budget is spent.
+     */
+    private final Runnable mDeliveryPass = new Runnable() {
+        @Override
+        public void run() {
+            long deadlineNs = System.nanoTime() + mFrameBudgetNs;
+            Runnable delivery;
+            // Always make progress, however long a single delivery takes.
+            do {
+                delivery = mBatch.poll();
+                if (delivery == null) {
+                    break;
+                }
+                delivery.run();
+            } while (System.nanoTime() < deadlineNs);
+            mPassPosted.set(false);
+            // Roll over what is left, and what arrived after the buffer was last found empty.
+            if (!mBatch.isEmpty()) {
+                postPass();
+            }
+        }
+    };
+
     /**
      * Creates a new response delivery interface.
      *
      * @param handler {@link Handler} to post responses on
      */
     public ExecutorDelivery(final Handler handler) {
+        this(handler, 0);
+    }
+
+    /**
+     * Creates a new response delivery interface that batches responses.
+     *
+     * @param handler       {@link Handler} to post responses on
+     * @param frameBudgetMs Time a delivery pass may run, or 0 to post each response on its own
+     */
+    public ExecutorDelivery(final Handler handler, long frameBudgetMs) {
         // Make an Executor that just wraps the handler.
-        mResponsePoster = new Executor() {
+        this(new Executor() {
             @Override
             public void execute(Runnable command) {
                 handler.post(command);
             }
-        };
+        }, frameBudgetMs);
     }
 
     /**
@@ -51,7 +128,30 @@ public class ExecutorDelivery implements ResponseDelivery {
      * @param executor For running delivery tasks
      */
     public ExecutorDelivery(Executor executor) {
+        this(executor, 0);
+    }
+
+    /**
+     * Creates a new response delivery interface that batches responses, mockable version for
+     * testing.
+     *
+     * @param executor      For running delivery passes
+     * @param frameBudgetMs Time a delivery pass may run, or 0 to post each response on its own
+     */
+    public ExecutorDelivery(Executor executor, long frameBudgetMs) {
+        if (frameBudgetMs < 0) {
+            throw new IllegalArgumentException("frameBudgetMs must not be negative");
+        }
         mResponsePoster = executor;
+        mFrameBudgetNs = TimeUnit.MILLISECONDS.toNanos(frameBudgetMs);
+    }
+
+    /**
+     * @return the time a delivery pass may run in milliseconds, or 0 if responses are posted
+     * one by one
+     */
+    public long getFrameBudgetMs() {
+        return TimeUnit.NANOSECONDS.toMillis(mFrameBudgetNs);
     }
 
     @Override
@@ -63,14 +163,37 @@ public class ExecutorDelivery implements ResponseDelivery {
     public void postResponse(Request<?> request, Response<?> response, Runnable runnable) {
         request.markDelivered();
         request.addMarker("post-response");
-        mResponsePoster.execute(new ResponseDeliveryRunnable(request, response, runnable));
+        post(request, new ResponseDeliveryRunnable(request, response, runnable));
     }
 
     @Override
     public void postError(Request<?> request, VolleyError error) {
         request.addMarker("post-error");
         Response<?> response = Response.error(error);
-        mResponsePoster.execute(new ResponseDeliveryRunnable(request, response, null));
+        post(request, new ResponseDeliveryRunnable(request, response, null));
+    }
+
+    private void post(Request<?> request, Runnable delivery) {
+        // A request with an executor of its own bypasses the delivery thread and its batches.
+        Executor executor = request.getDeliveryExecutor();
+        if (executor != null) {
+            executor.execute(delivery);
+            return;
+        }
+        if (mFrameBudgetNs == 0) {
+            mResponsePoster.execute(delivery);
+            return;
+        }
+        mBatch.offer(delivery);
+        if (!mPassPosted.get()) {
+            postPass();
+        }
+    }
+
+    private void postPass() {
+        if (mPassPosted.compareAndSet(false, true)) {
+            mResponsePoster.execute(mDeliveryPass);
+        }
     }
 
     /**
@@ -104,6 +227,7 @@ public class ExecutorDelivery implements ResponseDelivery {
             } else {
                 mRequest.deliverError(mResponse.error);
             }
+            mRequest.completePromise(mResponse);
 
             // If this is an intermediate response, add a marker, otherwise we're done
             // and the request can be finished.
@@ -0,0 +1,199 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Dispatches network requests on an {@link ExecutorService}.
+ * <p>
+ * A single {@link NetworkDispatcher} thread takes requests off the network queue in priority
+ * order and hands them to the executor, never keeping more than <code>maxConcurrency</code>
+ * requests in flight. The executor is either supplied by the caller, or created by this strategy
+ * as an elastic pool that keeps <code>minThreads</code> threads alive, grows up to
+ * <code>maxThreads</code> while requests are in flight and lets the extra threads die after
+ * being idle for the keep-alive time. With a {@link ConcurrencyLimit}, the number of requests
+ * in flight follows the limit, up to <code>maxThreads</code>, and the pool follows along.
+ */
+public class ExecutorDispatchStrategy implements NetworkDispatchStrategy {
+
+    /**
+     * Executor supplied by the caller, or null if this strategy creates its own.
+     */
+    private final ExecutorService mSharedExecutor;
+
+    private final int mMinThreads;
+    private final int mMaxConcurrency;
+    private final long mKeepAliveMs;
+
+    /**
+     * Adaptive limit on the requests in flight, or null to allow mMaxConcurrency.
+     */
+    private final ConcurrencyLimit mConcurrencyLimit;
+
+    /**
+     * Executor the current dispatcher hands requests to.
+     */
+    private ExecutorService mExecutor;
+
+    /**
+     * Thread taking requests off the queue.
+     */
+    private NetworkDispatcher mDispatcher;
+
+    /**
+     * Creates a strategy that runs requests on a caller-owned executor. The executor is not
+     * shut down by {@link #stop()}.
+     *
+     * @param executor       Executor to perform requests on
+     * @param maxConcurrency Maximum number of requests handed to the executor at once
+     */
+    public ExecutorDispatchStrategy(ExecutorService executor, int maxConcurrency) {
+        if (executor == null) {
+            throw new IllegalArgumentException("executor must not be null");
+        }
+        if (maxConcurrency < 1) {
+            throw new IllegalArgumentException("maxConcurrency must be at least 1");
+        }
+        mSharedExecutor = executor;
+        mMinThreads = 0;
+        mMaxConcurrency = maxConcurrency;
+        mKeepAliveMs = 0;
+        mConcurrencyLimit = null;
+    }
+
+    /**
+     * Creates a strategy that runs requests on its own elastic thread pool.
+     *
+     * @param minThreads Number of threads kept alive while idle
+     * @param maxThreads Maximum number of threads, and so of requests in flight
+     * @param keepAlive  How long a thread above <code>minThreads</code> may stay idle
+     * @param unit       Unit of <code>keepAlive</code>
+     */
+    public ExecutorDispatchStrategy(int minThreads, int maxThreads, long keepAlive,
+                                    TimeUnit unit) {
+        this(minThreads, maxThreads, keepAlive, unit, null);
+    }
+
+    /**
+     * Creates a strategy that runs requests on its own elastic thread pool, keeping as many
+     * requests in flight as the given limit currently allows.
+     *
+     * @param minThreads Number of threads kept alive while idle
+     * @param maxThreads Maximum number of threads, and so of requests in flight
+     * @param keepAlive  How long a thread above <code>minThreads</code> may stay idle
+     * @param unit       Unit of <code>keepAlive</code>
+     * @param limit      Adaptive limit on the requests in flight, or null for
+     *                   <code>maxThreads</code>
+     */
+    public ExecutorDispatchStrategy(int minThreads, int maxThreads, long keepAlive,
+                                    TimeUnit unit, ConcurrencyLimit limit) {
+        if (minThreads < 0 || maxThreads < 1 || minThreads > maxThreads) {
+            throw new IllegalArgumentException("Require 0 <= minThreads <= maxThreads, 1 <= maxThreads");
+        }
+        mSharedExecutor = null;
+        mMinThreads = minThreads;
+        mMaxConcurrency = maxThreads;
+        mKeepAliveMs = unit.toMillis(keepAlive);
+        mConcurrencyLimit = limit;
+    }
+
+    @Override
+    public synchronized void start(BlockingQueue<Request<?>> networkQueue, Network network,
+                                   Cache cache, ResponseDelivery delivery,
+                                   ResponsePipeline pipeline) {
+        stop();  // Make sure any currently running dispatcher is stopped.
+        mExecutor = mSharedExecutor != null ? mSharedExecutor : newElasticExecutor();
+        mDispatcher = new NetworkDispatcher(networkQueue, network, cache, delivery, mExecutor,
+                new ConcurrencyLimiter(mMaxConcurrency, mConcurrencyLimit), pipeline);
+        mDispatcher.start();
+    }
+
+    @Override
+    public synchronized void stop() {
+        if (mDispatcher != null) {
+            mDispatcher.quit();
+            mDispatcher = null;
+        }
+        if (mExecutor != null && mExecutor != mSharedExecutor) {
+            // Let requests that are already running finish, but start no new threads.
+            mExecutor.shutdown();
+        }
+        mExecutor = null;
+    }
+
+    /**
+     * @return the maximum number of requests in flight at once
+     */
+    public int getMaxConcurrency() {
+        return mMaxConcurrency;
+    }
+
+    /**
+     * @return the number of requests currently allowed in flight; below
+     * {@link #getMaxConcurrency()} while an adaptive limit holds it back
+     */
+    public int getConcurrencyLimit() {
+        return ConcurrencyLimiter.effectiveLimit(mMaxConcurrency, mConcurrencyLimit);
+    }
+
+    /**
+     * Returns the number of threads currently alive in the pool this strategy created, or -1
+     * when running on a caller-supplied executor or when stopped.
+     *
+     * @return the current pool size
+     */
+    public synchronized int getPoolSize() {
+        if (mExecutor instanceof ThreadPoolExecutor && mExecutor != mSharedExecutor) {
+            return ((ThreadPoolExecutor) mExecutor).getPoolSize();
+        }
+        return -1;
+    }
+
+    private ExecutorService newElasticExecutor() {
+        // A direct hand-off queue grows the pool on demand. The dispatcher never hands over
+        // more than mMaxConcurrency requests, but a worker frees its slot just before it goes
+        // back to polling, so a full pool waits for the hand-off instead of rejecting.
+        return new ThreadPoolExecutor(mMinThreads, mMaxConcurrency, mKeepAliveMs,
+                TimeUnit.MILLISECONDS, new SynchronousQueue<Runnable>(),
+                new BackgroundThreadFactory("Volley-Network-"), new WaitForHandOffPolicy());
+    }
+
+    /**
+     * Blocks the submitting thread until a busy worker picks up the task.
+     */
+    private static class WaitForHandOffPolicy implements RejectedExecutionHandler {
+        @Override
+        public void rejectedExecution(Runnable runnable, ThreadPoolExecutor executor) {
+            if (executor.isShutdown()) {
+                throw new RejectedExecutionException("Executor has been shut down");
+            }
+            try {
+                executor.getQueue().put(runnable);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RejectedExecutionException(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Dispatches network requests on a fixed number of {@link NetworkDispatcher} threads, each of
+ * which blocks on the queue and performs one request at a time. With a
+ * {@link ConcurrencyLimit}, only as many threads as the limit currently allows take requests.
+ */
+public class FixedThreadDispatchStrategy implements NetworkDispatchStrategy {
+
+    /**
+     * The network dispatchers.
+     */
+    private final NetworkDispatcher[] mDispatchers;
+
+    /**
+     * Adaptive limit on the requests in flight, or null to use every thread.
+     */
+    private final ConcurrencyLimit mConcurrencyLimit;
+
+    /**
+     * @param threadPoolSize Number of network dispatcher threads to create
+     */
+    public FixedThreadDispatchStrategy(int threadPoolSize) {
+        this(threadPoolSize, null);
+    }
+
+    /**
+     * @param threadPoolSize Number of network dispatcher threads to create, and so the most
+     *                       requests ever in flight
+     * @param limit          Adaptive limit on the requests in flight, or null to use every
+     *                       thread
+     */
+    public FixedThreadDispatchStrategy(int threadPoolSize, ConcurrencyLimit limit) {
+        mDispatchers = new NetworkDispatcher[threadPoolSize];
+        mConcurrencyLimit = limit;
+    }
+
+    @Override
+    public void start(BlockingQueue<Request<?>> networkQueue, Network network, Cache cache,
+                      ResponseDelivery delivery, ResponsePipeline pipeline) {
+        stop();  // Make sure any currently running dispatchers are stopped.
+        // With an adaptive limit, all dispatchers count against one limiter.
+        ConcurrencyLimiter sharedLimiter = mConcurrencyLimit == null ? null
+                : new ConcurrencyLimiter(mDispatchers.length, mConcurrencyLimit);
+        // Create network dispatchers (and corresponding threads) up to the pool size.
+        for (int i = 0; i < mDispatchers.length; i++) {
+            ConcurrencyLimiter limiter = sharedLimiter != null ? sharedLimiter
+                    : new ConcurrencyLimiter(1, null);
+            NetworkDispatcher networkDispatcher = new NetworkDispatcher(networkQueue, network,
+                    cache, delivery, null, limiter, pipeline);
+            mDispatchers[i] = networkDispatcher;
+            networkDispatcher.start();
+        }
+    }
+
+    @Override
+    public void stop() {
+        for (int i = 0; i < mDispatchers.length; i++) {
+            if (mDispatchers[i] != null) {
+                mDispatchers[i].quit();
+                mDispatchers[i] = null;
+            }
+        }
+    }
+
+    /**
+     * @return the number of network dispatcher threads
+     */
+    public int getThreadPoolSize() {
+        return mDispatchers.length;
+    }
+
+    /**
+     * @return the number of requests currently allowed in flight; below
+     * {@link #getThreadPoolSize()} while an adaptive limit holds it back
+     */
+    public int getConcurrencyLimit() {
+        return ConcurrencyLimiter.effectiveLimit(mDispatchers.length, mConcurrencyLimit);
+    }
+}
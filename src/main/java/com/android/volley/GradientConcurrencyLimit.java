@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.volley;
+
+/**
+ * {@link ConcurrencyLimit} that follows the gradient between the long-term and the current
+ * round-trip time, in the manner of Netflix's concurrency-limits.
+ * <p>
+ * While requests take no longer than usual the limit grows by a queue allowance of the square
+ * root of the limit; once round trips stretch out, which means requests are queuing somewhere
+ * along the way, the limit shrinks in proportion. The long-term round-trip time is an
+ * exponential average, so it follows a link that changes, for example from Wi-Fi to cellular.
+ */
+public class GradientConcurrencyLimit implements ConcurrencyLimit {
+
+    /**
+     * Weight of each sample in the long-term round-trip time.
+     */
+    private static final double LONG_RTT_WEIGHT = 0.05;
+
+    /**
+     * Weight of each new estimate in the limit, so a single sample cannot swing it.
+     */
+    private static final double SMOOTHING = 0.2;
+
+    /**
+     * Lowest gradient applied, so the limit at most halves per sample.
+     */
+    private static final double MIN_GRADIENT = 0.5;
+
+    private final int mMinLimit;
+    private final int mMaxLimit;
+
+    private double mLimit;
+
+    /**
+     * Exponential average of the round-trip time, or 0 before the first sample.
+     */
+    private double mLongRttMs;
+
+    /**
+     * @param initialLimit Limit to start with
+     * @param minLimit     Lowest the limit may drop to, at least 1
+     * @param maxLimit     Highest the limit may grow to
+     */
+    public GradientConcurrencyLimit(int initialLimit, int minLimit, int maxLimit) {
+        if (minLimit < 1 || maxLimit < minLimit || initialLimit < minLimit
+                || initialLimit > maxLimit) {
+            throw new IllegalArgumentException("Require 1 <= minLimit <= initialLimit <= maxLimit");
+        }
+        mMinLimit = minLimit;
+        mMaxLimit = maxLimit;
+        mLimit = initialLimit;
+    }
+
+    @Override
+    public synchronized int getLimit() {
+        return (int) mLimit;
+    }
+
+    @Override
+    public synchronized void onSample(long rttMs, int inFlight, boolean dropped) {
+        double rtt = Math.max(1, rttMs);
+        mLongRttMs = mLongRttMs == 0 ? rtt : mLongRttMs + (rtt - mLongRttMs) * LONG_RTT_WEIGHT;
+
+        double gradient = dropped ? MIN_GRADIENT
+                : Math.max(MIN_GRADIENT, Math.min(1.0, mLongRttMs / rtt));
+        double queueAllowance = Math.sqrt(mLimit);
+        double estimate = mLimit * gradient + queueAllowance;
+        if (estimate > mLimit && inFlight * 2 < mLimit) {
+            // Do not grow a limit that is not being used.
+            return;
+        }
+        double limit = mLimit * (1 - SMOOTHING) + estimate * SMOOTHING;
+        mLimit = Math.max(mMinLimit, Math.min(mMaxLimit, limit));
+    }
+}
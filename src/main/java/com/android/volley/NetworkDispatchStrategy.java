@@ -0,0 +1,48 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Decides which threads perform the requests waiting on a {@link RequestQueue}'s network queue.
+ * <p>
+ * {@link FixedThreadDispatchStrategy} keeps one blocking {@link NetworkDispatcher} thread per
+ * slot, which is the classic Volley model. {@link ExecutorDispatchStrategy} hands requests to an
+ * {@link java.util.concurrent.ExecutorService} so the number of threads can follow the load.
+ */
+public interface NetworkDispatchStrategy {
+
+    /**
+     * Starts dispatching requests from the given queue. Called by {@link RequestQueue#start()}
+     * after {@link #stop()}, so implementations must support being restarted.
+     *
+     * @param networkQueue Queue of requests that need to go out to the network
+     * @param network      Network interface to use for performing requests
+     * @param cache        Cache interface to use for writing responses to cache
+     * @param delivery     Delivery interface to use for posting responses
+     * @param pipeline     Stages to hand network responses to for parsing and caching, or null
+     *                     to parse and cache on the network threads
+     */
+    public void start(BlockingQueue<Request<?>> networkQueue, Network network, Cache cache,
+                      ResponseDelivery delivery, ResponsePipeline pipeline);
+
+    /**
+     * Stops dispatching. Requests still waiting in the queue are not guaranteed to be processed.
+     */
+    public void stop();
+}
@@ -23,6 +23,8 @@ import android.os.Process;
 import android.os.SystemClock;
 
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
  * Provides a thread for performing network dispatch from a queue of requests.
@@ -49,6 +51,19 @@ public class NetworkDispatcher extends Thread {
      * For posting responses and errors.
      */
     private final ResponseDelivery mDelivery;
+    /**
+     * Executor that performs the requests, or null to perform them on this thread.
+     */
+    private final Executor mExecutor;
+    /**
+     * Bounds the number of requests in flight at once, and learns from those that complete.
+     */
+    private final ConcurrencyLimiter mLimiter;
+    /**
+     * Stages that parse and cache responses, or null to do so on the thread performing the
+     * request.
+     */
+    private final ResponsePipeline mPipeline;
     /**
      * Used for telling us to die.
      */
@@ -66,15 +81,81 @@ public class NetworkDispatcher extends Thread {
     public NetworkDispatcher(BlockingQueue<Request<?>> queue,
                              Network network, Cache cache,
                              ResponseDelivery delivery) {
+        this(queue, network, cache, delivery, null, 1);
+    }
+
+    /**
+     * Creates a new network dispatcher thread that hands requests to an {@link Executor}
+     * instead of performing them itself. At most <code>maxConcurrency</code> requests run
+     * at once, and the dispatcher holds at most one more while it waits for room, so priority
+     * ordering is still decided by the queue.  You must call {@link #start()} in order to
+     * begin processing.
+     *
+     * @param queue          Queue of incoming requests for triage
+     * @param network        Network interface to use for performing requests
+     * @param cache          Cache interface to use for writing responses to cache
+     * @param delivery       Delivery interface to use for posting responses
+     * @param executor       Executor to perform requests on, or null to use this thread
+     * @param maxConcurrency Maximum number of requests running on the executor at once
+     */
+    public NetworkDispatcher(BlockingQueue<Request<?>> queue,
+                             Network network, Cache cache,
+                             ResponseDelivery delivery, Executor executor, int maxConcurrency) {
+        this(queue, network, cache, delivery, executor, maxConcurrency, null);
+    }
+
+    /**
+     * Creates a new network dispatcher thread that hands network responses to a
+     * {@link ResponsePipeline} for parsing and caching, so the thread performing a request is
+     * free for the next one as soon as the response has been read.  You must call
+     * {@link #start()} in order to begin processing.
+     *
+     * @param queue          Queue of incoming requests for triage
+     * @param network        Network interface to use for performing requests
+     * @param cache          Cache interface to use for writing responses to cache
+     * @param delivery       Delivery interface to use for posting responses
+     * @param executor       Executor to perform requests on, or null to use this thread
+     * @param maxConcurrency Maximum number of requests running on the executor at once
+     * @param pipeline       Stages to parse and cache responses on, or null to do so on the
+     *                       thread performing the request
+     */
+    public NetworkDispatcher(BlockingQueue<Request<?>> queue,
+                             Network network, Cache cache, ResponseDelivery delivery,
+                             Executor executor, int maxConcurrency, ResponsePipeline pipeline) {
+        this(queue, network, cache, delivery, executor,
+                new ConcurrencyLimiter(maxConcurrency, null), pipeline);
+    }
+
+    /**
+     * Creates a new network dispatcher thread whose requests count against the given limiter,
+     * which may be shared with other dispatchers.  You must call {@link #start()} in order to
+     * begin processing.
+     *
+     * @param queue    Queue of incoming requests for triage
+     * @param network  Network interface to use for performing requests
+     * @param cache    Cache interface to use for writing responses to cache
+     * @param delivery Delivery interface to use for posting responses
+     * @param executor Executor to perform requests on, or null to use this thread
+     * @param limiter  Limiter bounding the requests in flight
+     * @param pipeline Stages to parse and cache responses on, or null to do so on the thread
+     *                 performing the request
+     */
+    NetworkDispatcher(BlockingQueue<Request<?>> queue,
+                      Network network, Cache cache, ResponseDelivery delivery,
+                      Executor executor, ConcurrencyLimiter limiter, ResponsePipeline pipeline) {
         mQueue = queue;
         mNetwork = network;
         mCache = cache;
         mDelivery = delivery;
+        mExecutor = executor;
+        mLimiter = limiter;
+        mPipeline = pipeline;
     }
 
     /**
      * Forces this dispatcher to quit immediately.  If any requests are still in
-     * the queue, they are not guaranteed to be processed.
+     * the queue, they are not guaranteed to be processed. Requests already handed
+     * to an executor are left to run to completion.
      */
     public void quit() {
         mQuit = true;
@@ -92,77 +173,269 @@ public class NetworkDispatcher extends Thread {
     @Override
     public void run() {
         Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
-        Request<?> request;
         while (true) {
-            long startTimeMs = SystemClock.elapsedRealtime();
-            // release previous request object to avoid leaking request object when mQueue is drained.
-            request = null;
             try {
-                // Take a request from the queue.
-                request = mQueue.take();
+                if (mExecutor == null) {
+                    processOnThisThread();
+                } else {
+                    dispatchToExecutor();
+                }
             } catch (InterruptedException e) {
                 // We may have been interrupted because it was time to quit.
                 if (mQuit) {
                     return;
                 }
-                continue;
             }
+        }
+    }
 
-            try {
-                request.addMarker("network-queue-take");
+    /**
+     * Takes the next request, waits until the limiter lets it go out and performs it on this
+     * thread.
+     */
+    private void processOnThisThread() throws InterruptedException {
+        Request<?> request = takeAndAcquire();
+        try {
+            processRequest(request);
+        } finally {
+            mLimiter.release();
+        }
+    }
 
-                // If the request was cancelled already, do not perform the
-                // network request.
-                if (request.isCanceled()) {
-                    request.finish("network-discard-cancelled");
-                    continue;
+    /**
+     * Takes the next request, waits until the limiter lets it go out and hands it to the
+     * executor.
+     */
+    private void dispatchToExecutor() throws InterruptedException {
+        final Request<?> request = takeAndAcquire();
+        try {
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        processRequest(request);
+                    } finally {
+                        mLimiter.release();
+                    }
                 }
+            });
+        } catch (RejectedExecutionException e) {
+            mLimiter.release();
+            // processRequest() never ran, so its host slot is still taken.
+            releaseHost(request);
+            if (mQuit) {
+                // Leave the request for whoever dispatches from this queue next.
+                mQueue.add(request);
+                return;
+            }
+            VolleyLog.e(e, "Executor rejected %s", request);
+            mDelivery.postError(request, new VolleyError(e));
+        }
+    }
+
+    /**
+     * Takes the next request and then waits for the limiter, so that dispatchers idle in
+     * {@link BlockingQueue#take()} do not count as requests in flight.
+     *
+     * @return the request, counted by the limiter
+     */
+    private Request<?> takeAndAcquire() throws InterruptedException {
+        Request<?> request = mQueue.take();
+        try {
+            mLimiter.acquire();
+        } catch (InterruptedException e) {
+            // Leave the request for whoever dispatches from this queue next.
+            releaseHost(request);
+            mQueue.add(request);
+            throw e;
+        }
+        return request;
+    }
 
-                addTrafficStatsTag(request);
+    /**
+     * Performs the network request and delivers the parsed response or error. Runs on this
+     * dispatcher's thread or, when an executor was supplied, on one of the executor's threads.
+     * With a {@link ResponsePipeline}, parsing and caching are handed off to its stages.
+     *
+     * @param request The request taken from the network queue
+     */
+    void processRequest(final Request<?> request) {
+        final long startTimeMs = SystemClock.elapsedRealtime();
+        try {
+            request.addMarker("network-queue-take");
 
-                NetworkResponse networkResponse;
-                if (!Request.isFile(request.getUrl())) {
-                    // Perform the network request.
-                    networkResponse = mNetwork.performRequest(request);
-                    request.addMarker("network-http-complete");
+            // If the request was cancelled already, do not perform the
+            // network request.
+            if (request.isCanceled()) {
+                request.finish("network-discard-cancelled");
+                return;
+            }
 
-                    // If the server returned 304 AND we delivered a response already,
-                    // we're done -- don't deliver a second identical response.
-                    if (networkResponse.notModified && request.hasHadResponseDelivered()) {
-                        request.finish("not-modified");
-                        continue;
-                    }
+            // If the caller has given up on the request, do not perform it either.
+            if (request.isPastDeadline(startTimeMs)) {
+                if (request.hasHadResponseDelivered()) {
+                    // A cached response went out already; skip the refresh.
+                    request.finish("network-discard-deadline-exceeded");
                 } else {
-                    // File
-                    networkResponse = new NetworkResponse(0, null, null, false);
+                    request.addMarker("network-discard-deadline-exceeded");
+                    mDelivery.postError(request, new DeadlineExceededError());
                 }
+                return;
+            }
 
-                // Parse the response here on the worker thread.
-                Response<?> response = request.parseNetworkResponse(networkResponse);
-                request.addMarker("network-parse-complete");
-
-                // Write to cache if applicable.
-                // TODO: Only update cache metadata instead of entire record for 304s.
-                if (request.shouldCache() && response.cacheEntry != null) {
-                    mCache.put(request.getCacheKey(), response.cacheEntry);
-                    request.addMarker("network-cache-written");
+            addTrafficStatsTag(request);
+
+            NetworkResponse networkResponse;
+            if (!Request.isFile(request.getUrl())) {
+                // Perform the network request.
+                networkResponse = mNetwork.performRequest(request);
+                request.addMarker("network-http-complete");
+                // A stale entry served because the host's circuit is open never went out.
+                if (!networkResponse.stale) {
+                    mLimiter.onSample(networkResponse.networkTimeMs > 0
+                            ? networkResponse.networkTimeMs
+                            : SystemClock.elapsedRealtime() - startTimeMs, false);
+                }
+                if (request.isPrefetch() && !networkResponse.stale
+                        && networkResponse.data != null) {
+                    RequestQueue queue = request.getRequestQueue();
+                    if (queue != null) {
+                        queue.onPrefetchTransferred(networkResponse.data.length);
+                    }
                 }
 
-                // Post the response back.
-                request.markDelivered();
-                mDelivery.postResponse(request, response);
-            } catch (VolleyError volleyError) {
-                volleyError.setNetworkTimeMs(SystemClock.elapsedRealtime() - startTimeMs);
-                parseAndDeliverNetworkError(request, volleyError);
-            } catch (Exception e) {
-                VolleyLog.e(e, "Unhandled exception %s", e.toString());
-                VolleyError volleyError = new VolleyError(e);
-                volleyError.setNetworkTimeMs(SystemClock.elapsedRealtime() - startTimeMs);
-                mDelivery.postError(request, volleyError);
+                // If the server returned 304 AND we delivered a response already,
+                // we're done -- don't deliver a second identical response.
+                if (networkResponse.notModified && request.hasHadResponseDelivered()) {
+                    request.finish("not-modified");
+                    return;
+                }
+            } else {
+                // File
+                networkResponse = new NetworkResponse(0, null, null, false);
+            }
+
+            if (mPipeline == null) {
+                // Parse the response here on the worker thread.
+                parseAndDeliver(request, networkResponse, startTimeMs);
+            } else {
+                // Leave parsing to the pipeline and move on to the next request.
+                request.addMarker("network-parse-queued");
+                final NetworkResponse finalResponse = networkResponse;
+                mPipeline.parse(new Runnable() {
+                    @Override
+                    public void run() {
+                        parseAndDeliver(request, finalResponse, startTimeMs);
+                    }
+                });
             }
+        } catch (RetryLaterError retry) {
+            // The failed attempt still tells the RTT; the retry waits off this thread.
+            mLimiter.onSample(SystemClock.elapsedRealtime() - startTimeMs,
+                    retry.getCause() instanceof TimeoutError);
+            retryLater(request, retry.getDelayMs());
+        } catch (VolleyError volleyError) {
+            volleyError.setNetworkTimeMs(SystemClock.elapsedRealtime() - startTimeMs);
+            // Only a timeout says the link is congested; other errors still tell the RTT,
+            // except for transfers that were aborted or never started.
+            if (!(volleyError instanceof CanceledError)
+                    && !(volleyError instanceof CircuitOpenError)) {
+                mLimiter.onSample(volleyError.getNetworkTimeMs(),
+                        volleyError instanceof TimeoutError);
+            }
+            parseAndDeliverNetworkError(request, volleyError);
+        } catch (Exception e) {
+            postUnhandledError(request, e, startTimeMs);
+        } finally {
+            releaseHost(request);
+        }
+    }
+
+    /**
+     * Gives back the slot a request taken from a {@link PerHostBlockingQueue} holds on its host.
+     */
+    private void releaseHost(Request<?> request) {
+        if (mQueue instanceof PerHostBlockingQueue) {
+            ((PerHostBlockingQueue) mQueue).release(request);
         }
     }
 
+    /**
+     * Parses the network response, then writes it to cache and posts it, on the cache-write
+     * stage if there is one.
+     */
+    private void parseAndDeliver(final Request<?> request, NetworkResponse networkResponse,
+                                 final long startTimeMs) {
+        try {
+            final Response<?> response = request.parseNetworkResponse(networkResponse);
+            request.addMarker("network-parse-complete");
+
+            // A stale entry served without revalidation keeps its original expiry in cache.
+            final boolean cacheable = !networkResponse.stale
+                    && request.shouldCache() && response.cacheEntry != null;
+            if (mPipeline != null && cacheable) {
+                mPipeline.writeToCache(new Runnable() {
+                    @Override
+                    public void run() {
+                        writeToCacheAndDeliver(request, response, cacheable, startTimeMs);
+                    }
+                });
+            } else {
+                writeToCacheAndDeliver(request, response, cacheable, startTimeMs);
+            }
+        } catch (Exception e) {
+            postUnhandledError(request, e, startTimeMs);
+        }
+    }
+
+    /**
+     * Writes the response to cache if applicable and posts it back. The response is only
+     * posted once written, so requests staged behind this one find it in cache.
+     */
+    private void writeToCacheAndDeliver(Request<?> request, Response<?> response,
+                                        boolean cacheable, long startTimeMs) {
+        try {
+            // Write to cache if applicable.
+            // TODO: Only update cache metadata instead of entire record for 304s.
+            if (cacheable) {
+                mCache.put(request.getCacheKey(), response.cacheEntry);
+                request.addMarker("network-cache-written");
+            }
+
+            // Post the response back.
+            request.markDelivered();
+            mDelivery.postResponse(request, response);
+        } catch (Exception e) {
+            postUnhandledError(request, e, startTimeMs);
+        }
+    }
+
+    /**
+     * Has the request's queue send it back to the network after the delay.
+     */
+    private void retryLater(Request<?> request, long delayMs) {
+        request.addMarker("network-retry-delayed");
+        RequestQueue requestQueue = request.getRequestQueue();
+        if (requestQueue != null) {
+            requestQueue.retryLater(request, delayMs);
+            return;
+        }
+        // Without a request queue there is nowhere to set the request aside; wait here.
+        try {
+            Thread.sleep(delayMs);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        mQueue.add(request);
+    }
+
+    private void postUnhandledError(Request<?> request, Exception e, long startTimeMs) {
+        VolleyLog.e(e, "Unhandled exception %s", e.toString());
+        VolleyError volleyError = new VolleyError(e);
+        volleyError.setNetworkTimeMs(SystemClock.elapsedRealtime() - startTimeMs);
+        mDelivery.postError(request, volleyError);
+    }
+
     private void parseAndDeliverNetworkError(Request<?> request, VolleyError error) {
         error = request.parseNetworkError(error);
         mDelivery.postError(request, error);
@@ -36,14 +36,21 @@ public class NetworkResponse implements Serializable {
      * @param headers       Headers returned with this response, or null for none
      * @param notModified   True if the server returned a 304 and the data was already in cache
      * @param networkTimeMs Round-trip network time to receive network response
+     * @param stale         True if the data is a cache entry the server did not revalidate
      */
     public NetworkResponse(int statusCode, byte[] data, Map<String, String> headers,
-                           boolean notModified, long networkTimeMs) {
+                           boolean notModified, long networkTimeMs, boolean stale) {
         this.statusCode = statusCode;
         this.data = data;
         this.headers = headers;
         this.notModified = notModified;
         this.networkTimeMs = networkTimeMs;
+        this.stale = stale;
+    }
+
+    public NetworkResponse(int statusCode, byte[] data, Map<String, String> headers,
+                           boolean notModified, long networkTimeMs) {
+        this(statusCode, data, headers, notModified, networkTimeMs, false);
     }
 
     public NetworkResponse(int statusCode, byte[] data, Map<String, String> headers,
@@ -83,5 +90,11 @@ public class NetworkResponse implements Serializable {
      * Network roundtrip time in milliseconds.
      */
     public final long networkTimeMs;
+
+    /**
+     * True if the data was served from cache without the server revalidating it, so it must not
+     * be written back to cache with fresh expiry times.
+     */
+    public final boolean stale;
 }
 
@@ -0,0 +1,496 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+import android.os.SystemClock;
+
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A priority queue of requests that caps how many requests per host may be taken at once.
+ * <p>
+ * Requests are kept in one priority queue per {@link Request#getHost() host}. A request counts
+ * against its host from the moment it is taken until {@link #release(Request)} is called, which
+ * {@link NetworkDispatcher} does once the request has been performed. Hosts that are at their
+ * limit are skipped, so their requests never block a dispatcher that could serve another host.
+ * <p>
+ * With a limit set, the host whose next request has the highest {@link Request.Priority} is
+ * served first and hosts at equal priority are served round-robin. Without a limit this queue
+ * orders requests exactly like a {@link java.util.concurrent.PriorityBlockingQueue}. Either way
+ * a {@link PriorityAging} policy, if set, raises priorities with the time spent waiting.
+ */
+public class PerHostBlockingQueue extends AbstractQueue<Request<?>>
+        implements BlockingQueue<Request<?>> {
+
+    /**
+     * Value of {@link #getMaxRequestsPerHost()} meaning there is no limit.
+     */
+    public static final int UNLIMITED = 0;
+
+    /**
+     * Host key for requests whose URL has no host.
+     */
+    private static final String NO_HOST = "";
+
+    private final ReentrantLock mLock = new ReentrantLock();
+    private final Condition mNotEmpty = mLock.newCondition();
+
+    /**
+     * Per-host state, ordered from the least to the most recently served host.
+     */
+    private final LinkedHashMap<String, HostState> mHosts =
+            new LinkedHashMap<String, HostState>();
+
+    /**
+     * Total number of requests waiting in all hosts.
+     */
+    private int mSize;
+
+    private int mMaxRequestsPerHost;
+
+    private PriorityAging mAging;
+
+    private final QueueWaitStats mWaitStats = new QueueWaitStats();
+
+    /**
+     * Told whenever a request leaves this queue, or null.
+     */
+    private final DequeueSignal mDequeueSignal;
+
+    /**
+     * Creates a queue without a per-host limit.
+     */
+    public PerHostBlockingQueue() {
+        this(UNLIMITED);
+    }
+
+    /**
+     * @param maxRequestsPerHost Maximum number of requests per host taken at once, or
+     *                           {@link #UNLIMITED}
+     */
+    public PerHostBlockingQueue(int maxRequestsPerHost) {
+        this(maxRequestsPerHost, null);
+    }
+
+    /**
+     * @param maxRequestsPerHost Maximum number of requests per host taken at once, or
+     *                           {@link #UNLIMITED}
+     * @param dequeueSignal      Signal to give whenever a request leaves this queue, or null
+     */
+    PerHostBlockingQueue(int maxRequestsPerHost, DequeueSignal dequeueSignal) {
+        mDequeueSignal = dequeueSignal;
+        setMaxRequestsPerHost(maxRequestsPerHost);
+    }
+
+    /**
+     * Changes the per-host limit. Requests already taken keep counting against their host.
+     *
+     * @param maxRequestsPerHost Maximum number of requests per host taken at once, or
+     *                           {@link #UNLIMITED}
+     */
+    public void setMaxRequestsPerHost(int maxRequestsPerHost) {
+        if (maxRequestsPerHost < 0) {
+            throw new IllegalArgumentException("maxRequestsPerHost must not be negative");
+        }
+        mLock.lock();
+        try {
+            mMaxRequestsPerHost = maxRequestsPerHost;
+            // Raising the limit may unblock waiting takers.
+            mNotEmpty.signalAll();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * @return the per-host limit, or {@link #UNLIMITED}
+     */
+    public int getMaxRequestsPerHost() {
+        mLock.lock();
+        try {
+            return mMaxRequestsPerHost;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Sets the aging policy for requests queued from now on.
+     *
+     * @param aging The aging policy, or null for strict priority order
+     */
+    public void setPriorityAging(PriorityAging aging) {
+        mLock.lock();
+        try {
+            mAging = aging;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * @return the aging policy, or null for strict priority order
+     */
+    public PriorityAging getPriorityAging() {
+        mLock.lock();
+        try {
+            return mAging;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * @return the waits of the requests taken from this queue
+     */
+    public QueueWaitStats getWaitStats() {
+        return mWaitStats;
+    }
+
+    /**
+     * Returns the number of requests taken for the given host and not yet released.
+     *
+     * @param host The host, or null for requests without a host
+     * @return the number of requests in flight for the host
+     */
+    public int getInFlightCount(String host) {
+        mLock.lock();
+        try {
+            HostState state = mHosts.get(host != null ? host : NO_HOST);
+            return state != null ? state.inFlight : 0;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Releases the slot a taken request holds on its host. Must be called exactly once for
+     * every request obtained from {@link #take()}, {@link #poll()} or {@link #drainTo}.
+     *
+     * @param request The request that is done with the network
+     */
+    public void release(Request<?> request) {
+        mLock.lock();
+        try {
+            String key = hostKey(request);
+            HostState state = mHosts.get(key);
+            if (state == null || state.inFlight == 0) {
+                return;
+            }
+            state.inFlight--;
+            if (!state.pending.isEmpty()) {
+                mNotEmpty.signal();
+            } else if (state.inFlight == 0) {
+                mHosts.remove(key);
+            }
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public boolean offer(Request<?> request) {
+        if (request == null) {
+            throw new NullPointerException();
+        }
+        mLock.lock();
+        try {
+            enqueue(request, SystemClock.elapsedRealtime());
+            mNotEmpty.signal();
+            return true;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Inserts all the requests under one acquisition of the lock and wakes the waiting takers
+     * once, rather than once per request.
+     *
+     * @param requests The requests to insert
+     */
+    void offerAll(Collection<? extends Request<?>> requests) {
+        if (requests.isEmpty()) {
+            return;
+        }
+        mLock.lock();
+        try {
+            long nowMs = SystemClock.elapsedRealtime();
+            for (Request<?> request : requests) {
+                if (request == null) {
+                    throw new NullPointerException();
+                }
+                enqueue(request, nowMs);
+            }
+            mNotEmpty.signalAll();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Adds the request to its host's queue. Must hold the lock.
+     */
+    private void enqueue(Request<?> request, long nowMs) {
+        String key = hostKey(request);
+        HostState state = mHosts.get(key);
+        if (state == null) {
+            state = new HostState();
+            mHosts.put(key, state);
+        }
+        PriorityAging.stamp(mAging, request, nowMs);
+        state.pending.offer(request);
+        mSize++;
+    }
+
+    @Override
+    public void put(Request<?> request) {
+        offer(request);
+    }
+
+    @Override
+    public boolean offer(Request<?> request, long timeout, TimeUnit unit) {
+        return offer(request);
+    }
+
+    @Override
+    public Request<?> take() throws InterruptedException {
+        mLock.lockInterruptibly();
+        try {
+            Request<?> request;
+            while ((request = dequeue()) == null) {
+                mNotEmpty.await();
+            }
+            return request;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public Request<?> poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        mLock.lockInterruptibly();
+        try {
+            Request<?> request;
+            while ((request = dequeue()) == null) {
+                if (nanos <= 0) {
+                    return null;
+                }
+                nanos = mNotEmpty.awaitNanos(nanos);
+            }
+            return request;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public Request<?> poll() {
+        mLock.lock();
+        try {
+            return dequeue();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Returns the request {@link #poll()} would return, without taking it.
+     */
+    @Override
+    public Request<?> peek() {
+        mLock.lock();
+        try {
+            HostState state = selectHost(SystemClock.elapsedRealtime());
+            return state != null ? state.pending.peek() : null;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        mLock.lock();
+        try {
+            return mSize;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    @Override
+    public int remainingCapacity() {
+        return Integer.MAX_VALUE;
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        if (!(o instanceof Request)) {
+            return false;
+        }
+        mLock.lock();
+        try {
+            String key = hostKey((Request<?>) o);
+            HostState state = mHosts.get(key);
+            if (state == null || !state.pending.remove(o)) {
+                return false;
+            }
+            mSize--;
+            if (state.pending.isEmpty() && state.inFlight == 0) {
+                mHosts.remove(key);
+            }
+            signalDequeue();
+            return true;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Drains the requests that could currently be taken; each one must be released.
+     */
+    @Override
+    public int drainTo(Collection<? super Request<?>> c) {
+        return drainTo(c, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Drains up to <code>maxElements</code> requests that could currently be taken; each one
+     * must be released.
+     */
+    @Override
+    public int drainTo(Collection<? super Request<?>> c, int maxElements) {
+        if (c == this) {
+            throw new IllegalArgumentException();
+        }
+        mLock.lock();
+        try {
+            int n = 0;
+            Request<?> request;
+            while (n < maxElements && (request = dequeue()) != null) {
+                c.add(request);
+                n++;
+            }
+            return n;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Returns an iterator over a snapshot of the waiting requests, in no particular order.
+     */
+    @Override
+    public Iterator<Request<?>> iterator() {
+        mLock.lock();
+        try {
+            List<Request<?>> snapshot = new ArrayList<Request<?>>(mSize);
+            for (HostState state : mHosts.values()) {
+                snapshot.addAll(state.pending);
+            }
+            return snapshot.iterator();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * Removes the next request, counts it against its host and moves the host to the back of
+     * the round-robin order. Must hold the lock.
+     */
+    private Request<?> dequeue() {
+        long nowMs = SystemClock.elapsedRealtime();
+        HostState state = selectHost(nowMs);
+        if (state == null) {
+            return null;
+        }
+        Request<?> request = state.pending.poll();
+        mSize--;
+        mWaitStats.record(request, nowMs);
+        signalDequeue();
+        state.inFlight++;
+        // Re-inserting moves the host to the end of the iteration order.
+        String key = hostKey(request);
+        mHosts.remove(key);
+        mHosts.put(key, state);
+        return request;
+    }
+
+    private void signalDequeue() {
+        if (mDequeueSignal != null) {
+            mDequeueSignal.signal();
+        }
+    }
+
+    /**
+     * Picks the host to serve next, or null if every host is empty or at its limit. Must hold
+     * the lock.
+     */
+    private HostState selectHost(long nowMs) {
+        HostState best = null;
+        for (Map.Entry<String, HostState> entry : mHosts.entrySet()) {
+            HostState state = entry.getValue();
+            Request<?> head = state.pending.peek();
+            if (head == null) {
+                continue;
+            }
+            if (mMaxRequestsPerHost != UNLIMITED && state.inFlight >= mMaxRequestsPerHost) {
+                continue;
+            }
+            if (best == null || isPreferred(head, best.pending.peek(), nowMs)) {
+                best = state;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Whether <code>candidate</code> should go before <code>current</code>, which belongs to a
+     * host that was served less recently.
+     */
+    private boolean isPreferred(Request<?> candidate, Request<?> current, long nowMs) {
+        if (mMaxRequestsPerHost == UNLIMITED) {
+            return PriorityAging.QUEUE_ORDER.compare(candidate, current) < 0;
+        }
+        // Only a strictly higher (effective) priority beats the less recently served host.
+        return PriorityAging.effectiveLevel(mAging, candidate, nowMs)
+                > PriorityAging.effectiveLevel(mAging, current, nowMs);
+    }
+
+    private static String hostKey(Request<?> request) {
+        String host = request.getHost();
+        return host != null ? host : NO_HOST;
+    }
+
+    private static class HostState {
+        final PriorityQueue<Request<?>> pending =
+                new PriorityQueue<Request<?>>(11, PriorityAging.QUEUE_ORDER);
+        int inFlight;
+    }
+}
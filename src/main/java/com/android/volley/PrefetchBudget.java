@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Holds prefetches back until {@link RequestQueue} has capacity to spare, and keeps them within
+ * a number in flight and a number of bytes downloaded.
+ * <p>
+ * Prefetches wait here, outside the queues, in the order they were made. Once the byte budget
+ * is spent the waiting ones are dropped and new ones refused until the budget is reset.
+ */
+class PrefetchBudget {
+
+    /**
+     * Prefetches not yet released to the queue, oldest first.
+     */
+    private final LinkedList<Request<?>> mWaiting = new LinkedList<Request<?>>();
+
+    /**
+     * Prefetches released to the queue and not finished, by cache key.
+     */
+    private final Map<String, Request<?>> mInFlight = new HashMap<String, Request<?>>();
+
+    private int mMaxInFlight;
+    private long mMaxBytes;
+    private long mBytes = 0;
+
+    /**
+     * Number of prefetches waiting or in flight, read without the lock to skip the common case
+     * of there being none.
+     */
+    private volatile int mActiveCount = 0;
+
+    PrefetchBudget(int maxInFlight, long maxBytes) {
+        reset(maxInFlight, maxBytes);
+    }
+
+    /**
+     * Sets new limits and forgets the bytes downloaded so far.
+     */
+    synchronized void reset(int maxInFlight, long maxBytes) {
+        if (maxInFlight < 1 || maxBytes < 0) {
+            throw new IllegalArgumentException("maxInFlight must be at least 1 and maxBytes "
+                    + "must not be negative");
+        }
+        mMaxInFlight = maxInFlight;
+        mMaxBytes = maxBytes;
+        mBytes = 0;
+    }
+
+    /**
+     * @return whether there are prefetches waiting or in flight
+     */
+    boolean isActive() {
+        return mActiveCount > 0;
+    }
+
+    /**
+     * Puts a prefetch in line.
+     *
+     * @return false if the byte budget is spent
+     */
+    synchronized boolean offer(Request<?> request) {
+        if (mBytes >= mMaxBytes) {
+            return false;
+        }
+        mWaiting.add(request);
+        updateActiveCount();
+        return true;
+    }
+
+    /**
+     * Takes the waiting prefetches that fit within the number in flight, in order, and counts
+     * them as in flight. Prefetches for a key already being fetched are dropped.
+     *
+     * @param keysInFlight Cache keys of the requests in flight in the queue
+     */
+    synchronized List<Request<?>> release(Collection<String> keysInFlight) {
+        if (mBytes >= mMaxBytes) {
+            mWaiting.clear();
+        }
+        List<Request<?>> released = new ArrayList<Request<?>>();
+        while (mInFlight.size() < mMaxInFlight && !mWaiting.isEmpty()) {
+            Request<?> request = mWaiting.removeFirst();
+            String cacheKey = request.getCacheKey();
+            if (request.isCanceled() || keysInFlight.contains(cacheKey)
+                    || mInFlight.containsKey(cacheKey)) {
+                continue;
+            }
+            mInFlight.put(cacheKey, request);
+            released.add(request);
+        }
+        updateActiveCount();
+        return released;
+    }
+
+    /**
+     * Called when a request that is not a prefetch is added: prefetches still waiting for the
+     * same key are dropped, as the request fetches it anyway.
+     *
+     * @return the prefetch in flight for the same key, or null if there is none
+     */
+    synchronized Request<?> supersede(String cacheKey) {
+        Iterator<Request<?>> it = mWaiting.iterator();
+        while (it.hasNext()) {
+            if (it.next().getCacheKey().equals(cacheKey)) {
+                it.remove();
+            }
+        }
+        updateActiveCount();
+        return mInFlight.get(cacheKey);
+    }
+
+    /**
+     * Called when a prefetch has finished, making room for the next one.
+     */
+    synchronized void onFinished(Request<?> request) {
+        String cacheKey = request.getCacheKey();
+        if (mInFlight.get(cacheKey) == request) {
+            mInFlight.remove(cacheKey);
+            updateActiveCount();
+        }
+    }
+
+    /**
+     * Counts the bytes a prefetch downloaded against the budget, dropping the waiting
+     * prefetches once it is spent.
+     */
+    synchronized void onTransferred(long bytes) {
+        mBytes += bytes;
+        if (mBytes >= mMaxBytes) {
+            mWaiting.clear();
+            updateActiveCount();
+        }
+    }
+
+    /**
+     * Drops the waiting prefetches.
+     *
+     * @return the prefetches in flight, to be canceled by the caller
+     */
+    synchronized List<Request<?>> clear() {
+        mWaiting.clear();
+        updateActiveCount();
+        return new ArrayList<Request<?>>(mInFlight.values());
+    }
+
+    synchronized long getBytes() {
+        return mBytes;
+    }
+
+    synchronized int getWaitingCount() {
+        return mWaiting.size();
+    }
+
+    private void updateActiveCount() {
+        mActiveCount = mWaiting.size() + mInFlight.size();
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+import com.android.volley.Request.Priority;
+
+import java.util.Comparator;
+
+/**
+ * Raises the effective priority of requests with the time they spend waiting in a queue, so
+ * that a steady stream of higher priority requests cannot starve lower priority ones.
+ * <p>
+ * Every {@link Priority} is worth a head start, its credit. A request waiting in a queue is
+ * served as if it had been queued its credit earlier, so a request catches up with a higher
+ * priority one queued later once it has waited the difference between their credits. Because
+ * a request's rank is fixed when it is queued, aging never reorders requests already queued.
+ * <p>
+ * Without aging, requests of the same priority are served earliest {@link Request#getDeadline()
+ * deadline} first, and those without a deadline in the order they were added. With aging,
+ * waiting time alone orders requests and deadlines only decide when a request is dropped.
+ * <p>
+ * {@link Request#isPrefetch() Prefetches} rank one level below {@link Priority#LOW} and do
+ * not age: they wait behind every other request. That level is internal to the queues and is
+ * not a {@link Priority} of its own.
+ */
+public class PriorityAging {
+
+    /**
+     * Rank distance between priorities when aging is off; longer than any wait.
+     */
+    private static final long STRICT_RANK_SPACING = 1L << 40;
+
+    /**
+     * Level of prefetches, below the ordinal of every {@link Priority}.
+     */
+    static final int PREFETCH_LEVEL = -1;
+
+    /**
+     * Credit of prefetches, a handicap no wait makes up for.
+     */
+    private static final long PREFETCH_CREDIT_MS = -STRICT_RANK_SPACING;
+
+    /**
+     * Orders requests by the rank they were given when queued, then by sequence number.
+     */
+    static final Comparator<Request<?>> QUEUE_ORDER = new Comparator<Request<?>>() {
+        @Override
+        public int compare(Request<?> left, Request<?> right) {
+            long leftRank = left.getQueueRank();
+            long rightRank = right.getQueueRank();
+            if (leftRank != rightRank) {
+                return leftRank < rightRank ? -1 : 1;
+            }
+            return left.getSequence() - right.getSequence();
+        }
+    };
+
+    /**
+     * Head start of each priority in milliseconds, indexed by ordinal.
+     */
+    private final long[] mCreditsMs;
+
+    /**
+     * Creates an aging policy under which a request is promoted by one priority level for
+     * every <code>promotionIntervalMs</code> it waits.
+     *
+     * @param promotionIntervalMs Wait that is worth one priority level
+     */
+    public PriorityAging(long promotionIntervalMs) {
+        this(0, promotionIntervalMs, 2 * promotionIntervalMs, 3 * promotionIntervalMs);
+    }
+
+    /**
+     * Creates an aging policy with an explicit head start per priority. Credits must not
+     * decrease with priority.
+     *
+     * @param lowCreditMs       Head start of {@link Priority#LOW} requests
+     * @param normalCreditMs    Head start of {@link Priority#NORMAL} requests
+     * @param highCreditMs      Head start of {@link Priority#HIGH} requests
+     * @param immediateCreditMs Head start of {@link Priority#IMMEDIATE} requests
+     */
+    public PriorityAging(long lowCreditMs, long normalCreditMs, long highCreditMs,
+                         long immediateCreditMs) {
+        if (lowCreditMs < 0 || normalCreditMs < lowCreditMs || highCreditMs < normalCreditMs
+                || immediateCreditMs < highCreditMs) {
+            throw new IllegalArgumentException("Credits must be non-negative and not decrease "
+                    + "with priority");
+        }
+        mCreditsMs = new long[]{lowCreditMs, normalCreditMs, highCreditMs, immediateCreditMs};
+    }
+
+    /**
+     * @param priority The priority
+     * @return the head start of requests with the given priority, in milliseconds
+     */
+    public long getCreditMs(Priority priority) {
+        return mCreditsMs[priority.ordinal()];
+    }
+
+    /**
+     * Gives the request its rank for the queue it is about to enter.
+     *
+     * @param aging   The queue's aging policy, or null for strict priority order
+     * @param request The request being queued
+     * @param nowMs   The current time, from {@link android.os.SystemClock#elapsedRealtime()}
+     */
+    static void stamp(PriorityAging aging, Request<?> request, long nowMs) {
+        int level = levelOf(request);
+        long rank = aging == null
+                ? -level * STRICT_RANK_SPACING + deadlineRank(request)
+                : nowMs - aging.creditOf(level);
+        request.setQueueRank(rank, nowMs);
+    }
+
+    /**
+     * @return the rank of the request within its priority under strict order: its deadline, or
+     * the last rank if it has none
+     */
+    private static long deadlineRank(Request<?> request) {
+        long deadlineMs = request.getDeadline();
+        return deadlineMs == 0 ? STRICT_RANK_SPACING - 1
+                : Math.min(deadlineMs, STRICT_RANK_SPACING - 1);
+    }
+
+    /**
+     * @return the head start of requests at the given level, in milliseconds
+     */
+    private long creditOf(int level) {
+        return level == PREFETCH_LEVEL ? PREFETCH_CREDIT_MS : mCreditsMs[level];
+    }
+
+    /**
+     * Returns the level of the highest priority whose credit the request has made up for by
+     * waiting.
+     *
+     * @param aging   The queue's aging policy, or null for strict priority order
+     * @param request A queued request
+     * @param nowMs   The current time, from {@link android.os.SystemClock#elapsedRealtime()}
+     * @return the ordinal of that priority, or {@link #PREFETCH_LEVEL} for prefetches
+     */
+    static int effectiveLevel(PriorityAging aging, Request<?> request, long nowMs) {
+        int level = levelOf(request);
+        if (aging == null || level == PREFETCH_LEVEL) {
+            return level;
+        }
+        long agedCredit = aging.mCreditsMs[level] + (nowMs - request.getQueuedTimeMs());
+        for (int i = aging.mCreditsMs.length - 1; i > level; i--) {
+            if (aging.mCreditsMs[i] <= agedCredit) {
+                return i;
+            }
+        }
+        return level;
+    }
+
+    /**
+     * @return the level of the request: {@link #PREFETCH_LEVEL} for prefetches, and the
+     * ordinal of its {@link #priorityOf(Request) priority} otherwise
+     */
+    static int levelOf(Request<?> request) {
+        return request.isPrefetch() ? PREFETCH_LEVEL : priorityOf(request).ordinal();
+    }
+
+    /**
+     * @return the priority of the request, or {@link Priority#NORMAL} if it reports none
+     */
+    static Priority priorityOf(Request<?> request) {
+        Priority priority = request.getPriority();
+        // Subclasses are not required to report a priority.
+        return priority != null ? priority : Priority.NORMAL;
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+import com.android.volley.Request.Priority;
+
+import java.util.Arrays;
+
+/**
+ * How long requests of each {@link Priority} waited in a queue before being taken, over the
+ * most recent requests of that priority.
+ */
+public class QueueWaitStats {
+
+    /**
+     * Number of recent waits kept per priority.
+     */
+    public static final int SAMPLE_SIZE = 256;
+
+    private final long[][] mSamples = new long[Priority.values().length][SAMPLE_SIZE];
+
+    /**
+     * Number of waits recorded per priority since the last reset.
+     */
+    private final long[] mCounts = new long[Priority.values().length];
+
+    /**
+     * Records how long a request waited, as it is taken from the queue. Prefetches are not
+     * recorded.
+     *
+     * @param request The request, stamped by {@link PriorityAging} when it was queued
+     * @param nowMs   The current time, from {@link android.os.SystemClock#elapsedRealtime()}
+     */
+    synchronized void record(Request<?> request, long nowMs) {
+        if (request.isPrefetch()) {
+            // Prefetches wait on purpose; they would only skew the waits of their priority.
+            return;
+        }
+        int ordinal = PriorityAging.priorityOf(request).ordinal();
+        mSamples[ordinal][(int) (mCounts[ordinal] % SAMPLE_SIZE)] =
+                nowMs - request.getQueuedTimeMs();
+        mCounts[ordinal]++;
+    }
+
+    /**
+     * Returns the wait below which the given percentage of recent requests of a priority were
+     * taken, or -1 if no request of that priority has been taken yet.
+     *
+     * @param priority   The priority
+     * @param percentile The percentile, from 0 to 100
+     * @return the wait in milliseconds
+     */
+    public synchronized long getPercentile(Priority priority, double percentile) {
+        if (percentile < 0 || percentile > 100) {
+            throw new IllegalArgumentException("percentile must be between 0 and 100");
+        }
+        int ordinal = priority.ordinal();
+        int n = (int) Math.min(mCounts[ordinal], SAMPLE_SIZE);
+        if (n == 0) {
+            return -1;
+        }
+        long[] sorted = new long[n];
+        System.arraycopy(mSamples[ordinal], 0, sorted, 0, n);
+        Arrays.sort(sorted);
+        int rank = (int) Math.ceil(percentile / 100 * n);
+        return sorted[Math.max(rank - 1, 0)];
+    }
+
+    /**
+     * @param priority The priority
+     * @return the number of requests of the priority taken since the last reset
+     */
+    public synchronized long getCount(Priority priority) {
+        return mCounts[priority.ordinal()];
+    }
+
+    /**
+     * Forgets all recorded waits.
+     */
+    public synchronized void reset() {
+        Arrays.fill(mCounts, 0);
+    }
+}
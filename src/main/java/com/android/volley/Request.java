@@ -29,6 +29,11 @@ import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
 import java.util.Collections;
 import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Base class for all network requests.
@@ -52,6 +57,18 @@ public abstract class Request<T> implements Comparable<Request<T>> {
      */
     public static final String SCHEME_ANDROID_RESOURCE = ContentResolver.SCHEME_ANDROID_RESOURCE;
 
+    /**
+     * How long the abort thread waits for more work before it exits.
+     */
+    private static final long ABORT_THREAD_KEEP_ALIVE_SECONDS = 10;
+
+    /**
+     * Runs the transfer aborts of canceled requests. Its single thread goes away when idle.
+     */
+    private static final Executor ABORT_EXECUTOR = new ThreadPoolExecutor(0, 1,
+            ABORT_THREAD_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+            new BackgroundThreadFactory("Volley-Abort-"));
+
     /**
      * Supported request methods.
      */
@@ -89,14 +106,30 @@ public abstract class Request<T> implements Comparable<Request<T>> {
     private String mRedirectUrl;
 
     /**
-     * The unique identifier of the request
+     * Number of this request among all requests created by the process.
+     */
+    private final long mSerial;
+
+    /**
+     * When this request was created, in {@link System#currentTimeMillis()} milliseconds.
+     */
+    private final long mCreatedTimeMs;
+
+    /**
+     * The unique identifier of the request, or null until first asked for.
      */
     private String mIdentifier;
 
     /**
-     * Default tag for {@link TrafficStats}.
+     * Host component of the URL, {@link #NO_HOST} if there is none, or null until first asked
+     * for.
      */
-    private final int mDefaultTrafficStatsTag;
+    private String mHost;
+
+    /**
+     * Cache key of the request, or null until first asked for.
+     */
+    private String mCacheKey;
 
     /**
      * Listener interface for errors.
@@ -108,6 +141,17 @@ public abstract class Request<T> implements Comparable<Request<T>> {
      */
     private Integer mSequence;
 
+    /**
+     * Rank of this request in the queue it is waiting in; lower ranks are served first.
+     */
+    private long mQueueRank;
+
+    /**
+     * When this request entered the queue it is waiting in, in
+     * {@link android.os.SystemClock#elapsedRealtime()} milliseconds.
+     */
+    private long mQueuedTimeMs;
+
     /**
      * The request queue this request is associated with.
      */
@@ -119,15 +163,54 @@ public abstract class Request<T> implements Comparable<Request<T>> {
     private boolean mShouldCache = true;
 
     /**
-     * Whether or not this request has been canceled.
+     * Whether or not identical requests in flight at the same time may share one network call.
      */
-    private boolean mCanceled = false;
+    private boolean mShouldCoalesce = false;
+
+    /**
+     * Time after which this request is no longer worth performing, in
+     * {@link android.os.SystemClock#elapsedRealtime()} milliseconds, or 0 if there is none.
+     */
+    private long mDeadlineMs = 0;
+
+    /**
+     * Whether this request only warms the cache, through {@link RequestQueue#prefetch(Request)}.
+     */
+    private boolean mPrefetch = false;
+
+    /**
+     * Runs the delivery of this request's responses and errors, or null to use the queue's.
+     */
+    private Executor mDeliveryExecutor;
+
+    /**
+     * Completed with the first response or error delivered, if the request was added with
+     * {@link RequestQueue#addAsync(Request)}.
+     */
+    private volatile RequestPromise<T> mPromise;
+
+    /**
+     * Whether or not this request has been canceled. Guarded by this when written.
+     */
+    private volatile boolean mCanceled = false;
+
+    /**
+     * Aborts the transfer of this request that is in flight, or null if there is none.
+     * Guarded by this.
+     */
+    private Runnable mTransferAbort;
 
     /**
      * Whether or not a response has been delivered for this request yet.
      */
     private boolean mResponseDelivered = false;
 
+    /**
+     * Whether the final response or error of this request has been handed to the delivery.
+     * Written by the dispatchers and read by whoever shuts the queue down.
+     */
+    private volatile boolean mResultPosted = false;
+
     /**
      * The retry policy for this request.
      */
@@ -173,11 +256,13 @@ public abstract class Request<T> implements Comparable<Request<T>> {
     public Request(int method, String url, Response.ErrorListener listener) {
         mMethod = method;
         mUrl = url;
-        mIdentifier = createIdentifier(method, url);
         mErrorListener = listener;
+        mSerial = sSerial.incrementAndGet();
+        mCreatedTimeMs = System.currentTimeMillis();
+        // The retry policy is shared by every thread that retries or times out this request,
+        // so it is set up front. The identifier, host and cache key are worked out when first
+        // needed; many requests are canceled or served from cache before they all are.
         setRetryPolicy(new DefaultRetryPolicy());
-
-        mDefaultTrafficStatsTag = findDefaultTrafficStatsTag(url);
     }
 
     /**
@@ -197,7 +282,11 @@ public abstract class Request<T> implements Comparable<Request<T>> {
      * @return This Request object to allow for chaining.
      */
     public Request<?> setTag(Object tag) {
+        Object oldTag = mTag;
         mTag = tag;
+        if (mRequestQueue != null) {
+            mRequestQueue.onTagChanged(this, oldTag, tag);
+        }
         return this;
     }
 
@@ -222,23 +311,36 @@ public abstract class Request<T> implements Comparable<Request<T>> {
      * @return A tag for use with {@link TrafficStats#setThreadStatsTag(int)}
      */
     public int getTrafficStatsTag() {
-        return mDefaultTrafficStatsTag;
+        String host = getHost();
+        return host != null ? host.hashCode() : 0;
     }
 
     /**
-     * @return The hashcode of the URL's host component, or 0 if there is none.
+     * Returns the host component of the original URL; used to group requests per server.
+     *
+     * @return the host, or null if the URL has none
+     */
+    public String getHost() {
+        // Racing threads parse the same URL and store equal values, so no locking is needed.
+        String host = mHost;
+        if (host == null) {
+            host = findHost(mUrl);
+            mHost = host != null ? host : NO_HOST;
+        }
+        return host != NO_HOST ? host : null;
+    }
+
+    /**
+     * @return The URL's host component, or null if there is none.
      */
-    private static int findDefaultTrafficStatsTag(String url) {
+    private static String findHost(String url) {
         if (!TextUtils.isEmpty(url)) {
             Uri uri = Uri.parse(url);
             if (uri != null) {
-                String host = uri.getHost();
-                if (host != null) {
-                    return host.hashCode();
-                }
+                return uri.getHost();
             }
         }
-        return 0;
+        return null;
     }
 
     /**
@@ -313,6 +415,13 @@ public abstract class Request<T> implements Comparable<Request<T>> {
         return this;
     }
 
+    /**
+     * @return the request queue this request was added to, or null if there is none
+     */
+    RequestQueue getRequestQueue() {
+        return mRequestQueue;
+    }
+
     /**
      * Sets the sequence number of this request.  Used by {@link RequestQueue}.
      *
@@ -336,6 +445,32 @@ public abstract class Request<T> implements Comparable<Request<T>> {
         return mSequence;
     }
 
+    /**
+     * Sets the rank of this request in the queue it is about to enter. Called by the queue,
+     * see {@link PriorityAging}.
+     *
+     * @param rank         The rank; lower ranks are served first
+     * @param queuedTimeMs The time the request is queued at
+     */
+    final void setQueueRank(long rank, long queuedTimeMs) {
+        mQueueRank = rank;
+        mQueuedTimeMs = queuedTimeMs;
+    }
+
+    /**
+     * @return the rank of this request in the queue it is waiting in
+     */
+    final long getQueueRank() {
+        return mQueueRank;
+    }
+
+    /**
+     * @return when this request entered the queue it is waiting in
+     */
+    final long getQueuedTimeMs() {
+        return mQueuedTimeMs;
+    }
+
     /**
      * Returns the URL of this request. In the request is redirected, it returns the redirect url.
      *
@@ -360,7 +495,12 @@ public abstract class Request<T> implements Comparable<Request<T>> {
      * @return the request identifier
      */
     public String getIdentifier() {
-        return mIdentifier;
+        String identifier = mIdentifier;
+        if (identifier == null) {
+            identifier = createIdentifier(mMethod, mUrl, mCreatedTimeMs, mSerial);
+            mIdentifier = identifier;
+        }
+        return identifier;
     }
 
     /**
@@ -378,7 +518,38 @@ public abstract class Request<T> implements Comparable<Request<T>> {
      * @return the cache key of this request
      */
     public String getCacheKey() {
-        return mMethod + ":" + mUrl;
+        String cacheKey = mCacheKey;
+        if (cacheKey == null) {
+            cacheKey = mMethod + ":" + mUrl;
+            mCacheKey = cacheKey;
+        }
+        return cacheKey;
+    }
+
+    /**
+     * Returns the key identifying requests that may share one network call when
+     * {@link #shouldCoalesce()} is set. By default this is the request class, method and URL,
+     * so coalesced requests parse the same response into the same type. It is computed on the
+     * thread adding the request, so it leaves out the headers; a request whose response depends
+     * on them, such as on per-user authorization, must add what tells it apart.
+     *
+     * @return the coalescing key of this request
+     */
+    public String getCoalescingKey() {
+        return getClass().getName() + ":" + mMethod + ":" + mUrl;
+    }
+
+    /**
+     * Returns whether the response parsed for another request with the same cache key or
+     * coalescing key may be delivered to this request as is, instead of this request being
+     * performed on its own. By default requests of the same class share responses; override
+     * this if the parsed result also depends on other properties of the request.
+     *
+     * @param other The request the response was parsed for
+     * @return <code>true</code> if the response of <code>other</code> fits this request
+     */
+    public boolean canShareResponseOf(Request<?> other) {
+        return getClass() == other.getClass();
     }
 
     /**
@@ -403,10 +574,67 @@ public abstract class Request<T> implements Comparable<Request<T>> {
     }
 
     /**
-     * Mark this request as canceled.  No callback will be delivered.
+     * Mark this request as canceled.  No callback will be delivered. A transfer in flight is
+     * aborted on a background thread, so the rest of the response is not downloaded.
      */
     public void cancel() {
-        mCanceled = true;
+        Runnable abort;
+        synchronized (this) {
+            mCanceled = true;
+            abort = mTransferAbort;
+            mTransferAbort = null;
+        }
+        if (abort != null) {
+            // Closing a connection can block; keep that off the caller, usually the main thread.
+            ABORT_EXECUTOR.execute(abort);
+        }
+        RequestPromise<T> promise = mPromise;
+        if (promise != null) {
+            promise.onRequestCanceled();
+        }
+    }
+
+    /**
+     * Sets the promise completed with the outcome of this request. Used by
+     * {@link RequestQueue#addAsync(Request)}.
+     */
+    final void setPromise(RequestPromise<T> promise) {
+        mPromise = promise;
+    }
+
+    /**
+     * Completes the promise of this request, if any, with a response or error just delivered.
+     * Called by {@link ExecutorDelivery}, or by the {@link RequestQueue} for other deliveries.
+     */
+    @SuppressWarnings("unchecked")
+    final void completePromise(Response<?> response) {
+        RequestPromise<T> promise = mPromise;
+        if (promise == null) {
+            return;
+        }
+        if (response.isSuccess()) {
+            promise.succeed((T) response.result);
+        } else {
+            promise.fail(response.error);
+        }
+    }
+
+    /**
+     * Sets how to abort the transfer of this request if it is canceled while in flight. The
+     * {@link com.android.volley.toolbox.HttpStack}s set it when they open a connection, and
+     * the network clears it with null once the response has been read. If the request has been
+     * canceled already, the transfer is aborted right away.
+     *
+     * @param abort Aborts the transfer from any thread, or null if there is none in flight
+     */
+    public void setTransferAbort(Runnable abort) {
+        synchronized (this) {
+            if (abort == null || !mCanceled) {
+                mTransferAbort = abort;
+                return;
+            }
+        }
+        abort.run();
     }
 
     /**
@@ -600,6 +828,107 @@ public abstract class Request<T> implements Comparable<Request<T>> {
         return mShouldCache;
     }
 
+    /**
+     * Set whether or not this request may share one network call with identical requests that
+     * are in flight at the same time. Only applies to GET and HEAD requests that are not
+     * cached; cached requests are already deduplicated through the cache. Requests are
+     * identical when they have the same {@link #getCoalescingKey()}. All coalesced requests are
+     * delivered the same parsed response, or the same error.
+     *
+     * @param shouldCoalesce whether this request may be coalesced
+     * @return This Request object to allow for chaining.
+     */
+    public final Request<?> setShouldCoalesce(boolean shouldCoalesce) {
+        mShouldCoalesce = shouldCoalesce;
+        return this;
+    }
+
+    /**
+     * Returns true if this request may share a network call with identical requests.
+     *
+     * @return <code>true</code> if the request may be coalesced;
+     * <code>false</code> otherwise
+     */
+    public final boolean shouldCoalesce() {
+        return mShouldCoalesce;
+    }
+
+    /**
+     * Sets the executor this request's responses and errors are delivered on, instead of the
+     * queue's delivery thread, typically the main thread. Consumers that do not touch the UI
+     * can take their results on a thread of their own, or with
+     * {@link ExecutorDelivery#DIRECT_EXECUTOR} on the thread that produced them: the cache
+     * thread for cache hits, otherwise the network or parse thread. Listeners run there must
+     * be quick, as they hold up the dispatcher. Honored by {@link ExecutorDelivery}.
+     *
+     * @param executor the executor to deliver on, or null for the queue's delivery
+     * @return This Request object to allow for chaining.
+     */
+    public final Request<?> setDeliveryExecutor(Executor executor) {
+        mDeliveryExecutor = executor;
+        return this;
+    }
+
+    /**
+     * @return the executor this request is delivered on, or null if it uses the queue's
+     * delivery
+     */
+    public final Executor getDeliveryExecutor() {
+        return mDeliveryExecutor;
+    }
+
+    /**
+     * Sets the time after which this request is no longer worth performing. A request still
+     * waiting in a queue when its deadline passes is dropped and fails with a
+     * {@link DeadlineExceededError}; one already on the network is left to complete. Among
+     * requests of the same priority, the one with the earliest deadline is served first.
+     *
+     * @param deadlineMs the deadline in {@link android.os.SystemClock#elapsedRealtime()}
+     *                   milliseconds, or 0 for none
+     * @return This Request object to allow for chaining.
+     */
+    public final Request<?> setDeadline(long deadlineMs) {
+        if (deadlineMs < 0) {
+            throw new IllegalArgumentException("deadlineMs must not be negative");
+        }
+        mDeadlineMs = deadlineMs;
+        return this;
+    }
+
+    /**
+     * Returns the deadline of this request, 0 if it has none.
+     *
+     * @return the deadline in {@link android.os.SystemClock#elapsedRealtime()} milliseconds
+     */
+    public final long getDeadline() {
+        return mDeadlineMs;
+    }
+
+    /**
+     * Returns true if this request has a deadline and it has passed.
+     *
+     * @param nowMs the current time, from {@link android.os.SystemClock#elapsedRealtime()}
+     */
+    public final boolean isPastDeadline(long nowMs) {
+        return mDeadlineMs != 0 && nowMs >= mDeadlineMs;
+    }
+
+    /**
+     * Marks this request as a prefetch. Called by {@link RequestQueue#prefetch(Request)}.
+     */
+    final void markPrefetch() {
+        mPrefetch = true;
+    }
+
+    /**
+     * Returns true if this request was added through {@link RequestQueue#prefetch(Request)}.
+     * Prefetches are queued below {@link Priority#LOW} whatever {@link #getPriority()} says,
+     * and their responses are written to cache but never delivered.
+     */
+    public final boolean isPrefetch() {
+        return mPrefetch;
+    }
+
     /**
      * Priority values.  Requests will be processed from higher priorities to
      * lower priorities, in FIFO order.
@@ -628,7 +957,7 @@ public abstract class Request<T> implements Comparable<Request<T>> {
      * @return the timeout in ms
      */
     public final int getTimeoutMs() {
-        return mRetryPolicy.getCurrentTimeout();
+        return getRetryPolicy().getCurrentTimeout();
     }
 
     /**
@@ -648,6 +977,21 @@ public abstract class Request<T> implements Comparable<Request<T>> {
         mResponseDelivered = true;
     }
 
+    /**
+     * Marks the final response or error of this request as handed to the delivery, so its
+     * work is done even though it has not finished yet. Called by {@link RequestQueue}.
+     */
+    final void markResultPosted() {
+        mResultPosted = true;
+    }
+
+    /**
+     * @return whether the final response or error has been handed to the delivery
+     */
+    final boolean isResultPosted() {
+        return mResultPosted;
+    }
+
     /**
      * Returns true if this request has had a response delivered for it.
      *
@@ -726,18 +1070,30 @@ public abstract class Request<T> implements Comparable<Request<T>> {
                 + getPriority() + " " + mSequence;
     }
 
-    private static long sCounter;
+    /**
+     * Host recorded for URLs without one, so that they are only parsed once.
+     * Compared by identity, so it must not be interned.
+     */
+    private static final String NO_HOST = new String();
+
+    /**
+     * Serial number of the most recently created request.
+     */
+    private static final AtomicLong sSerial = new AtomicLong();
 
     /**
-     * sha1(Request:method:url:timestamp:counter)
+     * sha1(Request:method:url:timestamp:serial)
      *
-     * @param method http method
-     * @param url    http request url
+     * @param method    http method
+     * @param url       http request url
+     * @param createdMs when the request was created
+     * @param serial    serial number of the request
      * @return sha1 hash string
      */
-    private static String createIdentifier(final int method, final String url) {
+    private static String createIdentifier(final int method, final String url,
+            final long createdMs, final long serial) {
         return InternalUtils.sha1Hash("Request:" + method + ":" + url +
-                ":" + System.currentTimeMillis() + ":" + (sCounter++));
+                ":" + createdMs + ":" + serial);
     }
 
     public static boolean isFile(String url) {
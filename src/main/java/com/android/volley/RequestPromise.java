@@ -0,0 +1,382 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The eventual result of a request added with {@link RequestQueue#addAsync(Request)}, or of a
+ * computation chained onto one, that can be consumed without blocking a thread.
+ * <p>
+ * {@link #thenApply} and {@link #thenCompose} chain further work onto the result, run on the
+ * executor of the caller's choice, and {@link #whenComplete} observes the outcome. A promise
+ * completes with the first response delivered for its request, which for a soft-expired cache
+ * hit is the cached one, or fails with the error delivered, an exception thrown by the chained
+ * work, or a {@link TimeoutError} once its {@link #orTimeout timeout} passes.
+ * <p>
+ * Canceling a promise cancels the request it waits for, including the one a
+ * {@link #thenCompose} stage is waiting for at the time, and canceling the request cancels
+ * its promise. {@link #get()} is still there for callers that must block.
+ *
+ * @param <T> The type of the result
+ */
+public class RequestPromise<T> implements Future<T> {
+
+    /**
+     * Computes one value from another, for chaining work onto a promise.
+     */
+    public interface Function<I, O> {
+        O apply(I input) throws Exception;
+    }
+
+    /**
+     * Observes the outcome of a promise.
+     */
+    public interface Callback<T> {
+        void onSuccess(T result);
+
+        /**
+         * @param error The {@link VolleyError} of the request, the exception thrown by chained
+         *              work, or a {@link CancellationException}
+         */
+        void onFailure(Throwable error);
+    }
+
+    private static final int PENDING = 0;
+    private static final int SUCCEEDED = 1;
+    private static final int FAILED = 2;
+    private static final int CANCELED = 3;
+
+    /**
+     * Runs the timeouts of all promises.
+     */
+    private static ScheduledExecutorService sTimer;
+
+    private final CountDownLatch mDone = new CountDownLatch(1);
+
+    /**
+     * Callbacks waiting for the outcome, with their executors. Null once the promise is done.
+     * Guarded by this.
+     */
+    private List<Runnable> mCallbacks = new ArrayList<Runnable>();
+
+    private volatile int mState = PENDING;
+    private T mResult;
+    private Throwable mFailure;
+
+    /**
+     * The request this promise waits for, if any; canceled along with the promise.
+     */
+    private volatile Request<?> mRequest;
+
+    /**
+     * The promise this one waits for, if any; canceled along with this one.
+     */
+    private volatile RequestPromise<?> mUpstream;
+
+    RequestPromise() {
+    }
+
+    /**
+     * Makes this promise wait for the given request.
+     */
+    void setRequest(Request<?> request) {
+        mRequest = request;
+    }
+
+    /**
+     * Chains a computation onto the result of this promise.
+     *
+     * @param function Computes the result of the returned promise
+     * @param executor Runs the function
+     * @return a promise of the function's result, failing if this promise fails or the
+     * function throws
+     */
+    public <U> RequestPromise<U> thenApply(final Function<? super T, ? extends U> function,
+                                          final Executor executor) {
+        final RequestPromise<U> next = new RequestPromise<U>();
+        next.mUpstream = this;
+        addCallback(new Callback<T>() {
+            @Override
+            public void onSuccess(T result) {
+                try {
+                    next.succeed(function.apply(result));
+                } catch (Exception e) {
+                    next.fail(e);
+                }
+            }
+
+            @Override
+            public void onFailure(Throwable error) {
+                next.fail(error);
+            }
+        }, executor);
+        return next;
+    }
+
+    /**
+     * Chains another asynchronous step, such as a request depending on this result, onto
+     * this promise.
+     *
+     * @param function Starts the next step and returns its promise
+     * @param executor Runs the function
+     * @return a promise of the result of the next step
+     */
+    public <U> RequestPromise<U> thenCompose(
+            final Function<? super T, RequestPromise<U>> function, final Executor executor) {
+        final RequestPromise<U> next = new RequestPromise<U>();
+        next.mUpstream = this;
+        addCallback(new Callback<T>() {
+            @Override
+            public void onSuccess(T result) {
+                RequestPromise<U> step;
+                try {
+                    step = function.apply(result);
+                } catch (Exception e) {
+                    next.fail(e);
+                    return;
+                }
+                // Cancel the step from now on if the promise is canceled.
+                next.mUpstream = step;
+                if (next.isCancelled()) {
+                    step.cancel(false);
+                    return;
+                }
+                step.addCallback(new Callback<U>() {
+                    @Override
+                    public void onSuccess(U result) {
+                        next.succeed(result);
+                    }
+
+                    @Override
+                    public void onFailure(Throwable error) {
+                        next.fail(error);
+                    }
+                }, ExecutorDelivery.DIRECT_EXECUTOR);
+            }
+
+            @Override
+            public void onFailure(Throwable error) {
+                next.fail(error);
+            }
+        }, executor);
+        return next;
+    }
+
+    /**
+     * Calls the callback with the outcome of this promise once it is done.
+     *
+     * @param callback Receives the result or failure
+     * @param executor Runs the callback
+     * @return this promise
+     */
+    public RequestPromise<T> whenComplete(Callback<? super T> callback, Executor executor) {
+        addCallback(callback, executor);
+        return this;
+    }
+
+    /**
+     * Fails this promise with a {@link TimeoutError} and cancels what it waits for if it is not
+     * done within the given time.
+     *
+     * @return this promise
+     */
+    public RequestPromise<T> orTimeout(long timeout, TimeUnit unit) {
+        if (isDone()) {
+            return this;
+        }
+        final ScheduledFuture<?> timer = getTimer().schedule(new Runnable() {
+            @Override
+            public void run() {
+                complete(FAILED, null, new TimeoutError(), true);
+            }
+        }, timeout, unit);
+        addCallback(new Callback<T>() {
+            @Override
+            public void onSuccess(T result) {
+                timer.cancel(false);
+            }
+
+            @Override
+            public void onFailure(Throwable error) {
+                timer.cancel(false);
+            }
+        }, ExecutorDelivery.DIRECT_EXECUTOR);
+        return this;
+    }
+
+    /**
+     * Cancels this promise along with the request or promise it waits for.
+     *
+     * @param mayInterruptIfRunning Ignored; the request is canceled either way
+     * @return false if the promise was done already
+     */
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return complete(CANCELED, null, new CancellationException(), true);
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return mState == CANCELED;
+    }
+
+    @Override
+    public boolean isDone() {
+        return mState != PENDING;
+    }
+
+    @Override
+    public T get() throws InterruptedException, ExecutionException {
+        mDone.await();
+        return getResult();
+    }
+
+    @Override
+    public T get(long timeout, TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException {
+        if (!mDone.await(timeout, unit)) {
+            throw new TimeoutException();
+        }
+        return getResult();
+    }
+
+    /**
+     * Completes the promise with a result. Called on delivery of the request's response.
+     *
+     * @return false if the promise was done already
+     */
+    boolean succeed(T result) {
+        return complete(SUCCEEDED, result, null, false);
+    }
+
+    /**
+     * Fails the promise. Called on delivery of the request's error.
+     *
+     * @return false if the promise was done already
+     */
+    boolean fail(Throwable error) {
+        return complete(error instanceof CancellationException ? CANCELED : FAILED, null, error,
+                false);
+    }
+
+    /**
+     * Cancels the promise after its request was canceled.
+     */
+    void onRequestCanceled() {
+        complete(CANCELED, null, new CancellationException(), false);
+    }
+
+    private T getResult() throws ExecutionException {
+        switch (mState) {
+            case SUCCEEDED:
+                return mResult;
+            case CANCELED:
+                throw (CancellationException) new CancellationException().initCause(mFailure);
+            default:
+                throw new ExecutionException(mFailure);
+        }
+    }
+
+    private void cancelUpstream() {
+        Request<?> request = mRequest;
+        if (request != null) {
+            request.cancel();
+        }
+        RequestPromise<?> upstream = mUpstream;
+        if (upstream != null) {
+            upstream.cancel(false);
+        }
+    }
+
+    /**
+     * @param cancelUpstream Whether to cancel what this promise waits for, which is done before
+     *                       anyone waiting is told, so they find it canceled
+     */
+    private boolean complete(int state, T result, Throwable failure, boolean cancelUpstream) {
+        List<Runnable> callbacks;
+        synchronized (this) {
+            if (mState != PENDING) {
+                return false;
+            }
+            mResult = result;
+            mFailure = failure;
+            mState = state;
+            callbacks = mCallbacks;
+            mCallbacks = null;
+        }
+        if (cancelUpstream) {
+            cancelUpstream();
+        }
+        mDone.countDown();
+        for (Runnable callback : callbacks) {
+            callback.run();
+        }
+        return true;
+    }
+
+    private void addCallback(final Callback<? super T> callback, final Executor executor) {
+        Runnable notification = new Runnable() {
+            @Override
+            public void run() {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (mState == SUCCEEDED) {
+                            callback.onSuccess(mResult);
+                        } else {
+                            callback.onFailure(mFailure);
+                        }
+                    }
+                });
+            }
+        };
+        synchronized (this) {
+            if (mCallbacks != null) {
+                mCallbacks.add(notification);
+                return;
+            }
+        }
+        notification.run();
+    }
+
+    private static synchronized ScheduledExecutorService getTimer() {
+        if (sTimer == null) {
+            sTimer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "Volley-PromiseTimer");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return sTimer;
+    }
+}
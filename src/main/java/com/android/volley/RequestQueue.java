@@ -20,15 +20,20 @@ import android.os.Handler;
 import android.os.Looper;
 
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
-import java.util.LinkedList;
 import java.util.List;
-import java.util.Map;
-import java.util.Queue;
 import java.util.Set;
-import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * A request dispatch queue with a thread pool of dispatchers.
@@ -51,6 +56,44 @@ public class RequestQueue {
         public void onRequestFinished(Request<T> request);
     }
 
+    /**
+     * What {@link #add(Request)} does with a request while the queues are at capacity.
+     *
+     * @see #setQueueCapacity(int, RejectionPolicy)
+     */
+    public enum RejectionPolicy {
+        /**
+         * Fails the request being added with a {@link QueueFullError}.
+         */
+        REJECT_NEWEST,
+        /**
+         * Drops the most recently added of the lowest priority requests waiting, failing it with
+         * a {@link QueueFullError}, if its priority is lower than that of the request being
+         * added. Otherwise fails the request being added.
+         */
+        DROP_LOWEST_PRIORITY,
+        /**
+         * Blocks the caller of {@link #add(Request)} until a request leaves the queues. Must not
+         * be used when adding requests from the main thread.
+         */
+        BLOCK
+    }
+
+    /**
+     * Value of {@link #getQueueCapacity()} meaning there is no limit.
+     */
+    public static final int UNBOUNDED = 0;
+
+    /**
+     * Default number of prefetches performed at once.
+     */
+    public static final int DEFAULT_MAX_PREFETCHES_IN_FLIGHT = 2;
+
+    /**
+     * Default number of bytes prefetches may download before further ones are refused.
+     */
+    public static final long DEFAULT_MAX_PREFETCH_BYTES = 2 * 1024 * 1024;
+
     /**
      * Used for generating monotonically-increasing sequence numbers for requests.
      */
@@ -62,37 +105,113 @@ public class RequestQueue {
      * <ul>
      * <li>containsKey(cacheKey) indicates that there is a request in flight for the given cache
      * key.</li>
-     * <li>get(cacheKey) returns waiting requests for the given cache key. The in flight request
-     * is <em>not</em> contained in that list. Is null if no requests are staged.</li>
+     * <li>get(cacheKey) returns the requests waiting for the given cache key. The in flight
+     * request is <em>not</em> contained in it.</li>
      * </ul>
      */
-    private final Map<String, Queue<Request<?>>> mWaitingRequests =
-            new HashMap<String, Queue<Request<?>>>();
+    private final ConcurrentMap<String, StagedRequests> mWaitingRequests =
+            new ConcurrentHashMap<String, StagedRequests>();
+
+    /**
+     * Staging area for uncacheable requests coalesced onto an identical request in flight,
+     * keyed by {@link Request#getCoalescingKey()}.
+     */
+    private final ConcurrentMap<String, StagedRequests> mCoalescedRequests =
+            new ConcurrentHashMap<String, StagedRequests>();
+
+    /**
+     * The requests in flight on behalf of the duplicates staged behind them, mapped to their
+     * stage in {@link #mWaitingRequests} or {@link #mCoalescedRequests}.
+     */
+    private final ConcurrentMap<Request<?>, StagedRequests> mPrimaryRequests =
+            new ConcurrentHashMap<Request<?>, StagedRequests>();
+
+    /**
+     * Whether staged duplicates are re-issued, rather than handed the same error, when the
+     * request in flight for them fails.
+     */
+    private volatile boolean mReissueDuplicatesOnError = false;
 
     /**
      * The set of all requests currently being processed by this RequestQueue. A Request
      * will be in this set if it is waiting in any queue or currently being processed by
      * any dispatcher.
      */
-    private final Set<Request<?>> mCurrentRequests = new HashSet<Request<?>>();
+    private final Set<Request<?>> mCurrentRequests = new ConcurrentHashSet<Request<?>>();
+
+    /**
+     * Index of the current requests by tag, so cancelling a tag only touches its own requests.
+     * Keys are compared with equals(), so lookups still check the tag by identity.
+     */
+    private final ConcurrentMap<Object, TaggedRequests> mTaggedRequests =
+            new ConcurrentHashMap<Object, TaggedRequests>();
+
+    /**
+     * Given whenever a request leaves the cache or network queue, for callers blocked on a
+     * full queue.
+     */
+    private final DequeueSignal mDequeueSignal = new DequeueSignal();
 
     /**
      * The cache triage queue.
      */
-    private final PriorityBlockingQueue<Request<?>> mCacheQueue =
-            new PriorityBlockingQueue<Request<?>>();
+    private final AgingPriorityBlockingQueue mCacheQueue =
+            new AgingPriorityBlockingQueue(mDequeueSignal);
 
     /**
      * The queue of requests that are actually going out to the network.
      */
-    private final PriorityBlockingQueue<Request<?>> mNetworkQueue =
-            new PriorityBlockingQueue<Request<?>>();
+    private final PerHostBlockingQueue mNetworkQueue =
+            new PerHostBlockingQueue(PerHostBlockingQueue.UNLIMITED, mDequeueSignal);
+
+    /**
+     * Requests set aside until their delayed retry is due.
+     */
+    private final DelayQueue<RetryDispatcher.DelayedRetry> mRetryQueue =
+            new DelayQueue<RetryDispatcher.DelayedRetry>();
+
+    /**
+     * Maximum number of requests waiting in the cache and network queues together, or
+     * {@link #UNBOUNDED}.
+     */
+    private volatile int mQueueCapacity = UNBOUNDED;
+
+    /**
+     * What to do with requests added while the queues are at capacity.
+     */
+    private volatile RejectionPolicy mRejectionPolicy = RejectionPolicy.REJECT_NEWEST;
+
+    /**
+     * Number of requests failed on {@link #add(Request)} because the queues were full.
+     */
+    private final AtomicLong mRejectedCount = new AtomicLong();
+
+    /**
+     * Number of waiting requests dropped to make room for higher priority ones.
+     */
+    private final AtomicLong mDroppedCount = new AtomicLong();
+
+    /**
+     * Number of calls to {@link #add(Request)} that blocked because the queues were full.
+     */
+    private final AtomicLong mBlockedCount = new AtomicLong();
+
+    /**
+     * Prefetches waiting for spare capacity, and the limits they are held to.
+     */
+    private final PrefetchBudget mPrefetchBudget =
+            new PrefetchBudget(DEFAULT_MAX_PREFETCHES_IN_FLIGHT, DEFAULT_MAX_PREFETCH_BYTES);
 
     /**
      * Number of network request dispatcher threads to start.
      */
     private static final int DEFAULT_NETWORK_THREAD_POOL_SIZE = 4;
 
+    /**
+     * Number of cache triage dispatcher threads to start.
+     */
+    private static final int DEFAULT_CACHE_THREAD_POOL_SIZE = 1;
+
     /**
      * Cache interface for retrieving and storing responses.
      */
@@ -109,17 +228,86 @@ public class RequestQueue {
     private final ResponseDelivery mDelivery;
 
     /**
-     * The network dispatchers.
+     * Delivery handed to the dispatchers, which also delivers to coalesced requests.
+     */
+    private final ResponseDelivery mFanOutDelivery = new FanOutDelivery();
+
+    /**
+     * Decides which threads perform the requests on the network queue.
+     */
+    private final NetworkDispatchStrategy mDispatchStrategy;
+
+    /**
+     * Stages network responses are parsed and cached on, from the next {@link #start()}.
+     */
+    private volatile ResponsePipeline mResponsePipeline;
+
+    /**
+     * The pipeline started by the last {@link #start()}, if any.
+     */
+    private ResponsePipeline mStartedPipeline;
+
+    /**
+     * Number of cache dispatchers created on the next {@link #start()}.
+     */
+    private volatile int mCacheThreadPoolSize = DEFAULT_CACHE_THREAD_POOL_SIZE;
+
+    /**
+     * The cache dispatchers.
+     */
+    private CacheDispatcher[] mCacheDispatchers = new CacheDispatcher[0];
+
+    /**
+     * The retry dispatcher, or null when stopped.
+     */
+    private RetryDispatcher mRetryDispatcher;
+
+    private final List<RequestFinishedListener> mFinishedListeners =
+            new CopyOnWriteArrayList<RequestFinishedListener>();
+
+    /**
+     * The requests a shutdown is waiting for, or null while the queue accepts requests.
+     */
+    private volatile Drain mDrain;
+
+    /**
+     * Guards {@link #mTerminated}.
      */
-    private NetworkDispatcher[] mDispatchers;
+    private final Object mShutdownLock = new Object();
 
     /**
-     * The cache dispatcher.
+     * Whether the last shutdown has stopped the dispatchers. Guarded by {@link #mShutdownLock}.
+     */
+    private boolean mTerminated = false;
+
+    /**
+     * Creates the worker pool. Processing will not begin until {@link #start()} is called.
+     *
+     * @param cache            A Cache to use for persisting responses to disk
+     * @param network          A Network interface for performing HTTP requests
+     * @param dispatchStrategy Decides which threads perform network requests
+     * @param delivery         A ResponseDelivery interface for posting responses and errors
      */
-    private CacheDispatcher mCacheDispatcher;
+    public RequestQueue(Cache cache, Network network, NetworkDispatchStrategy dispatchStrategy,
+                        ResponseDelivery delivery) {
+        mCache = cache;
+        mNetwork = network;
+        mDispatchStrategy = dispatchStrategy;
+        // An ExecutorDelivery completes promises itself, right after calling the listeners.
+        mDelivery = delivery instanceof ExecutorDelivery ? delivery : new PromiseDelivery(delivery);
+    }
 
-    private List<RequestFinishedListener> mFinishedListeners =
-            new ArrayList<RequestFinishedListener>();
+    /**
+     * Creates the worker pool. Processing will not begin until {@link #start()} is called.
+     *
+     * @param cache            A Cache to use for persisting responses to disk
+     * @param network          A Network interface for performing HTTP requests
+     * @param dispatchStrategy Decides which threads perform network requests
+     */
+    public RequestQueue(Cache cache, Network network, NetworkDispatchStrategy dispatchStrategy) {
+        this(cache, network, dispatchStrategy,
+                new ExecutorDelivery(new Handler(Looper.getMainLooper())));
+    }
 
     /**
      * Creates the worker pool. Processing will not begin until {@link #start()} is called.
@@ -131,10 +319,7 @@ public class RequestQueue {
      */
     public RequestQueue(Cache cache, Network network, int threadPoolSize,
                         ResponseDelivery delivery) {
-        mCache = cache;
-        mNetwork = network;
-        mDispatchers = new NetworkDispatcher[threadPoolSize];
-        mDelivery = delivery;
+        this(cache, network, new FixedThreadDispatchStrategy(threadPoolSize), delivery);
     }
 
     /**
@@ -145,8 +330,7 @@ public class RequestQueue {
      * @param threadPoolSize Number of network dispatcher threads to create
      */
     public RequestQueue(Cache cache, Network network, int threadPoolSize) {
-        this(cache, network, threadPoolSize,
-                new ExecutorDelivery(new Handler(Looper.getMainLooper())));
+        this(cache, network, new FixedThreadDispatchStrategy(threadPoolSize));
     }
 
     /**
@@ -164,33 +348,137 @@ public class RequestQueue {
      */
     public void start() {
         stop();  // Make sure any currently running dispatchers are stopped.
-        // Create the cache dispatcher and start it.
-        mCacheDispatcher = new CacheDispatcher(mCacheQueue, mNetworkQueue, mCache, mDelivery);
-        mCacheDispatcher.start();
+        synchronized (mShutdownLock) {
+            // Accept requests again after a shutdown.
+            mDrain = null;
+            mTerminated = false;
+        }
+        // Create the cache dispatchers and start them. They share one initializer so the cache
+        // is initialized exactly once before any of them looks anything up.
+        CacheDispatcher.CacheInitializer initializer = new CacheDispatcher.CacheInitializer(mCache);
+        mCacheDispatchers = new CacheDispatcher[mCacheThreadPoolSize];
+        for (int i = 0; i < mCacheDispatchers.length; i++) {
+            mCacheDispatchers[i] = new CacheDispatcher(mCacheQueue, mNetworkQueue, mCache,
+                    mFanOutDelivery, initializer);
+            mCacheDispatchers[i].start();
+        }
 
-        // Create network dispatchers (and corresponding threads) up to the pool size.
-        for (int i = 0; i < mDispatchers.length; i++) {
-            NetworkDispatcher networkDispatcher = new NetworkDispatcher(mNetworkQueue, mNetwork,
-                    mCache, mDelivery);
-            mDispatchers[i] = networkDispatcher;
-            networkDispatcher.start();
+        mRetryDispatcher = new RetryDispatcher(mRetryQueue, mNetworkQueue);
+        mRetryDispatcher.start();
+
+        // Start the response stages, then dispatching network requests.
+        mStartedPipeline = mResponsePipeline;
+        if (mStartedPipeline != null) {
+            mStartedPipeline.start();
         }
+        mDispatchStrategy.start(mNetworkQueue, mNetwork, mCache, mFanOutDelivery,
+                mStartedPipeline);
     }
 
     /**
-     * Stops the cache and network dispatchers.
+     * Stops the cache and network dispatchers right away. Use
+     * {@link #shutdown(long, TimeUnit)} to let the requests already added complete first.
      */
     public void stop() {
-        if (mCacheDispatcher != null) {
-            mCacheDispatcher.quit();
+        for (CacheDispatcher cacheDispatcher : mCacheDispatchers) {
+            cacheDispatcher.quit();
+        }
+        if (mRetryDispatcher != null) {
+            mRetryDispatcher.quit();
+            mRetryDispatcher = null;
+        }
+        mDispatchStrategy.stop();
+        if (mStartedPipeline != null) {
+            mStartedPipeline.stop();
+            mStartedPipeline = null;
+        }
+    }
+
+    /**
+     * Stops accepting requests and waits up to the given time for the requests already added to
+     * be performed, cached and posted, including those still waiting in the queues. The
+     * dispatchers are then stopped and the requests left over are canceled and returned.
+     * Requests added from now on fail with a {@link QueueFullError}, until the next
+     * {@link #start()}.
+     * <p>
+     * Only waits for responses to be handed to the {@link ResponseDelivery}, not for them to be
+     * delivered, so it may be called on the delivery thread; it does block for up to the given
+     * time, though.
+     *
+     * @param timeout How long to wait for requests to complete
+     * @param unit    Unit of <code>timeout</code>
+     * @return the requests that were abandoned and canceled, empty if all of them completed
+     */
+    public List<Request<?>> shutdown(long timeout, TimeUnit unit) {
+        Drain drain = new Drain();
+        synchronized (mShutdownLock) {
+            if (mDrain != null) {
+                // Another shutdown is under way or done; it reports the abandoned requests.
+                return Collections.emptyList();
+            }
+            mDrain = drain;
+        }
+        cancelPrefetches();
+        for (Request<?> request : mCurrentRequests) {
+            drain.track(request);
+            // Track first and check after, so a request completing meanwhile is not missed.
+            if (request.isResultPosted() || !mCurrentRequests.contains(request)) {
+                drain.resolve(request);
+            }
+        }
+        try {
+            drain.await(unit.toNanos(timeout));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        // Cancel the stragglers before stopping, so none is delivered the interruption.
+        List<Request<?>> abandoned = drain.getPending();
+        for (Request<?> request : abandoned) {
+            request.cancel();
+        }
+        stop();
+        if (!abandoned.isEmpty()) {
+            VolleyLog.d("Shutdown abandoned %d requests", abandoned.size());
         }
-        for (int i = 0; i < mDispatchers.length; i++) {
-            if (mDispatchers[i] != null) {
-                mDispatchers[i].quit();
+        synchronized (mShutdownLock) {
+            mTerminated = true;
+            mShutdownLock.notifyAll();
+        }
+        return abandoned;
+    }
+
+    /**
+     * Blocks until a {@link #shutdown(long, TimeUnit)} has stopped the dispatchers, or the
+     * timeout elapses.
+     *
+     * @param timeout How long to wait
+     * @param unit    Unit of <code>timeout</code>
+     * @return true if the queue has terminated, false if the timeout elapsed first
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        long remainingNs = unit.toNanos(timeout);
+        long deadlineNs = System.nanoTime() + remainingNs;
+        synchronized (mShutdownLock) {
+            while (!mTerminated) {
+                if (remainingNs <= 0) {
+                    return false;
+                }
+                TimeUnit.NANOSECONDS.timedWait(mShutdownLock, remainingNs);
+                remainingNs = deadlineNs - System.nanoTime();
             }
+            return true;
         }
     }
 
+    /**
+     * @return whether the queue has stopped accepting requests because of a
+     * {@link #shutdown(long, TimeUnit)}
+     */
+    public boolean isShutdown() {
+        return mDrain != null;
+    }
+
     /**
      * Gets a sequence number.
      *
@@ -200,6 +488,284 @@ public class RequestQueue {
         return mSequenceGenerator.incrementAndGet();
     }
 
+    /**
+     * Sets how many threads resolve requests from cache, so cache hits are read and parsed in
+     * parallel. Takes effect on the next {@link #start()}.
+     *
+     * @param cacheThreadPoolSize Number of cache dispatcher threads to create, at least 1
+     */
+    public void setCacheThreadPoolSize(int cacheThreadPoolSize) {
+        if (cacheThreadPoolSize < 1) {
+            throw new IllegalArgumentException("cacheThreadPoolSize must be at least 1");
+        }
+        mCacheThreadPoolSize = cacheThreadPoolSize;
+    }
+
+    /**
+     * @return the number of cache dispatcher threads created on {@link #start()}
+     */
+    public int getCacheThreadPoolSize() {
+        return mCacheThreadPoolSize;
+    }
+
+    /**
+     * Hands network responses to the given stages for parsing and caching, so network threads
+     * are free for the next request as soon as a response has been read. Takes effect on the
+     * next {@link #start()}; the queue starts and stops the pipeline along with itself.
+     *
+     * @param pipeline The response stages, or null to parse and cache on the network threads
+     */
+    public void setResponsePipeline(ResponsePipeline pipeline) {
+        mResponsePipeline = pipeline;
+    }
+
+    /**
+     * @return the response stages set by {@link #setResponsePipeline(ResponsePipeline)}, or null
+     */
+    public ResponsePipeline getResponsePipeline() {
+        return mResponsePipeline;
+    }
+
+    /**
+     * @return the number of requests waiting for cache triage
+     */
+    public int getCacheQueueDepth() {
+        return mCacheQueue.size();
+    }
+
+    /**
+     * @return the number of requests waiting to go out to the network
+     */
+    public int getNetworkQueueDepth() {
+        return mNetworkQueue.size();
+    }
+
+    /**
+     * @return the number of requests set aside until their delayed retry is due
+     */
+    public int getDelayedRetryCount() {
+        return mRetryQueue.size();
+    }
+
+    /**
+     * Sets a request aside and sends it back to the network once the delay has passed.
+     * Called by the network dispatchers for a {@link RetryLaterError}.
+     *
+     * @param request The request to retry
+     * @param delayMs How long to wait before the retry
+     */
+    void retryLater(Request<?> request, long delayMs) {
+        mRetryQueue.add(new RetryDispatcher.DelayedRetry(request, delayMs));
+    }
+
+    /**
+     * Limits the number of requests waiting in the cache and network queues together, so a
+     * runaway producer cannot pile up requests without bound. Requests staged behind an
+     * identical request in flight count as well when they are added. Requests already admitted
+     * are never refused when moving from the cache queue to the network queue, and concurrent
+     * calls to {@link #add(Request)} may overshoot the limit by the number of threads adding.
+     *
+     * @param capacity Maximum number of waiting requests, or {@link #UNBOUNDED}
+     * @param policy   What to do with requests added while the queues are full
+     */
+    public void setQueueCapacity(int capacity, RejectionPolicy policy) {
+        if (capacity < 0) {
+            throw new IllegalArgumentException("capacity must not be negative");
+        }
+        if (policy == null) {
+            throw new IllegalArgumentException("policy must not be null");
+        }
+        mRejectionPolicy = policy;
+        mQueueCapacity = capacity;
+        // Raising the limit or changing the policy may release blocked callers.
+        mDequeueSignal.signalAll();
+    }
+
+    /**
+     * @return the maximum number of waiting requests, or {@link #UNBOUNDED}
+     */
+    public int getQueueCapacity() {
+        return mQueueCapacity;
+    }
+
+    /**
+     * @return what is done with requests added while the queues are full
+     */
+    public RejectionPolicy getRejectionPolicy() {
+        return mRejectionPolicy;
+    }
+
+    /**
+     * @return the number of requests failed on {@link #add(Request)} because the queues were
+     * full
+     */
+    public long getRejectedCount() {
+        return mRejectedCount.get();
+    }
+
+    /**
+     * @return the number of waiting requests dropped to make room for higher priority ones
+     */
+    public long getDroppedCount() {
+        return mDroppedCount.get();
+    }
+
+    /**
+     * @return the number of calls to {@link #add(Request)} that blocked because the queues were
+     * full
+     */
+    public long getBlockedCount() {
+        return mBlockedCount.get();
+    }
+
+    /**
+     * Raises the effective priority of requests with the time they wait in the cache and
+     * network queues, so lower priority requests are not starved. Applies to requests queued
+     * from now on.
+     *
+     * @param aging The aging policy, or null for strict priority order
+     */
+    public void setPriorityAging(PriorityAging aging) {
+        mCacheQueue.setPriorityAging(aging);
+        mNetworkQueue.setPriorityAging(aging);
+    }
+
+    /**
+     * @return the aging policy, or null for strict priority order
+     */
+    public PriorityAging getPriorityAging() {
+        return mNetworkQueue.getPriorityAging();
+    }
+
+    /**
+     * @return how long requests of each priority waited for cache triage
+     */
+    public QueueWaitStats getCacheQueueWaitStats() {
+        return mCacheQueue.getWaitStats();
+    }
+
+    /**
+     * @return how long requests of each priority waited to go out to the network
+     */
+    public QueueWaitStats getNetworkQueueWaitStats() {
+        return mNetworkQueue.getWaitStats();
+    }
+
+    /**
+     * Limits how many requests to the same host may be performed at once. Requests for a host
+     * at its limit wait in the network queue without holding up requests to other hosts, and
+     * hosts with waiting requests of equal priority are served round-robin.
+     *
+     * @param maxRequestsPerHost The maximum number of concurrent requests per host, or
+     *                           {@link PerHostBlockingQueue#UNLIMITED} for no limit
+     */
+    public void setMaxRequestsPerHost(int maxRequestsPerHost) {
+        mNetworkQueue.setMaxRequestsPerHost(maxRequestsPerHost);
+    }
+
+    /**
+     * @return the maximum number of concurrent requests per host, or
+     * {@link PerHostBlockingQueue#UNLIMITED}
+     */
+    public int getMaxRequestsPerHost() {
+        return mNetworkQueue.getMaxRequestsPerHost();
+    }
+
+    /**
+     * Warms the cache with the given request, in capacity the queue has to spare. The request
+     * waits outside the queues until nothing else is waiting in them and fewer than the
+     * {@link #setPrefetchBudget(int, long) maximum} prefetches are in flight; it is then queued
+     * below {@link Request.Priority#LOW}. Its response is written to cache and never
+     * delivered, nor are errors.
+     * <p>
+     * A request added for the same cache key takes over: a prefetch still waiting is dropped,
+     * and one in flight is performed for both, unless no dispatcher has taken it yet, in which
+     * case it is dropped too. Prefetches of keys already in flight are dropped as well.
+     * {@link com.android.volley.toolbox.PrefetchRequest} fetches a URL without parsing it.
+     *
+     * @param request A cacheable request
+     * @return false if the request was refused, because it is not cacheable, the byte budget
+     * is spent or the queue is shut down
+     */
+    public boolean prefetch(Request<?> request) {
+        if (!request.shouldCache() || mDrain != null) {
+            return false;
+        }
+        request.markPrefetch();
+        if (!mPrefetchBudget.offer(request)) {
+            return false;
+        }
+        releasePrefetches();
+        return true;
+    }
+
+    /**
+     * Sets the limits prefetches are held to and starts a new byte budget.
+     *
+     * @param maxInFlight Number of prefetches performed at once
+     * @param maxBytes    Number of bytes prefetches may download before further ones are
+     *                    refused
+     */
+    public void setPrefetchBudget(int maxInFlight, long maxBytes) {
+        mPrefetchBudget.reset(maxInFlight, maxBytes);
+        releasePrefetches();
+    }
+
+    /**
+     * @return the number of bytes downloaded by prefetches since the budget was last set
+     */
+    public long getPrefetchedBytes() {
+        return mPrefetchBudget.getBytes();
+    }
+
+    /**
+     * @return the number of prefetches waiting for spare capacity
+     */
+    public int getWaitingPrefetchCount() {
+        return mPrefetchBudget.getWaitingCount();
+    }
+
+    /**
+     * Drops the prefetches waiting for spare capacity and cancels those in flight.
+     */
+    public void cancelPrefetches() {
+        for (Request<?> request : mPrefetchBudget.clear()) {
+            request.cancel();
+        }
+    }
+
+    /**
+     * Counts bytes downloaded by a prefetch against the budget. Called by
+     * {@link NetworkDispatcher}.
+     */
+    void onPrefetchTransferred(long bytes) {
+        mPrefetchBudget.onTransferred(bytes);
+    }
+
+    /**
+     * Queues the waiting prefetches the budget allows, if nothing else is waiting.
+     */
+    private void releasePrefetches() {
+        if (!mPrefetchBudget.isActive() || mDrain != null || getWaitingCount() > 0) {
+            return;
+        }
+        for (Request<?> request : mPrefetchBudget.release(mWaitingRequests.keySet())) {
+            add(request);
+        }
+    }
+
+    /**
+     * Lets a request that is not a prefetch take over from the prefetches of its cache key:
+     * waiting ones are dropped, and one in flight that no dispatcher has taken yet is pulled
+     * from the queues and finished, which re-issues the request staged behind it.
+     */
+    private void supersedePrefetch(String cacheKey) {
+        Request<?> prefetch = mPrefetchBudget.supersede(cacheKey);
+        if (prefetch != null && (mCacheQueue.remove(prefetch) || mNetworkQueue.remove(prefetch))) {
+            prefetch.finish("prefetch-superseded");
+        }
+    }
+
     /**
      * Gets the {@link Cache} instance being used.
      *
@@ -223,18 +789,16 @@ public class RequestQueue {
      * @param filter The filtering function to use
      */
     public void cancelAll(RequestFilter filter) {
-        synchronized (mCurrentRequests) {
-            for (Request<?> request : mCurrentRequests) {
-                if (filter.apply(request)) {
-                    request.cancel();
-                }
+        for (Request<?> request : mCurrentRequests) {
+            if (filter.apply(request)) {
+                request.cancel();
             }
         }
     }
 
     /**
      * Cancels all requests in this queue with the given tag. Tag must be non-null
-     * and equality is by identity.
+     * and equality is by identity. Only the requests carrying the tag are visited.
      *
      * @param tag The request tag
      */
@@ -242,12 +806,15 @@ public class RequestQueue {
         if (tag == null) {
             throw new IllegalArgumentException("Cannot cancelAll with a null tag");
         }
-        cancelAll(new RequestFilter() {
-            @Override
-            public boolean apply(Request<?> request) {
-                return request.getTag() == tag;
+        TaggedRequests taggedRequests = mTaggedRequests.get(tag);
+        if (taggedRequests == null) {
+            return;
+        }
+        for (Request<?> request : taggedRequests.snapshot()) {
+            if (request.getTag() == tag) {
+                request.cancel();
             }
-        });
+        }
     }
 
     /**
@@ -260,50 +827,260 @@ public class RequestQueue {
     public <T> Request<T> add(Request<T> request) {
         // Tag the request as belonging to this queue and add it to the set of current requests.
         request.setRequestQueue(this);
-        synchronized (mCurrentRequests) {
-            mCurrentRequests.add(request);
-        }
+        mCurrentRequests.add(request);
+        indexTag(request, request.getTag());
 
         // Process requests in the order they are added.
         request.setSequence(getSequenceNumber());
         request.addMarker("add-to-queue");
 
-        // If the request is uncacheable, skip the cache queue and go straight to the network.
-        if (!request.shouldCache()) {
-            mNetworkQueue.add(request);
+        // Make room for the request, or turn it away, if the queues are full.
+        if (!admit(request)) {
             return request;
         }
 
+        BlockingQueue<Request<?>> queue = route(request);
+        if (queue != null) {
+            queue.add(request);
+        }
+        return request;
+    }
+
+    /**
+     * Adds a Request to the dispatch queue and returns a promise of its outcome, for callers
+     * that would rather chain work onto it than block on a
+     * {@link com.android.volley.toolbox.RequestFuture}. The request's listeners are still
+     * called; with an {@link ExecutorDelivery} the promise completes right after them, with any
+     * other {@link ResponseDelivery} once the response is posted. Canceling the promise cancels
+     * the request.
+     *
+     * @param <T>     The type of parsed response this request expects.
+     * @param request The request to service
+     * @return a promise completed with the response or error delivered for the request
+     */
+    public <T> RequestPromise<T> addAsync(Request<T> request) {
+        RequestPromise<T> promise = new RequestPromise<T>();
+        promise.setRequest(request);
+        request.setPromise(promise);
+        add(request);
+        return promise;
+    }
+
+    /**
+     * Adds a batch of requests to the dispatch queue. Equivalent to calling {@link #add(Request)}
+     * for each request in iteration order, but registers the batch in one pass and puts it on
+     * the cache and network queues with a single wakeup of the dispatchers each.
+     * <p>
+     * While a {@link #setQueueCapacity(int, RejectionPolicy) capacity} is set or the queue is
+     * shut down, requests are admitted one by one, exactly as by {@link #add(Request)}.
+     *
+     * @param requests The requests to service
+     */
+    public void addAll(Collection<? extends Request<?>> requests) {
+        if (mQueueCapacity != UNBOUNDED || mDrain != null) {
+            for (Request<?> request : requests) {
+                add(request);
+            }
+            return;
+        }
+        List<Request<?>> batch = new ArrayList<Request<?>>(requests);
+        if (batch.isEmpty()) {
+            return;
+        }
+        // Reserve consecutive sequence numbers, so the batch keeps its order.
+        int sequence = mSequenceGenerator.getAndAdd(batch.size());
+        for (Request<?> request : batch) {
+            request.setRequestQueue(this);
+            mCurrentRequests.add(request);
+            indexTag(request, request.getTag());
+            request.setSequence(++sequence);
+            request.addMarker("add-to-queue");
+        }
+
+        List<Request<?>> toCache = new ArrayList<Request<?>>(batch.size());
+        List<Request<?>> toNetwork = new ArrayList<Request<?>>();
+        for (Request<?> request : batch) {
+            BlockingQueue<Request<?>> queue = route(request);
+            if (queue == mCacheQueue) {
+                toCache.add(request);
+            } else if (queue != null) {
+                toNetwork.add(request);
+            }
+        }
+        mCacheQueue.offerAll(toCache);
+        mNetworkQueue.offerAll(toNetwork);
+    }
+
+    /**
+     * Stages the request behind an identical request in flight, if there is one, or claims its
+     * key so that later duplicates stage behind it.
+     *
+     * @return the queue the request must be put on, or null if it was staged
+     */
+    private BlockingQueue<Request<?>> route(Request<?> request) {
+        // If the request is uncacheable, skip the cache queue and go straight to the network,
+        // unless an identical request already on its way there can answer for it.
+        if (!request.shouldCache()) {
+            return coalesce(request) ? null : mNetworkQueue;
+        }
+
         // Insert request into stage if there's already a request with the same cache key in flight.
-        synchronized (mWaitingRequests) {
-            String cacheKey = request.getCacheKey();
-            if (mWaitingRequests.containsKey(cacheKey)) {
-                // There is already a request in flight. Queue up.
-                Queue<Request<?>> stagedRequests = mWaitingRequests.get(cacheKey);
-                if (stagedRequests == null) {
-                    stagedRequests = new LinkedList<Request<?>>();
+        String cacheKey = request.getCacheKey();
+        boolean superseding = !request.isPrefetch() && mPrefetchBudget.isActive();
+        while (true) {
+            StagedRequests stagedRequests = mWaitingRequests.get(cacheKey);
+            if (stagedRequests == null) {
+                // Claim the cacheKey, indicating there is now a request in flight.
+                StagedRequests created = new StagedRequests(cacheKey, mWaitingRequests);
+                if (mWaitingRequests.putIfAbsent(cacheKey, created) == null) {
+                    mPrimaryRequests.put(request, created);
+                    if (superseding) {
+                        mPrefetchBudget.supersede(cacheKey);
+                    }
+                    return mCacheQueue;
                 }
-                stagedRequests.add(request);
-                mWaitingRequests.put(cacheKey, stagedRequests);
+            } else if (stagedRequests.stage(request)) {
+                // There is already a request in flight. Queue up.
                 if (VolleyLog.DEBUG) {
                     VolleyLog.v("Request for cacheKey=%s is in flight, putting on hold.", cacheKey);
                 }
-            } else {
-                // Insert 'null' queue for this cacheKey, indicating there is now a request in
-                // flight.
-                mWaitingRequests.put(cacheKey, null);
-                mCacheQueue.add(request);
+                if (superseding) {
+                    // Piggyback on a prefetch in flight, or take over if it has not started.
+                    supersedePrefetch(cacheKey);
+                }
+                return null;
+            }
+            // Lost a race with another add() or with finish() releasing the stage; try again.
+        }
+    }
+
+    /**
+     * Applies the rejection policy if the queues are at capacity.
+     *
+     * @return whether the request may go on to be queued; if not, it has been failed
+     */
+    private boolean admit(Request<?> request) {
+        if (mDrain != null) {
+            reject(request, "queue-shut-down-rejected");
+            return false;
+        }
+        int capacity = mQueueCapacity;
+        if (capacity == UNBOUNDED || getWaitingCount() < capacity) {
+            return true;
+        }
+        RejectionPolicy policy = mRejectionPolicy;
+        if (policy == RejectionPolicy.BLOCK) {
+            if (awaitCapacity(request)) {
+                return true;
+            }
+        } else if (policy == RejectionPolicy.DROP_LOWEST_PRIORITY) {
+            if (dropLowerPriority(request, capacity)) {
+                return true;
+            }
+        }
+        reject(request, "queue-full-rejected");
+        return false;
+    }
+
+    private void reject(Request<?> request, String marker) {
+        mRejectedCount.incrementAndGet();
+        if (request.isPrefetch()) {
+            request.finish(marker);
+            return;
+        }
+        request.addMarker(marker);
+        mDelivery.postError(request, new QueueFullError());
+    }
+
+    /**
+     * Blocks until the queues have room, the capacity is lifted or the policy changes.
+     *
+     * @return false if interrupted while waiting
+     */
+    private boolean awaitCapacity(Request<?> request) {
+        mBlockedCount.incrementAndGet();
+        request.addMarker("queue-full-blocked");
+        mDequeueSignal.addWaiter();
+        try {
+            while (true) {
+                long signals = mDequeueSignal.getCount();
+                int capacity = mQueueCapacity;
+                if (capacity == UNBOUNDED || getWaitingCount() < capacity) {
+                    return true;
+                }
+                if (mRejectionPolicy != RejectionPolicy.BLOCK) {
+                    return false;
+                }
+                mDequeueSignal.awaitSignalAfter(signals);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            mDequeueSignal.removeWaiter();
+        }
+    }
+
+    /**
+     * Drops the most recently added of the lowest priority waiting requests, if its priority is
+     * lower than that of the given request.
+     *
+     * @return whether there is room for the request now
+     */
+    private boolean dropLowerPriority(Request<?> request, int capacity) {
+        int level = PriorityAging.levelOf(request);
+        while (true) {
+            Request<?> victim = findLowestPriority(mCacheQueue, null);
+            victim = findLowestPriority(mNetworkQueue, victim);
+            if (victim == null || PriorityAging.levelOf(victim) >= level) {
+                return false;
+            }
+            if (mCacheQueue.remove(victim) || mNetworkQueue.remove(victim)) {
+                mDroppedCount.incrementAndGet();
+                victim.addMarker("queue-full-dropped");
+                // Goes through the fan-out delivery, which re-issues its staged duplicates.
+                mFanOutDelivery.postError(victim, new QueueFullError());
+                return true;
+            }
+            // A dispatcher took it in the meantime, which may have made room.
+            if (getWaitingCount() < capacity) {
+                return true;
             }
-            return request;
         }
     }
 
+    /**
+     * @return the lowest priority, most recently added request among those in the queue and
+     * <code>lowest</code>
+     */
+    private static Request<?> findLowestPriority(Iterable<Request<?>> queue,
+                                                 Request<?> lowest) {
+        for (Request<?> request : queue) {
+            if (lowest == null) {
+                lowest = request;
+                continue;
+            }
+            int order = PriorityAging.levelOf(request) - PriorityAging.levelOf(lowest);
+            if (order < 0 || (order == 0 && request.getSequence() > lowest.getSequence())) {
+                lowest = request;
+            }
+        }
+        return lowest;
+    }
+
+    /**
+     * @return the number of requests waiting in the cache and network queues
+     */
+    private int getWaitingCount() {
+        return mCacheQueue.size() + mNetworkQueue.size();
+    }
+
     /**
      * Called from {@link Request#finish(String)}, indicating that processing of the given request
      * has finished.
      * <p>
-     * <p>Releases waiting requests for <code>request.getCacheKey()</code> if
-     * <code>request.shouldCache()</code>.</p>
+     * <p>Re-issues the duplicates staged behind the request if it finished without handing
+     * them a response.</p>
      *
      * @param <T>     The type of parsed response this request expects.
      * @param request The request to service
@@ -311,29 +1088,180 @@ public class RequestQueue {
      */
     <T> void finish(Request<T> request) {
         // Remove from the set of requests currently being processed.
-        synchronized (mCurrentRequests) {
-            mCurrentRequests.remove(request);
+        mCurrentRequests.remove(request);
+        unindexTag(request, request.getTag());
+        for (RequestFinishedListener<T> listener : mFinishedListeners) {
+            listener.onRequestFinished(request);
         }
-        synchronized (mFinishedListeners) {
-            for (RequestFinishedListener<T> listener : mFinishedListeners) {
-                listener.onRequestFinished(request);
+
+        // A primary that finished without a final response (e.g. it was canceled, or its
+        // refresh was not modified) leaves its duplicates without one; send them on their way.
+        List<Request<?>> waitingRequests = releaseStaged(request);
+        if (!waitingRequests.isEmpty()) {
+            if (VolleyLog.DEBUG) {
+                VolleyLog.v("Releasing %d waiting requests for %s.",
+                        waitingRequests.size(), request);
             }
+            reissue(waitingRequests);
         }
 
-        if (request.shouldCache()) {
-            synchronized (mWaitingRequests) {
-                String cacheKey = request.getCacheKey();
-                Queue<Request<?>> waitingRequests = mWaitingRequests.remove(cacheKey);
-                if (waitingRequests != null) {
-                    if (VolleyLog.DEBUG) {
-                        VolleyLog.v("Releasing %d waiting requests for cacheKey=%s.",
-                                waitingRequests.size(), cacheKey);
-                    }
-                    // Process all queued up requests. They won't be considered as in flight, but
-                    // that's not a problem as the cache has been primed by 'request'.
-                    mCacheQueue.addAll(waitingRequests);
+        Drain drain = mDrain;
+        if (drain != null) {
+            drain.resolve(request);
+        }
+
+        // A dispatcher may have come free for prefetches.
+        if (request.isPrefetch()) {
+            mPrefetchBudget.onFinished(request);
+        }
+        releasePrefetches();
+    }
+
+    /**
+     * Sends released duplicates on their way again. Cacheable ones go back through the cache,
+     * which may have been primed in the meantime; uncacheable ones are coalesced anew.
+     */
+    private void reissue(List<Request<?>> requests) {
+        for (Request<?> request : requests) {
+            if (request.shouldCache()) {
+                mCacheQueue.add(request);
+            } else {
+                coalesceOrDispatch(request);
+            }
+        }
+    }
+
+    /**
+     * Puts an uncacheable request on the network queue, or stages it behind an identical
+     * request in flight if it may be coalesced.
+     */
+    private void coalesceOrDispatch(Request<?> request) {
+        if (!coalesce(request)) {
+            mNetworkQueue.add(request);
+        }
+    }
+
+    /**
+     * Stages an uncacheable request behind an identical request in flight if it may be
+     * coalesced, or claims its key so that later identical requests stage behind it.
+     *
+     * @return true if the request was staged, false if it must go to the network itself
+     */
+    private boolean coalesce(Request<?> request) {
+        String key = getCoalescingKey(request);
+        if (key == null) {
+            return false;
+        }
+        while (true) {
+            StagedRequests stagedRequests = mCoalescedRequests.get(key);
+            if (stagedRequests == null) {
+                // Claim the key; this request goes to the network for all that follow.
+                StagedRequests created = new StagedRequests(key, mCoalescedRequests);
+                if (mCoalescedRequests.putIfAbsent(key, created) == null) {
+                    mPrimaryRequests.put(request, created);
+                    return false;
                 }
+            } else if (stagedRequests.stage(request)) {
+                if (VolleyLog.DEBUG) {
+                    VolleyLog.v("Identical request for key=%s is in flight, coalescing.", key);
+                }
+                return true;
             }
+            // Lost a race with another add() or with the leader being released; try again.
+        }
+    }
+
+    /**
+     * @return the key to coalesce the request by, or null if it must go out on its own
+     */
+    private static String getCoalescingKey(Request<?> request) {
+        if (!request.shouldCoalesce()) {
+            return null;
+        }
+        int method = request.getMethod();
+        if (method != Request.Method.GET && method != Request.Method.HEAD) {
+            return null;
+        }
+        return request.getCoalescingKey();
+    }
+
+    /**
+     * Releases the duplicates staged behind the given request, if it is a primary. New
+     * duplicates start a request of their own from then on.
+     *
+     * @return the released requests, which no longer have a primary
+     */
+    private List<Request<?>> releaseStaged(Request<?> request) {
+        StagedRequests stagedRequests = mPrimaryRequests.remove(request);
+        if (stagedRequests == null) {
+            return Collections.emptyList();
+        }
+        return stagedRequests.release();
+    }
+
+    /**
+     * Sets whether duplicates staged behind a failed request are re-issued instead of being
+     * handed the same error. Duplicates are always handed a successful response, and always
+     * re-issued when their primary was dropped for a {@link DeadlineExceededError} or a
+     * {@link QueueFullError}, or had its transfer aborted with a {@link CanceledError}.
+     *
+     * @param reissueOnError true to re-issue duplicates when their primary fails
+     */
+    public void setReissueDuplicatesOnError(boolean reissueOnError) {
+        mReissueDuplicatesOnError = reissueOnError;
+    }
+
+    /**
+     * @return whether duplicates are re-issued when their primary fails
+     */
+    public boolean getReissueDuplicatesOnError() {
+        return mReissueDuplicatesOnError;
+    }
+
+    /**
+     * Called from {@link Request#setTag(Object)} so that the tag index follows tags that are
+     * changed after the request was added.
+     *
+     * @param request The request whose tag changed
+     * @param oldTag  The previous tag
+     * @param newTag  The new tag
+     */
+    void onTagChanged(Request<?> request, Object oldTag, Object newTag) {
+        if (oldTag == newTag || !mCurrentRequests.contains(request)) {
+            return;
+        }
+        unindexTag(request, oldTag);
+        indexTag(request, newTag);
+    }
+
+    private void indexTag(Request<?> request, Object tag) {
+        if (tag == null) {
+            return;
+        }
+        while (true) {
+            TaggedRequests taggedRequests = mTaggedRequests.get(tag);
+            if (taggedRequests == null) {
+                TaggedRequests created = new TaggedRequests();
+                taggedRequests = mTaggedRequests.putIfAbsent(tag, created);
+                if (taggedRequests == null) {
+                    taggedRequests = created;
+                }
+            }
+            if (taggedRequests.add(request)) {
+                return;
+            }
+            // The entry emptied out and was removed under us; start over.
+        }
+    }
+
+    private void unindexTag(Request<?> request, Object tag) {
+        if (tag == null) {
+            return;
+        }
+        TaggedRequests taggedRequests = mTaggedRequests.get(tag);
+        if (taggedRequests != null && taggedRequests.remove(request)) {
+            // Last one out drops the entry so the tag object is not retained.
+            mTaggedRequests.remove(tag, taggedRequests);
         }
     }
 
@@ -344,9 +1272,7 @@ public class RequestQueue {
      * @param <T>      The type of parsed response this request expects.
      */
     public <T> void addRequestFinishedListener(RequestFinishedListener<T> listener) {
-        synchronized (mFinishedListeners) {
-            mFinishedListeners.add(listener);
-        }
+        mFinishedListeners.add(listener);
     }
 
     /**
@@ -356,8 +1282,266 @@ public class RequestQueue {
      * @param <T>      The type of parsed response this request expects.
      */
     public <T> void removeRequestFinishedListener(RequestFinishedListener<T> listener) {
-        synchronized (mFinishedListeners) {
-            mFinishedListeners.remove(listener);
+        mFinishedListeners.remove(listener);
+    }
+
+    /**
+     * Posts responses and errors for the requests performed by the dispatchers, and hands the
+     * same final response or error to the duplicates staged behind them, so a response is read
+     * and parsed once however many requests asked for it.
+     */
+    private class FanOutDelivery implements ResponseDelivery {
+        @Override
+        public void postResponse(Request<?> request, Response<?> response) {
+            // Release the duplicates first, so the primary finishing does not re-issue them.
+            List<Request<?>> waitingRequests = response.intermediate
+                    ? Collections.<Request<?>>emptyList() : releaseStaged(request);
+            if (request.isPrefetch()) {
+                // The response is in cache by now; that is all a prefetch is for.
+                request.finish("prefetch-done");
+            } else {
+                mDelivery.postResponse(request, response);
+            }
+            if (!response.intermediate) {
+                settle(request);
+            }
+            List<Request<?>> unshareable = null;
+            for (Request<?> waiting : waitingRequests) {
+                if (waiting.isPrefetch()) {
+                    waiting.finish("prefetch-done");
+                    settle(waiting);
+                    continue;
+                }
+                if (!waiting.canShareResponseOf(request)) {
+                    if (unshareable == null) {
+                        unshareable = new ArrayList<Request<?>>();
+                    }
+                    unshareable.add(waiting);
+                    continue;
+                }
+                waiting.addMarker("shared-response");
+                waiting.markDelivered();
+                mDelivery.postResponse(waiting, response);
+                settle(waiting);
+            }
+            if (unshareable != null) {
+                reissue(unshareable);
+            }
+        }
+
+        @Override
+        public void postResponse(Request<?> request, Response<?> response, Runnable runnable) {
+            // Only used for intermediate responses, which are followed by a final one.
+            if (request.isPrefetch()) {
+                runnable.run();
+                return;
+            }
+            mDelivery.postResponse(request, response, runnable);
+        }
+
+        @Override
+        public void postError(Request<?> request, VolleyError error) {
+            List<Request<?>> waitingRequests = releaseStaged(request);
+            if (request.isPrefetch()) {
+                request.finish("prefetch-failed");
+            } else {
+                mDelivery.postError(request, error);
+            }
+            settle(request);
+            // A primary dropped at its deadline, for capacity or by being canceled says nothing
+            // about its duplicates, which get a chance of their own. Neither does a prefetch.
+            if (mReissueDuplicatesOnError || request.isPrefetch()
+                    || error instanceof DeadlineExceededError
+                    || error instanceof QueueFullError || error instanceof CanceledError) {
+                reissue(waitingRequests);
+                return;
+            }
+            for (Request<?> waiting : waitingRequests) {
+                waiting.addMarker("shared-error");
+                if (waiting.isPrefetch()) {
+                    waiting.finish("prefetch-failed");
+                } else {
+                    mDelivery.postError(waiting, error);
+                }
+                settle(waiting);
+            }
+        }
+
+        /**
+         * Records that the request's work is done, for a shutdown that may be waiting for it.
+         */
+        private void settle(Request<?> request) {
+            request.markResultPosted();
+            Drain drain = mDrain;
+            if (drain != null) {
+                drain.resolve(request);
+            }
+        }
+    }
+
+    /**
+     * Completes the promises of requests added with {@link #addAsync(Request)} as their
+     * responses and errors are posted to a delivery that does not know about promises.
+     */
+    private static class PromiseDelivery implements ResponseDelivery {
+        private final ResponseDelivery mDelivery;
+
+        PromiseDelivery(ResponseDelivery delivery) {
+            mDelivery = delivery;
+        }
+
+        @Override
+        public void postResponse(Request<?> request, Response<?> response) {
+            mDelivery.postResponse(request, response);
+            complete(request, response);
+        }
+
+        @Override
+        public void postResponse(Request<?> request, Response<?> response, Runnable runnable) {
+            mDelivery.postResponse(request, response, runnable);
+            complete(request, response);
+        }
+
+        @Override
+        public void postError(Request<?> request, VolleyError error) {
+            mDelivery.postError(request, error);
+            complete(request, Response.error(error));
+        }
+
+        private static void complete(Request<?> request, Response<?> response) {
+            // A canceled request has canceled its promise already.
+            if (!request.isCanceled()) {
+                request.completePromise(response);
+            }
+        }
+    }
+
+    /**
+     * The requests a shutdown waits for, until each has finished or had its final response or
+     * error posted.
+     */
+    private static class Drain {
+        private final Set<Request<?>> mPending = new ConcurrentHashSet<Request<?>>();
+
+        void track(Request<?> request) {
+            mPending.add(request);
+        }
+
+        void resolve(Request<?> request) {
+            if (mPending.remove(request) && mPending.isEmpty()) {
+                synchronized (this) {
+                    notifyAll();
+                }
+            }
+        }
+
+        /**
+         * @return true if all requests were resolved, false if the timeout elapsed first
+         */
+        synchronized boolean await(long timeoutNs) throws InterruptedException {
+            long remainingNs = timeoutNs;
+            long deadlineNs = System.nanoTime() + timeoutNs;
+            while (!mPending.isEmpty()) {
+                if (remainingNs <= 0) {
+                    return false;
+                }
+                TimeUnit.NANOSECONDS.timedWait(this, remainingNs);
+                remainingNs = deadlineNs - System.nanoTime();
+            }
+            return true;
+        }
+
+        List<Request<?>> getPending() {
+            return new ArrayList<Request<?>>(mPending);
+        }
+    }
+
+    /**
+     * The current requests sharing a tag. Each entry has its own monitor, so only requests with
+     * the same tag ever contend, and an entry is retired once it empties out.
+     */
+    private static class TaggedRequests {
+        private final Set<Request<?>> mRequests = new HashSet<Request<?>>();
+        private boolean mRetired = false;
+
+        /**
+         * @return false if this entry was retired and the caller must use a fresh one
+         */
+        synchronized boolean add(Request<?> request) {
+            if (mRetired) {
+                return false;
+            }
+            mRequests.add(request);
+            return true;
+        }
+
+        /**
+         * @return true if this entry is now empty and has been retired
+         */
+        synchronized boolean remove(Request<?> request) {
+            mRequests.remove(request);
+            if (mRequests.isEmpty()) {
+                mRetired = true;
+            }
+            return mRetired;
+        }
+
+        synchronized List<Request<?>> snapshot() {
+            return new ArrayList<Request<?>>(mRequests);
+        }
+    }
+
+    /**
+     * Requests waiting for the in-flight request with the same cache key, or coalesced onto the
+     * in-flight request with the same coalescing key.
+     * <p>
+     * Staging and releasing never block each other. {@link #release()} closes the stage before
+     * draining it, and a request that sees the stage closed after enqueueing itself takes itself
+     * back out, so every staged request is either released exactly once or handed back to
+     * {@link #add(Request)} to try again.
+     */
+    private static class StagedRequests {
+        private final String mKey;
+        private final ConcurrentMap<String, StagedRequests> mStagingArea;
+        private final ConcurrentLinkedQueue<Request<?>> mRequests =
+                new ConcurrentLinkedQueue<Request<?>>();
+        private volatile boolean mReleased = false;
+
+        /**
+         * @param key         The key the requests are staged under
+         * @param stagingArea The map this stage is registered in under <code>key</code>
+         */
+        StagedRequests(String key, ConcurrentMap<String, StagedRequests> stagingArea) {
+            mKey = key;
+            mStagingArea = stagingArea;
+        }
+
+        /**
+         * Stages a request behind the one in flight.
+         *
+         * @return false if the stage has already been released and the caller must retry
+         */
+        boolean stage(Request<?> request) {
+            if (mReleased) {
+                return false;
+            }
+            mRequests.add(request);
+            // If release() raced us and has not drained the request yet, take it back.
+            return !(mReleased && mRequests.remove(request));
+        }
+
+        /**
+         * Unregisters and closes the stage, and returns everything that was staged on it.
+         */
+        List<Request<?>> release() {
+            mStagingArea.remove(mKey, this);
+            mReleased = true;
+            List<Request<?>> released = new ArrayList<Request<?>>();
+            Request<?> request;
+            while ((request = mRequests.poll()) != null) {
+                released.add(request);
+            }
+            return released;
         }
     }
 }
@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stages that network responses go through after the HTTP exchange, so that network threads
+ * are free for the next request as soon as the response has been read.
+ * <p>
+ * The parse stage runs {@link Request#parseNetworkResponse(NetworkResponse)} on a pool sized to
+ * the number of CPUs. The optional cache-write stage then commits the entry to the
+ * {@link Cache} on a single thread and posts the response once it is written, so requests
+ * staged behind it still find the entry in cache. Both stages have bounded queues; when a
+ * queue is full the submitting thread runs the work itself, which slows down the stage feeding
+ * it instead of dropping anything.
+ */
+public class ResponsePipeline {
+
+    /**
+     * Default number of responses waiting in each stage before submitters run the work inline.
+     */
+    public static final int DEFAULT_QUEUE_CAPACITY = 64;
+
+    private final int mParseThreads;
+    private final int mQueueCapacity;
+    private final boolean mCacheWriteStage;
+
+    /**
+     * Executor of the parse stage, or null when stopped.
+     */
+    private volatile ThreadPoolExecutor mParseExecutor;
+
+    /**
+     * Executor of the cache-write stage, or null when stopped or disabled.
+     */
+    private volatile ThreadPoolExecutor mCacheWriteExecutor;
+
+    /**
+     * Creates a pipeline with one parse thread per CPU and a cache-write stage.
+     */
+    public ResponsePipeline() {
+        this(Runtime.getRuntime().availableProcessors(), DEFAULT_QUEUE_CAPACITY, true);
+    }
+
+    /**
+     * @param parseThreads    Number of threads parsing responses
+     * @param queueCapacity   Number of responses each stage queues up before submitters run
+     *                        the work themselves
+     * @param cacheWriteStage Whether to write to cache on a separate stage, rather than on the
+     *                        parse threads
+     */
+    public ResponsePipeline(int parseThreads, int queueCapacity, boolean cacheWriteStage) {
+        if (parseThreads < 1 || queueCapacity < 1) {
+            throw new IllegalArgumentException("parseThreads and queueCapacity must be at least 1");
+        }
+        mParseThreads = parseThreads;
+        mQueueCapacity = queueCapacity;
+        mCacheWriteStage = cacheWriteStage;
+    }
+
+    /**
+     * Starts the stage threads. Called by {@link RequestQueue#start()}.
+     */
+    public synchronized void start() {
+        stop();  // Make sure any currently running stages are stopped.
+        mParseExecutor = newStageExecutor(mParseThreads, "Volley-Parse-");
+        if (mCacheWriteStage) {
+            mCacheWriteExecutor = newStageExecutor(1, "Volley-CacheWrite-");
+        }
+    }
+
+    /**
+     * Stops the stage threads once the responses already handed to them have been processed.
+     * Responses handed over afterwards are processed on the submitting thread.
+     */
+    public synchronized void stop() {
+        if (mParseExecutor != null) {
+            mParseExecutor.shutdown();
+            mParseExecutor = null;
+        }
+        if (mCacheWriteExecutor != null) {
+            mCacheWriteExecutor.shutdown();
+            mCacheWriteExecutor = null;
+        }
+    }
+
+    /**
+     * @return the number of parse threads
+     */
+    public int getParseThreadCount() {
+        return mParseThreads;
+    }
+
+    /**
+     * @return whether cache writes run on their own stage
+     */
+    public boolean isCacheWriteStageEnabled() {
+        return mCacheWriteStage;
+    }
+
+    /**
+     * @return the number of responses waiting to be parsed
+     */
+    public int getParseQueueDepth() {
+        return queueDepth(mParseExecutor);
+    }
+
+    /**
+     * @return the number of responses waiting to be written to cache
+     */
+    public int getCacheWriteQueueDepth() {
+        return queueDepth(mCacheWriteExecutor);
+    }
+
+    /**
+     * Hands a response to the parse stage.
+     */
+    void parse(Runnable task) {
+        submit(mParseExecutor, task);
+    }
+
+    /**
+     * Hands a parsed response to the cache-write stage, or runs it right away when there is
+     * no such stage.
+     */
+    void writeToCache(Runnable task) {
+        submit(mCacheWriteExecutor, task);
+    }
+
+    private static void submit(ThreadPoolExecutor executor, Runnable task) {
+        if (executor == null) {
+            task.run();
+        } else {
+            executor.execute(task);
+        }
+    }
+
+    private static int queueDepth(ThreadPoolExecutor executor) {
+        return executor == null ? 0 : executor.getQueue().size();
+    }
+
+    private ThreadPoolExecutor newStageExecutor(int threads, String namePrefix) {
+        return new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(mQueueCapacity),
+                new BackgroundThreadFactory(namePrefix), new RunInCallerPolicy());
+    }
+
+    /**
+     * Runs work the stage cannot take on the submitting thread. Unlike
+     * {@link ThreadPoolExecutor.CallerRunsPolicy} this also applies after shutdown, so a
+     * response is never dropped while the pipeline is stopping.
+     */
+    private static class RunInCallerPolicy implements RejectedExecutionHandler {
+        @Override
+        public void rejectedExecution(Runnable runnable, ThreadPoolExecutor executor) {
+            runnable.run();
+        }
+    }
+}
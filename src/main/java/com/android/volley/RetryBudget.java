@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.volley;
+
+/**
+ * Caps how many retries all requests sharing it may make, relative to the number of requests,
+ * so that retries cannot multiply the load on a server that is already struggling.
+ * <p>
+ * Each request deposits a fraction of a retry, up to a reserve that also lets a few retries
+ * through after a quiet period; each retry takes a whole one. Once the budget is spent,
+ * requests fail with the error of their last attempt instead of retrying.
+ */
+public class RetryBudget {
+
+    /**
+     * Default number of retries each request adds to the budget.
+     */
+    public static final double DEFAULT_RETRY_RATIO = 0.1;
+
+    /**
+     * Default number of retries the budget holds at most, and starts with.
+     */
+    public static final int DEFAULT_RESERVE = 10;
+
+    private static final RetryBudget sDefault = new RetryBudget();
+
+    private final double mRetryRatio;
+    private final int mReserve;
+
+    /**
+     * Retries currently available. Guarded by this.
+     */
+    private double mBalance;
+
+    /**
+     * Number of retries turned down. Guarded by this.
+     */
+    private long mDeniedCount;
+
+    /**
+     * Creates a budget of {@link #DEFAULT_RETRY_RATIO} retries per request with a reserve of
+     * {@link #DEFAULT_RESERVE}.
+     */
+    public RetryBudget() {
+        this(DEFAULT_RETRY_RATIO, DEFAULT_RESERVE);
+    }
+
+    /**
+     * @param retryRatio Number of retries each request adds to the budget
+     * @param reserve    Number of retries the budget holds at most, and starts with
+     */
+    public RetryBudget(double retryRatio, int reserve) {
+        if (retryRatio < 0 || reserve < 0) {
+            throw new IllegalArgumentException("retryRatio and reserve must not be negative");
+        }
+        mRetryRatio = retryRatio;
+        mReserve = reserve;
+        mBalance = reserve;
+    }
+
+    /**
+     * @return the budget shared by retry policies that are not given one of their own
+     */
+    public static RetryBudget getDefault() {
+        return sDefault;
+    }
+
+    /**
+     * Adds a request's share to the budget.
+     */
+    public synchronized void onRequest() {
+        mBalance = Math.min(mReserve, mBalance + mRetryRatio);
+    }
+
+    /**
+     * Takes a retry from the budget, if there is one left.
+     *
+     * @return whether the retry may go ahead
+     */
+    public synchronized boolean tryRetry() {
+        if (mBalance >= 1) {
+            mBalance--;
+            return true;
+        }
+        mDeniedCount++;
+        return false;
+    }
+
+    /**
+     * @return the number of retries turned down because the budget was spent
+     */
+    public synchronized long getDeniedCount() {
+        return mDeniedCount;
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.volley;
+
+import android.os.Process;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Provides a thread that moves requests set aside for a delayed retry back to the network
+ * queue once their delay has passed.
+ */
+class RetryDispatcher extends Thread {
+
+    /**
+     * Requests waiting for their retry, soonest first.
+     */
+    private final DelayQueue<DelayedRetry> mRetryQueue;
+
+    /**
+     * The queue of requests going out to the network.
+     */
+    private final BlockingQueue<Request<?>> mNetworkQueue;
+
+    /**
+     * Used for telling us to die.
+     */
+    private volatile boolean mQuit = false;
+
+    /**
+     * Creates a new retry dispatcher thread.  You must call {@link #start()} in order to begin
+     * processing.
+     *
+     * @param retryQueue   Queue of requests waiting for their retry
+     * @param networkQueue Queue to post requests that are due to
+     */
+    RetryDispatcher(DelayQueue<DelayedRetry> retryQueue, BlockingQueue<Request<?>> networkQueue) {
+        super("Volley-Retry");
+        mRetryQueue = retryQueue;
+        mNetworkQueue = networkQueue;
+    }
+
+    /**
+     * Forces this dispatcher to quit immediately. Requests still waiting stay in the retry
+     * queue.
+     */
+    public void quit() {
+        mQuit = true;
+        interrupt();
+    }
+
+    @Override
+    public void run() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+        while (true) {
+            DelayedRetry retry;
+            try {
+                retry = mRetryQueue.take();
+            } catch (InterruptedException e) {
+                // We may have been interrupted because it was time to quit.
+                if (mQuit) {
+                    return;
+                }
+                continue;
+            }
+            retry.mRequest.addMarker("retry-queue-take");
+            // Canceled requests and requests past their deadline are weeded out by the
+            // network dispatchers, like any other.
+            mNetworkQueue.add(retry.mRequest);
+        }
+    }
+
+    /**
+     * A request waiting for its retry.
+     */
+    static class DelayedRetry implements Delayed {
+        final Request<?> mRequest;
+
+        /**
+         * When the retry is due, in {@link System#nanoTime()}.
+         */
+        private final long mDueNs;
+
+        DelayedRetry(Request<?> request, long delayMs) {
+            mRequest = request;
+            mDueNs = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMs);
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(mDueNs - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            long difference = mDueNs - ((DelayedRetry) other).mDueNs;
+            return difference < 0 ? -1 : (difference > 0 ? 1 : 0);
+        }
+    }
+}
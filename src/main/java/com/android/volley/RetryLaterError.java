@@ -0,0 +1,44 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.volley;
+
+/**
+ * Thrown by a {@link Network} when a request should be attempted again after a delay. The
+ * request queue sets the request aside for that long, instead of the network waiting on the
+ * thread performing it. It is never delivered to the request.
+ *
+ * @see BackoffRetryPolicy
+ */
+@SuppressWarnings("serial")
+public class RetryLaterError extends VolleyError {
+    private final long mDelayMs;
+
+    /**
+     * @param cause   The error of the attempt that failed
+     * @param delayMs How long to wait before the next attempt
+     */
+    public RetryLaterError(VolleyError cause, long delayMs) {
+        super(cause);
+        mDelayMs = delayMs;
+    }
+
+    /**
+     * @return how long to wait before the next attempt, in milliseconds
+     */
+    public long getDelayMs() {
+        return mDelayMs;
+    }
+}
@@ -19,7 +19,10 @@ package com.android.volley.toolbox;
 import android.os.SystemClock;
 
 import com.android.volley.AuthFailureError;
+import com.android.volley.BackoffRetryPolicy;
 import com.android.volley.Cache;
+import com.android.volley.CanceledError;
+import com.android.volley.CircuitOpenError;
 import com.android.volley.Cache.Entry;
 import com.android.volley.Network;
 import com.android.volley.NetworkError;
@@ -28,6 +31,7 @@ import com.android.volley.NoConnectionError;
 import com.android.volley.RedirectError;
 import com.android.volley.Request;
 import com.android.volley.Response.ProgressListener;
+import com.android.volley.RetryLaterError;
 import com.android.volley.RetryPolicy;
 import com.android.volley.ServerError;
 import com.android.volley.TimeoutError;
@@ -42,10 +46,15 @@ import org.apache.http.StatusLine;
 import org.apache.http.conn.ConnectTimeoutException;
 import org.apache.http.impl.cookie.DateUtils;
 
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.net.ConnectException;
 import java.net.MalformedURLException;
+import java.net.NoRouteToHostException;
 import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
@@ -66,10 +75,20 @@ public class BasicNetwork implements Network {
 
     private static final int DEFAULT_POOL_SIZE = 4096;
 
+    /**
+     * Too Many Requests, which {@link HttpStatus} predates.
+     */
+    static final int SC_TOO_MANY_REQUESTS = 429;
+
     protected final HttpStack mHttpStack;
 
     protected final ByteArrayPool mPool;
 
+    /**
+     * Fails requests to hosts that are down, or null to always go to the network.
+     */
+    protected final CircuitBreaker mCircuitBreaker;
+
     /**
      * @param httpStack HTTP stack to be used
      */
@@ -84,14 +103,39 @@ public class BasicNetwork implements Network {
      * @param pool      a buffer pool that improves GC performance in copy operations
      */
     public BasicNetwork(HttpStack httpStack, ByteArrayPool pool) {
+        this(httpStack, pool, null);
+    }
+
+    /**
+     * @param httpStack      HTTP stack to be used
+     * @param pool           a buffer pool that improves GC performance in copy operations
+     * @param circuitBreaker breaker failing requests to hosts that are down, or null for none
+     */
+    public BasicNetwork(HttpStack httpStack, ByteArrayPool pool, CircuitBreaker circuitBreaker) {
         mHttpStack = httpStack;
         mPool = pool;
+        mCircuitBreaker = circuitBreaker;
+    }
+
+    /**
+     * @return the circuit breaker of this network, or null if there is none
+     */
+    public CircuitBreaker getCircuitBreaker() {
+        return mCircuitBreaker;
     }
 
     @Override
     public NetworkResponse performRequest(Request<?> request) throws VolleyError {
         long requestStart = SystemClock.elapsedRealtime();
         while (true) {
+            // Don't retry a request that was canceled during the previous attempt.
+            if (request.isCanceled()) {
+                throw new CanceledError();
+            }
+            // Don't wait for a host that is down to time out again, retries included.
+            if (mCircuitBreaker != null && !mCircuitBreaker.allowRequest(request.getHost(), request)) {
+                return respondWithCircuitOpen(request);
+            }
             HttpResponse httpResponse = null;
             byte[] responseContents = null;
             Map<String, String> responseHeaders = Collections.emptyMap();
@@ -102,6 +146,8 @@ public class BasicNetwork implements Network {
                 httpResponse = mHttpStack.performRequest(request, headers);
                 StatusLine statusLine = httpResponse.getStatusLine();
                 int statusCode = statusLine.getStatusCode();
+                // The host answered; only a server error counts against it.
+                recordOutcome(request, statusCode >= HttpStatus.SC_INTERNAL_SERVER_ERROR);
 
                 responseHeaders = convertHeaders(httpResponse.getAllHeaders());
                 // Handle cache validation.
@@ -131,7 +177,12 @@ public class BasicNetwork implements Network {
                 }
 
                 // Some responses such as 204s do not have content.  We must check.
-                if (httpResponse.getEntity() != null) {
+                if (httpResponse.getEntity() != null && request instanceof StreamingRequest
+                        && statusCode >= 200 && statusCode <= 299) {
+                    responseContents = streamEntity((StreamingRequest<?>) request,
+                            httpResponse.getEntity(), new NetworkResponse(statusCode, null,
+                                    responseHeaders, false, getTimeElapsed(requestStart)));
+                } else if (httpResponse.getEntity() != null) {
                     responseContents = entityToBytes(request, httpResponse.getEntity());
                 } else {
                     // Add 0 byte response as a way of honestly representing a
@@ -149,17 +200,29 @@ public class BasicNetwork implements Network {
                 return new NetworkResponse(statusCode, responseContents, responseHeaders, false,
                         getTimeElapsed(requestStart));
             } catch (SocketTimeoutException e) {
+                if (httpResponse == null) {
+                    recordOutcome(request, true);
+                }
                 attemptRetryOnException("socket", request, new TimeoutError());
             } catch (ConnectTimeoutException e) {
+                recordOutcome(request, true);
                 attemptRetryOnException("connection", request, new TimeoutError());
             } catch (MalformedURLException e) {
                 throw new RuntimeException("Bad URL " + request.getUrl(), e);
             } catch (IOException e) {
+                // The transfer failed because it was aborted, not because of the network.
+                if (request.isCanceled()) {
+                    throw new CanceledError();
+                }
                 int statusCode = 0;
                 NetworkResponse networkResponse = null;
                 if (httpResponse != null) {
                     statusCode = httpResponse.getStatusLine().getStatusCode();
                 } else {
+                    // Being offline says nothing about the host; a reset after connecting does.
+                    if (!isNotConnected(e)) {
+                        recordOutcome(request, true);
+                    }
                     throw new NoConnectionError(e);
                 }
                 if (statusCode == HttpStatus.SC_MOVED_PERMANENTLY ||
@@ -179,6 +242,9 @@ public class BasicNetwork implements Network {
                             statusCode == HttpStatus.SC_MOVED_TEMPORARILY) {
                         attemptRetryOnException("redirect",
                                 request, new RedirectError(networkResponse));
+                    } else if (isRetryableLater(request, statusCode)) {
+                        attemptRetryOnException("server",
+                                request, new ServerError(networkResponse));
                     } else {
                         // TODO: Only throw ServerError for 5xx status codes.
                         throw new ServerError(networkResponse);
@@ -186,10 +252,50 @@ public class BasicNetwork implements Network {
                 } else {
                     throw new NetworkError(e);
                 }
+            } finally {
+                // The stack's abort hook holds on to the connection; it is not needed anymore.
+                request.setTransferAbort(null);
             }
         }
     }
 
+    /**
+     * Records the outcome of an attempt with the circuit breaker, if there is one.
+     */
+    private void recordOutcome(Request<?> request, boolean failed) {
+        if (mCircuitBreaker != null) {
+            mCircuitBreaker.record(request.getHost(), request, failed);
+        }
+    }
+
+    /**
+     * @return whether the exception means no connection to the host could be made, as when
+     * the device is offline or the host's name does not resolve
+     */
+    private static boolean isNotConnected(IOException e) {
+        return e instanceof UnknownHostException || e instanceof ConnectException
+                || e instanceof NoRouteToHostException;
+    }
+
+    /**
+     * Serves a request whose host's circuit is open from its stale cache entry, if it has one.
+     *
+     * @throws CircuitOpenError if there is no cache entry to fall back to
+     */
+    private static NetworkResponse respondWithCircuitOpen(Request<?> request)
+            throws CircuitOpenError {
+        Entry entry = request.getCacheEntry();
+        if (entry == null) {
+            request.addMarker("circuit-open");
+            throw new CircuitOpenError(request.getHost());
+        }
+        // Treated like a 304, so a soft-expired entry already delivered is not delivered again,
+        // but marked stale so the unrevalidated entry is not cached again as fresh.
+        request.addMarker("circuit-open-stale-cache");
+        return new NetworkResponse(HttpStatus.SC_NOT_MODIFIED, entry.data,
+                entry.responseHeaders, true, 0, true);
+    }
+
     /**
      * Logs requests that took over SLOW_REQUEST_THRESHOLD_MS to complete.
      */
@@ -205,7 +311,8 @@ public class BasicNetwork implements Network {
 
     /**
      * Attempts to prepare the request for a retry. If there are no more attempts remaining in the
-     * request's retry policy, a timeout exception is thrown.
+     * request's retry policy, a timeout exception is thrown. If the policy wants to wait before
+     * the retry, a {@link RetryLaterError} is thrown for the request queue to do so.
      *
      * @param request The request to use.
      */
@@ -222,6 +329,22 @@ public class BasicNetwork implements Network {
             throw e;
         }
         request.addMarker(String.format("%s-retry [timeout=%s]", logPrefix, oldTimeout));
+        if (retryPolicy instanceof BackoffRetryPolicy) {
+            long delayMs = ((BackoffRetryPolicy) retryPolicy).getRetryDelayMs();
+            if (delayMs > 0) {
+                throw new RetryLaterError(exception, delayMs);
+            }
+        }
+    }
+
+    /**
+     * Returns whether a response asking the client to come back later should be retried. Only
+     * policies that wait before retrying get to retry them.
+     */
+    private static boolean isRetryableLater(Request<?> request, int statusCode) {
+        return (statusCode == HttpStatus.SC_SERVICE_UNAVAILABLE
+                || statusCode == SC_TOO_MANY_REQUESTS)
+                && request.getRetryPolicy() instanceof BackoffRetryPolicy;
     }
 
     private long getTimeElapsed(long startTime) {
@@ -249,9 +372,10 @@ public class BasicNetwork implements Network {
     }
 
     /**
-     * Reads the contents of HttpEntity into a byte[].
+     * Reads the contents of HttpEntity into a byte[], until the request is canceled.
      */
-    private byte[] entityToBytes(Request<?> request, HttpEntity entity) throws IOException, ServerError {
+    private byte[] entityToBytes(Request<?> request, HttpEntity entity)
+            throws IOException, ServerError, CanceledError {
         long downloadStart = SystemClock.elapsedRealtime();
         long totalSize = entity.getContentLength();
         PoolingByteArrayOutputStream bytes = new PoolingByteArrayOutputStream(mPool, (int) totalSize);
@@ -275,6 +399,10 @@ public class BasicNetwork implements Network {
                 progressListener = (ProgressListener) request;
             }
             while ((count = in.read(buffer)) != -1) {
+                // Stop reading as soon as nobody wants the response anymore.
+                if (request.isCanceled()) {
+                    throw new CanceledError();
+                }
                 bytes.write(buffer, 0, count);
                 transferredBytes += count;
                 /*
@@ -305,6 +433,122 @@ public class BasicNetwork implements Network {
         }
     }
 
+    /**
+     * Has a streaming request parse the contents of HttpEntity as they are read, copying them
+     * aside if the request tees them to cache and the response may be cached.
+     *
+     * @return the contents if teed, or an empty array
+     */
+    private byte[] streamEntity(final StreamingRequest<?> request, HttpEntity entity,
+                                NetworkResponse head) throws IOException, ServerError {
+        final ByteArrayOutputStream tee = shouldTee(request, head)
+                ? newTee(entity.getContentLength())
+                : null;
+        // Scratch space for skipping through the tee and for draining the rest of the body.
+        final byte[] scratch = tee != null ? mPool.getBuf(1024) : null;
+        try {
+            InputStream content = entity.getContent();
+            if (content == null) {
+                throw new ServerError();
+            }
+            InputStream in = new FilterInputStream(content) {
+                @Override
+                public int read() throws IOException {
+                    checkCanceled();
+                    int b = super.read();
+                    if (tee != null && b != -1) {
+                        tee.write(b);
+                    }
+                    return b;
+                }
+
+                @Override
+                public int read(byte[] buffer, int offset, int length) throws IOException {
+                    checkCanceled();
+                    int count = super.read(buffer, offset, length);
+                    if (tee != null && count > 0) {
+                        tee.write(buffer, offset, count);
+                    }
+                    return count;
+                }
+
+                @Override
+                public long skip(long count) throws IOException {
+                    if (tee == null) {
+                        checkCanceled();
+                        return super.skip(count);
+                    }
+                    // Read through so the tee sees the skipped bytes.
+                    int read = read(scratch, 0, (int) Math.min(count, scratch.length));
+                    return Math.max(read, 0);
+                }
+
+                @Override
+                public void close() {
+                    // Closed once the rest of the body is drained for the tee.
+                }
+
+                @Override
+                public boolean markSupported() {
+                    return false;
+                }
+
+                private void checkCanceled() throws IOException {
+                    // Stop reading as soon as nobody wants the response anymore.
+                    if (request.isCanceled()) {
+                        throw new IOException("Canceled");
+                    }
+                }
+            };
+            request.onNetworkStream(in, head);
+            if (tee == null) {
+                return new byte[0];
+            }
+            // The parser may stop short of the end; the cache needs all of the body.
+            while (in.read(scratch) != -1) {
+            }
+            return tee.toByteArray();
+        } finally {
+            try {
+                // Close the InputStream and release the resources by "consuming the content".
+                entity.consumeContent();
+            } catch (IOException e) {
+                VolleyLog.v("Error occured when calling consumingContent");
+            }
+            mPool.returnBuf(scratch);
+            if (tee != null) {
+                tee.close();
+            }
+        }
+    }
+
+    /**
+     * Returns whether a streamed body is worth copying aside: the request tees to cache and the
+     * response headers allow caching it.
+     */
+    private static boolean shouldTee(StreamingRequest<?> request, NetworkResponse head) {
+        return request.isTeeToCache() && request.shouldCache()
+                && HttpHeaderParser.parseCacheHeaders(head) != null;
+    }
+
+    /**
+     * Creates the stream a body is teed into. When the length is known, the body is written
+     * into an array of exactly that size, which is then handed over without a copy.
+     *
+     * @param contentLength Length of the body, or a negative number if unknown
+     */
+    private ByteArrayOutputStream newTee(long contentLength) {
+        if (contentLength < 0 || contentLength > Integer.MAX_VALUE) {
+            return new PoolingByteArrayOutputStream(mPool);
+        }
+        return new ByteArrayOutputStream((int) contentLength) {
+            @Override
+            public synchronized byte[] toByteArray() {
+                return count == buf.length ? buf : super.toByteArray();
+            }
+        };
+    }
+
     /**
      * Converts Headers[] to Map&lt;String, String&gt;.
      *
@@ -0,0 +1,338 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.volley.toolbox;
+
+import android.os.SystemClock;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tracks how often requests to each host fail, so that {@link BasicNetwork} can fail requests
+ * to a host that is down right away instead of waiting for each of them to time out.
+ * <p>
+ * A host's circuit starts {@link State#CLOSED}: requests go through, and their outcomes are
+ * recorded over a window of the most recent attempts, starting from the host's first failure.
+ * Timeouts, connections reset after they were made and server errors count as failures. Once
+ * the window is full and the share of failures in it reaches the threshold, the circuit opens.
+ * While {@link State#OPEN}, requests fail with a {@link com.android.volley.CircuitOpenError},
+ * or are served from a stale cache entry. After the open time the circuit is
+ * {@link State#HALF_OPEN}: a single probe request goes through, and only its outcome decides
+ * whether the circuit closes or opens again.
+ * <p>
+ * A host is forgotten once its window holds no failures, so only hosts that failed recently
+ * take up memory.
+ */
+public class CircuitBreaker {
+
+    /**
+     * State of a host's circuit.
+     */
+    public enum State {
+        /**
+         * Requests go through.
+         */
+        CLOSED,
+        /**
+         * Requests fail fast.
+         */
+        OPEN,
+        /**
+         * One probe request goes through to find out whether the host is back.
+         */
+        HALF_OPEN
+    }
+
+    /**
+     * Default share of failed attempts that opens a circuit.
+     */
+    public static final double DEFAULT_FAILURE_RATE = 0.5;
+
+    /**
+     * Default number of recent attempts the failure rate is taken over.
+     */
+    public static final int DEFAULT_WINDOW_SIZE = 20;
+
+    /**
+     * Default time a circuit stays open before a probe is let through.
+     */
+    public static final long DEFAULT_OPEN_TIME_MS = 30000;
+
+    private final double mFailureRate;
+    private final int mWindowSize;
+    private final long mOpenTimeMs;
+
+    private final ConcurrentHashMap<String, HostCircuit> mCircuits =
+            new ConcurrentHashMap<String, HostCircuit>();
+
+    /**
+     * Number of requests failed fast since this breaker was created.
+     */
+    private final AtomicLong mRejectedCount = new AtomicLong();
+
+    /**
+     * Number of times a circuit opened since this breaker was created.
+     */
+    private final AtomicLong mOpenedCount = new AtomicLong();
+
+    /**
+     * Creates a breaker with {@link #DEFAULT_FAILURE_RATE}, {@link #DEFAULT_WINDOW_SIZE} and
+     * {@link #DEFAULT_OPEN_TIME_MS}.
+     */
+    public CircuitBreaker() {
+        this(DEFAULT_FAILURE_RATE, DEFAULT_WINDOW_SIZE, DEFAULT_OPEN_TIME_MS);
+    }
+
+    /**
+     * @param failureRate Share of failed attempts, above 0 and at most 1, that opens a circuit
+     * @param windowSize  Number of recent attempts the failure rate is taken over
+     * @param openTimeMs  Time a circuit stays open before a probe is let through
+     */
+    public CircuitBreaker(double failureRate, int windowSize, long openTimeMs) {
+        if (failureRate <= 0 || failureRate > 1) {
+            throw new IllegalArgumentException("failureRate must be above 0 and at most 1");
+        }
+        if (windowSize < 1 || openTimeMs < 0) {
+            throw new IllegalArgumentException(
+                    "windowSize must be at least 1 and openTimeMs must not be negative");
+        }
+        mFailureRate = failureRate;
+        mWindowSize = windowSize;
+        mOpenTimeMs = openTimeMs;
+    }
+
+    /**
+     * Returns the state of a host's circuit, moving it from {@link State#OPEN} to
+     * {@link State#HALF_OPEN} if its open time has passed.
+     *
+     * @param host The host, or null for URLs without one
+     * @return the state of the circuit
+     */
+    public State getState(String host) {
+        HostCircuit circuit = mCircuits.get(hostKey(host));
+        return circuit != null ? circuit.getState(SystemClock.elapsedRealtime()) : State.CLOSED;
+    }
+
+    /**
+     * @return the number of requests failed fast, or served from stale cache, because their
+     * circuit was open
+     */
+    public long getRejectedCount() {
+        return mRejectedCount.get();
+    }
+
+    /**
+     * @return the number of times a circuit opened
+     */
+    public long getOpenedCount() {
+        return mOpenedCount.get();
+    }
+
+    /**
+     * Forgets the outcomes recorded for all hosts, closing every circuit.
+     */
+    public void reset() {
+        mCircuits.clear();
+    }
+
+    /**
+     * @return the number of hosts whose outcomes are being tracked
+     */
+    int getTrackedHostCount() {
+        return mCircuits.size();
+    }
+
+    /**
+     * Returns whether an attempt to the host may go to the network, and counts it as rejected
+     * otherwise.
+     *
+     * @param host    The host, or null for URLs without one
+     * @param attempt The attempt, becoming the probe if the circuit is half-open
+     */
+    boolean allowRequest(String host, Object attempt) {
+        HostCircuit circuit = mCircuits.get(hostKey(host));
+        if (circuit == null || circuit.allowRequest(attempt, SystemClock.elapsedRealtime())) {
+            return true;
+        }
+        mRejectedCount.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * Records the outcome of an attempt that went to the network.
+     *
+     * @param host    The host, or null for URLs without one
+     * @param attempt The attempt, as passed to {@link #allowRequest(String, Object)}
+     * @param failed  Whether the host timed out, reset the connection or answered with a
+     *                server error
+     */
+    void record(String host, Object attempt, boolean failed) {
+        String key = hostKey(host);
+        long nowMs = SystemClock.elapsedRealtime();
+        while (true) {
+            HostCircuit circuit = mCircuits.get(key);
+            if (circuit == null) {
+                if (!failed) {
+                    // Nothing worth tracking for a host that has not failed yet.
+                    return;
+                }
+                HostCircuit newCircuit = new HostCircuit();
+                circuit = mCircuits.putIfAbsent(key, newCircuit);
+                if (circuit == null) {
+                    circuit = newCircuit;
+                }
+            }
+            synchronized (circuit) {
+                if (circuit.mForgotten) {
+                    // Dropped in the meantime; record in the host's next circuit.
+                    continue;
+                }
+                if (circuit.record(attempt, failed, nowMs)) {
+                    mOpenedCount.incrementAndGet();
+                }
+                if (circuit.hasNoFailures()) {
+                    circuit.mForgotten = true;
+                    mCircuits.remove(key, circuit);
+                }
+                return;
+            }
+        }
+    }
+
+    private static String hostKey(String host) {
+        return host != null ? host : "";
+    }
+
+    /**
+     * The circuit of one host.
+     */
+    private class HostCircuit {
+        private final boolean[] mOutcomes = new boolean[mWindowSize];
+
+        /**
+         * Slot of the next outcome in {@link #mOutcomes}.
+         */
+        private int mNext;
+
+        /**
+         * Number of outcomes in the window, and how many of them are failures.
+         */
+        private int mCount;
+        private int mFailures;
+        private State mState = State.CLOSED;
+
+        /**
+         * When the circuit opened, or when the probe of a half-open circuit was let through.
+         */
+        private long mSinceMs;
+
+        /**
+         * The probe of the half-open circuit in flight, or null.
+         */
+        private Object mProbe;
+
+        /**
+         * Whether this circuit has been dropped from {@link #mCircuits}. Guarded by this.
+         */
+        boolean mForgotten;
+
+        synchronized State getState(long nowMs) {
+            if (mState == State.OPEN && nowMs - mSinceMs >= mOpenTimeMs) {
+                mState = State.HALF_OPEN;
+                mProbe = null;
+            }
+            return mState;
+        }
+
+        synchronized boolean allowRequest(Object attempt, long nowMs) {
+            switch (getState(nowMs)) {
+                case CLOSED:
+                    return true;
+                case HALF_OPEN:
+                    // Let another probe through if the last one never reported back, for
+                    // example because it was canceled.
+                    if (mProbe == null || nowMs - mSinceMs >= mOpenTimeMs) {
+                        mProbe = attempt;
+                        mSinceMs = nowMs;
+                        return true;
+                    }
+                    return false;
+                default:
+                    return false;
+            }
+        }
+
+        /**
+         * @return whether the circuit opened
+         */
+        synchronized boolean record(Object attempt, boolean failed, long nowMs) {
+            switch (getState(nowMs)) {
+                case HALF_OPEN:
+                    if (attempt != mProbe) {
+                        // A request let through before the circuit opened.
+                        return false;
+                    }
+                    if (failed) {
+                        open(nowMs);
+                        return true;
+                    }
+                    close();
+                    return false;
+                case OPEN:
+                    // A request let through before the circuit opened.
+                    return false;
+                default:
+                    break;
+            }
+            if (mCount == mWindowSize && mOutcomes[mNext]) {
+                mFailures--;
+            }
+            mOutcomes[mNext] = failed;
+            if (failed) {
+                mFailures++;
+            }
+            mNext = (mNext + 1) % mWindowSize;
+            mCount = Math.min(mCount + 1, mWindowSize);
+            if (mCount == mWindowSize && mFailures >= mFailureRate * mWindowSize) {
+                open(nowMs);
+                return true;
+            }
+            return false;
+        }
+
+        /**
+         * @return whether the circuit is closed with no failures in its window, the same as
+         * for a host that never failed
+         */
+        synchronized boolean hasNoFailures() {
+            return mState == State.CLOSED && mFailures == 0;
+        }
+
+        private void open(long nowMs) {
+            mState = State.OPEN;
+            mSinceMs = nowMs;
+            mProbe = null;
+        }
+
+        private void close() {
+            mState = State.CLOSED;
+            mNext = 0;
+            mCount = 0;
+            mFailures = 0;
+            mProbe = null;
+        }
+    }
+}
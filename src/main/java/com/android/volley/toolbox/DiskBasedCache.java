@@ -79,6 +79,11 @@ public class DiskBasedCache implements Cache {
      */
     private static final int CACHE_MAGIC = 0x20150306;
 
+    /**
+     * Suffix of the file an entry is written to before it replaces the previous one.
+     */
+    private static final String TEMP_FILE_SUFFIX = ".tmp";
+
     /**
      * Constructs an instance of the DiskBasedCache at the specified directory.
      *
@@ -118,10 +123,17 @@ public class DiskBasedCache implements Cache {
 
     /**
      * Returns the cache entry with the specified key if it exists, null otherwise.
+     * <p>
+     * Only the index lookup holds the cache lock; the file itself is read outside of it so
+     * several threads can read entries at once. {@link #put(String, Entry)} replaces files
+     * atomically, so a concurrent write never leaves a half-written file to read.
      */
     @Override
-    public synchronized Entry get(String key) {
-        CacheHeader entry = mEntries.get(key);
+    public Entry get(String key) {
+        CacheHeader entry;
+        synchronized (this) {
+            entry = mEntries.get(key);
+        }
         // if the entry does not exist, return.
         if (entry == null) {
             return null;
@@ -130,17 +142,25 @@ public class DiskBasedCache implements Cache {
         File file = getFileForKey(key);
         CountingInputStream cis = null;
         try {
-            cis = new CountingInputStream(new BufferedInputStream(new FileInputStream(file)));
-            CacheHeader.readHeader(cis); // eat header
-            byte[] data = streamToBytes(cis, (int) (file.length() - cis.bytesRead));
-            return entry.toCacheEntry(data);
+            FileInputStream fis = new FileInputStream(file);
+            cis = new CountingInputStream(new BufferedInputStream(fis));
+            // Size the open file rather than the path: a concurrent put() may rename a new
+            // file into place after we opened this one.
+            long fileLength = fis.getChannel().size();
+            CacheHeader header = CacheHeader.readHeader(cis);
+            if (!key.equals(header.key)) {
+                throw new IOException("Expected key " + key + ", found " + header.key);
+            }
+            byte[] data = streamToBytes(cis, (int) (fileLength - cis.bytesRead));
+            // Use the header read along with the data, in case the entry was replaced meanwhile.
+            return header.toCacheEntry(data);
         } catch (IOException e) {
             VolleyLog.d("%s: %s", file.getAbsolutePath(), e.toString());
-            remove(key);
+            removeIfCurrent(key, entry);
             return null;
         } catch (NegativeArraySizeException e) {
             VolleyLog.d("%s: %s", file.getAbsolutePath(), e.toString());
-            remove(key);
+            removeIfCurrent(key, entry);
             return null;
         } finally {
             if (cis != null) {
@@ -171,6 +191,11 @@ public class DiskBasedCache implements Cache {
             return;
         }
         for (File file : files) {
+            if (file.getName().endsWith(TEMP_FILE_SUFFIX)) {
+                // Left over from a write that never completed.
+                file.delete();
+                continue;
+            }
             BufferedInputStream fis = null;
             try {
                 fis = new BufferedInputStream(new FileInputStream(file));
@@ -218,8 +243,10 @@ public class DiskBasedCache implements Cache {
     public synchronized void put(String key, Entry entry) {
         pruneIfNeeded(entry.data.length);
         File file = getFileForKey(key);
+        // Write next to the target and rename over it, so readers never see a partial file.
+        File tempFile = new File(mRootDirectory, file.getName() + TEMP_FILE_SUFFIX);
         try {
-            BufferedOutputStream fos = new BufferedOutputStream(new FileOutputStream(file));
+            BufferedOutputStream fos = new BufferedOutputStream(new FileOutputStream(tempFile));
             CacheHeader e = new CacheHeader(key, entry);
             boolean success = e.writeHeader(fos);
             if (!success) {
@@ -229,13 +256,17 @@ public class DiskBasedCache implements Cache {
             }
             fos.write(entry.data);
             fos.close();
+            if (!tempFile.renameTo(file)) {
+                VolleyLog.d("Could not rename %s", tempFile.getAbsolutePath());
+                throw new IOException();
+            }
             putEntry(key, e);
             return;
         } catch (IOException e) {
         }
-        boolean deleted = file.delete();
+        boolean deleted = tempFile.delete();
         if (!deleted) {
-            VolleyLog.d("Could not clean up file %s", file.getAbsolutePath());
+            VolleyLog.d("Could not clean up file %s", tempFile.getAbsolutePath());
         }
     }
 
@@ -252,6 +283,15 @@ public class DiskBasedCache implements Cache {
         }
     }
 
+    /**
+     * Removes the entry for the given key, unless it has been replaced since it was looked up.
+     */
+    private synchronized void removeIfCurrent(String key, CacheHeader entry) {
+        if (mEntries.get(key) == entry) {
+            remove(key);
+        }
+    }
+
     /**
      * Creates a pseudo-unique filename for the specified cache key.
      *
@@ -347,7 +387,7 @@ public class DiskBasedCache implements Cache {
     /**
      * Reads the contents of an InputStream into a byte[].
      */
-    private static byte[] streamToBytes(InputStream in, int length) throws IOException {
+    static byte[] streamToBytes(InputStream in, int length) throws IOException {
         byte[] bytes = new byte[length];
         int count;
         int pos = 0;
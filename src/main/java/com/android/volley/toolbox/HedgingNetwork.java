@@ -0,0 +1,561 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.volley.toolbox;
+
+import android.os.Process;
+
+import com.android.volley.AuthFailureError;
+import com.android.volley.Cache;
+import com.android.volley.DefaultRetryPolicy;
+import com.android.volley.Network;
+import com.android.volley.NetworkResponse;
+import com.android.volley.Request;
+import com.android.volley.Response;
+import com.android.volley.Response.ProgressListener;
+import com.android.volley.RetryPolicy;
+import com.android.volley.VolleyError;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A network that hedges GET requests against stuck connections. When a request has not
+ * completed within a percentile of the recent latency of its host, an identical attempt is
+ * started alongside it; whichever attempt succeeds first wins, and the other is canceled.
+ * <p>
+ * Hedges are limited to a share of the GET requests performed, so that a slow host does not get
+ * twice the load. A host's requests are not hedged until {@link #MIN_SAMPLES} of them have
+ * completed. Each request that may be hedged gets a hedge thread of its own, which waits for
+ * the hedge delay and then performs the hedge; requests arriving while all hedge threads are
+ * taken are not hedged, as a hedge started late would not help. Hedge threads stop when there
+ * is no hedging to do.
+ * <p>
+ * {@link StreamingRequest}s are not hedged, so their bodies are still parsed as they are read.
+ */
+public class HedgingNetwork implements Network {
+
+    /**
+     * Default percentile of recent latency after which a request is hedged.
+     */
+    public static final double DEFAULT_PERCENTILE = 95;
+
+    /**
+     * Default share of GET requests that may be hedged.
+     */
+    public static final double DEFAULT_BUDGET = 0.05;
+
+    /**
+     * Number of latencies a host needs before its requests are hedged.
+     */
+    public static final int MIN_SAMPLES = 20;
+
+    /**
+     * Number of recent latencies kept per host.
+     */
+    private static final int SAMPLE_SIZE = 128;
+
+    /**
+     * Default number of requests that may be hedged at once; the default number of network
+     * dispatchers of a {@link com.android.volley.RequestQueue}.
+     */
+    public static final int DEFAULT_MAX_HEDGED = 4;
+
+    /**
+     * How long an idle hedge thread is kept.
+     */
+    private static final long KEEP_ALIVE_MS = 10000;
+
+    private final Network mNetwork;
+    private final double mPercentile;
+    private final double mBudget;
+    private final ThreadPoolExecutor mHedgeExecutor;
+
+    /**
+     * Recent latencies per host.
+     */
+    private final ConcurrentHashMap<String, LatencyWindow> mLatencies =
+            new ConcurrentHashMap<String, LatencyWindow>();
+
+    private final AtomicLong mHedgeableCount = new AtomicLong();
+    private final AtomicLong mHedgesIssued = new AtomicLong();
+    private final AtomicLong mHedgesWon = new AtomicLong();
+
+    /**
+     * Hedges up to {@link #DEFAULT_BUDGET} of GET requests after {@link #DEFAULT_PERCENTILE}
+     * of their host's latency.
+     *
+     * @param network Network performing the attempts
+     */
+    public HedgingNetwork(Network network) {
+        this(network, DEFAULT_PERCENTILE, DEFAULT_BUDGET);
+    }
+
+    /**
+     * @param network    Network performing the attempts
+     * @param percentile Percentile of recent latency after which a request is hedged, from 0
+     *                   (excluded) to 100
+     * @param budget     Share of GET requests that may be hedged, from 0 to 1
+     */
+    public HedgingNetwork(Network network, double percentile, double budget) {
+        this(network, percentile, budget, DEFAULT_MAX_HEDGED);
+    }
+
+    /**
+     * @param network    Network performing the attempts
+     * @param percentile Percentile of recent latency after which a request is hedged, from 0
+     *                   (excluded) to 100
+     * @param budget     Share of GET requests that may be hedged, from 0 to 1
+     * @param maxHedged  Number of requests that may be hedged at once; best set to the number
+     *                   of requests performed on this network at once
+     */
+    public HedgingNetwork(Network network, double percentile, double budget, int maxHedged) {
+        if (percentile <= 0 || percentile > 100) {
+            throw new IllegalArgumentException("percentile must be above 0 and at most 100");
+        }
+        if (budget < 0 || budget > 1) {
+            throw new IllegalArgumentException("budget must be between 0 and 1");
+        }
+        if (maxHedged < 1) {
+            throw new IllegalArgumentException("maxHedged must be at least 1");
+        }
+        mNetwork = network;
+        mPercentile = percentile;
+        mBudget = budget;
+        // No core threads, so idle hedge threads stop; no queue, so a hedge never waits.
+        mHedgeExecutor = new ThreadPoolExecutor(0, maxHedged, KEEP_ALIVE_MS,
+                TimeUnit.MILLISECONDS, new SynchronousQueue<Runnable>(), new HedgeThreadFactory());
+    }
+
+    @Override
+    public NetworkResponse performRequest(Request<?> request) throws VolleyError {
+        // Only GETs can safely be sent twice. A streamed body is parsed into the request itself
+        // while it is read, so only one attempt may read it.
+        if (request.getMethod() != Request.Method.GET || request instanceof StreamingRequest) {
+            return mNetwork.performRequest(request);
+        }
+        mHedgeableCount.incrementAndGet();
+        String host = hostKey(request);
+        long delayMs = getHedgeDelayMs(host);
+        long startNs = System.nanoTime();
+        NetworkResponse response = delayMs < 0
+                ? mNetwork.performRequest(request)
+                : race(request, delayMs);
+        record(host, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNs));
+        return response;
+    }
+
+    /**
+     * Returns how long requests to a host run before being hedged.
+     *
+     * @param host The host, or null for URLs without one
+     * @return the delay in milliseconds, or -1 if too few requests to the host have completed
+     */
+    public long getHedgeDelayMs(String host) {
+        LatencyWindow window = mLatencies.get(host != null ? host : "");
+        return window != null ? window.getPercentile(mPercentile) : -1;
+    }
+
+    /**
+     * @return the number of hedges started
+     */
+    public long getHedgesIssued() {
+        return mHedgesIssued.get();
+    }
+
+    /**
+     * @return the number of hedges that completed before the attempt they hedged
+     */
+    public long getHedgesWon() {
+        return mHedgesWon.get();
+    }
+
+    /**
+     * Performs the request, hedging it if it takes longer than the given delay.
+     */
+    private NetworkResponse race(final Request<?> request, final long delayMs)
+            throws VolleyError {
+        final Race race = new Race(request);
+        // Canceling the request cancels every attempt.
+        request.setTransferAbort(race);
+        try {
+            try {
+                mHedgeExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (race.awaitHedgeTime(delayMs)) {
+                            hedge(race);
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // Every hedge thread is taken; perform the request without a hedge.
+            }
+            NetworkResponse response = null;
+            VolleyError error = null;
+            try {
+                response = mNetwork.performRequest(race.mPrimary);
+            } catch (VolleyError e) {
+                error = e;
+            }
+            return race.awaitResult(response, error);
+        } finally {
+            request.setTransferAbort(null);
+        }
+    }
+
+    /**
+     * Starts a hedge for a request, unless it has completed already or the budget is spent.
+     * Runs on a hedge thread.
+     */
+    private void hedge(Race race) {
+        Attempt attempt = race.startHedge();
+        if (attempt == null) {
+            return;
+        }
+        NetworkResponse response = null;
+        try {
+            response = mNetwork.performRequest(attempt);
+        } catch (VolleyError e) {
+            // The primary attempt decides the error.
+        } catch (RuntimeException e) {
+            // Likewise; the primary attempt runs into the same problem.
+        } finally {
+            race.hedgeDone(response);
+        }
+    }
+
+    /**
+     * Counts a hedge against the budget, if there is room for it.
+     */
+    private boolean takeFromBudget() {
+        while (true) {
+            long issued = mHedgesIssued.get();
+            if (issued + 1 > mBudget * mHedgeableCount.get()) {
+                return false;
+            }
+            if (mHedgesIssued.compareAndSet(issued, issued + 1)) {
+                return true;
+            }
+        }
+    }
+
+    private void record(String host, long latencyMs) {
+        LatencyWindow window = mLatencies.get(host);
+        if (window == null) {
+            LatencyWindow newWindow = new LatencyWindow();
+            window = mLatencies.putIfAbsent(host, newWindow);
+            if (window == null) {
+                window = newWindow;
+            }
+        }
+        window.record(latencyMs);
+    }
+
+    private static String hostKey(Request<?> request) {
+        String host = request.getHost();
+        return host != null ? host : "";
+    }
+
+    /**
+     * One request racing its hedge. Run when the request is canceled, to cancel both attempts.
+     */
+    private class Race implements Runnable {
+        final Request<?> mRequest;
+        final Attempt mPrimary;
+
+        /**
+         * The hedge, or null if none was started. Guarded by this.
+         */
+        private Attempt mHedge;
+
+        /**
+         * The attempt whose response is returned, or null while there is none. Guarded by this.
+         */
+        private Attempt mWinner;
+        private NetworkResponse mResponse;
+        private boolean mHedgeRunning;
+        private boolean mPrimaryDone;
+        private boolean mCanceled;
+
+        Race(Request<?> request) {
+            mRequest = request;
+            mPrimary = request instanceof ProgressListener
+                    ? new ProgressAttempt(request) : new Attempt(request, false);
+        }
+
+        @Override
+        public void run() {
+            Attempt hedge;
+            synchronized (this) {
+                mCanceled = true;
+                hedge = mHedge;
+                notifyAll();
+            }
+            mPrimary.cancel();
+            if (hedge != null) {
+                hedge.cancel();
+            }
+        }
+
+        /**
+         * Waits on a hedge thread until the request has run for the hedge delay.
+         *
+         * @return false if the primary attempt completed or the request was canceled first
+         */
+        synchronized boolean awaitHedgeTime(long delayMs) {
+            long deadlineNs = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMs);
+            while (!mPrimaryDone && !mCanceled) {
+                long remainingMs =
+                        TimeUnit.NANOSECONDS.toMillis(deadlineNs - System.nanoTime());
+                if (remainingMs <= 0) {
+                    return true;
+                }
+                try {
+                    wait(remainingMs);
+                } catch (InterruptedException e) {
+                    return false;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * @return the hedge to perform, or null if there is no need or no room for one
+         */
+        synchronized Attempt startHedge() {
+            if (mPrimaryDone || mCanceled || !takeFromBudget()) {
+                return null;
+            }
+            mHedge = new Attempt(mRequest, true);
+            mHedgeRunning = true;
+            return mHedge;
+        }
+
+        /**
+         * Records how the hedge ended, and cancels the primary attempt if the hedge won.
+         */
+        void hedgeDone(NetworkResponse response) {
+            synchronized (this) {
+                mHedgeRunning = false;
+                notifyAll();
+                if (response == null || mWinner != null) {
+                    return;
+                }
+                mWinner = mHedge;
+                mResponse = response;
+            }
+            mPrimary.cancel();
+        }
+
+        /**
+         * Records how the primary attempt ended, and waits for a hedge still in flight if the
+         * primary attempt failed.
+         *
+         * @return the response of the winning attempt
+         * @throws VolleyError the primary attempt's error, if no attempt succeeded
+         */
+        NetworkResponse awaitResult(NetworkResponse response, VolleyError error)
+                throws VolleyError {
+            Attempt loser = null;
+            Attempt winner;
+            boolean hedged;
+            synchronized (this) {
+                mPrimaryDone = true;
+                // Releases the hedge thread if the hedge delay has not passed yet.
+                notifyAll();
+                if (response != null && mWinner == null) {
+                    mWinner = mPrimary;
+                    mResponse = response;
+                    loser = mHedge;
+                }
+                boolean interrupted = false;
+                while (mWinner == null && mHedgeRunning) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+                winner = mWinner;
+                response = mResponse;
+                hedged = mHedge != null;
+            }
+            if (loser != null) {
+                loser.cancel();
+            }
+            // Markers are only added on the thread performing the request.
+            if (hedged) {
+                mRequest.addMarker("hedge-issued");
+            }
+            if (winner == mPrimary) {
+                return response;
+            }
+            if (winner != null) {
+                mHedgesWon.incrementAndGet();
+                mRequest.addMarker("hedge-won");
+                return response;
+            }
+            throw error;
+        }
+    }
+
+    /**
+     * One attempt at performing a request, which can be canceled without canceling the
+     * request itself. Its result is the raw network response, which the request it was made
+     * for parses and delivers once the race is decided.
+     */
+    private static class Attempt extends Request<NetworkResponse> {
+        final Request<?> mRequest;
+
+        /**
+         * Whether this is a hedge, which gets no retries of its own and leaves no markers.
+         */
+        private final boolean mHedge;
+
+        Attempt(Request<?> request, boolean hedge) {
+            super(request.getMethod(), request.getUrl(), null);
+            mRequest = request;
+            mHedge = hedge;
+            if (hedge) {
+                setRetryPolicy(new DefaultRetryPolicy(request.getTimeoutMs(), 0, 1f));
+            }
+        }
+
+        @Override
+        public String getUrl() {
+            return mRequest.getUrl();
+        }
+
+        @Override
+        public void setRedirectUrl(String redirectUrl) {
+            mRequest.setRedirectUrl(redirectUrl);
+        }
+
+        @Override
+        public Map<String, String> getHeaders() throws AuthFailureError {
+            return mRequest.getHeaders();
+        }
+
+        @Override
+        public Cache.Entry getCacheEntry() {
+            // A 304 merges headers into the cache entry, which only one attempt may do, so a
+            // hedge asks for the full response.
+            return mHedge ? null : mRequest.getCacheEntry();
+        }
+
+        @Override
+        public RetryPolicy getRetryPolicy() {
+            return mHedge ? super.getRetryPolicy() : mRequest.getRetryPolicy();
+        }
+
+        @Override
+        public void addMarker(String tag) {
+            if (!mHedge) {
+                mRequest.addMarker(tag);
+            }
+        }
+
+        @Override
+        protected Response<NetworkResponse> parseNetworkResponse(NetworkResponse response) {
+            return Response.success(response, null);
+        }
+
+        /**
+         * Does nothing: the winning response is returned by {@link HedgingNetwork#performRequest}
+         * and delivered through the request the attempt was made for.
+         */
+        @Override
+        protected void deliverResponse(NetworkResponse response) {
+        }
+    }
+
+    /**
+     * The primary attempt of a request that follows download progress.
+     */
+    private static class ProgressAttempt extends Attempt implements ProgressListener {
+        ProgressAttempt(Request<?> request) {
+            super(request, false);
+        }
+
+        @Override
+        public void onProgress(int progress, long transferredBytes, long totalSize,
+                long millisSpent, int retryCount) {
+            ((ProgressListener) mRequest).onProgress(
+                    progress, transferredBytes, totalSize, millisSpent, retryCount);
+        }
+    }
+
+    /**
+     * The most recent latencies of requests to one host.
+     */
+    private static class LatencyWindow {
+        private final long[] mSamples = new long[SAMPLE_SIZE];
+        private long mCount;
+
+        synchronized void record(long latencyMs) {
+            mSamples[(int) (mCount % SAMPLE_SIZE)] = latencyMs;
+            mCount++;
+        }
+
+        /**
+         * @return the latency below which the percentile of recent requests completed, or -1
+         * if there are too few of them
+         */
+        synchronized long getPercentile(double percentile) {
+            int n = (int) Math.min(mCount, SAMPLE_SIZE);
+            if (n < MIN_SAMPLES) {
+                return -1;
+            }
+            long[] sorted = new long[n];
+            System.arraycopy(mSamples, 0, sorted, 0, n);
+            Arrays.sort(sorted);
+            int rank = (int) Math.ceil(percentile / 100 * n);
+            return sorted[Math.max(rank - 1, 0)];
+        }
+    }
+
+    /**
+     * Creates background-priority daemon threads for hedges, so an idle network never keeps
+     * the process alive.
+     */
+    private static class HedgeThreadFactory implements ThreadFactory {
+        private final AtomicInteger mCount = new AtomicInteger();
+
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    runnable.run();
+                }
+            }, "Volley-Hedge-" + mCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -98,7 +98,7 @@ public class HttpClientStack implements HttpStack {
     @Override
     public HttpResponse performRequest(Request<?> request, Map<String, String> additionalHeaders)
             throws IOException, AuthFailureError {
-        HttpUriRequest httpRequest = createHttpRequest(request, additionalHeaders);
+        final HttpUriRequest httpRequest = createHttpRequest(request, additionalHeaders);
         addHeaders(httpRequest, additionalHeaders);
         addHeaders(httpRequest, request.getHeaders());
         onPrepareRequest(httpRequest);
@@ -108,6 +108,13 @@ public class HttpClientStack implements HttpStack {
         // data collection and possibly different for wifi vs. 3G.
         HttpConnectionParams.setConnectionTimeout(httpParams, 5000);
         HttpConnectionParams.setSoTimeout(httpParams, timeoutMs);
+        // Canceling the request aborts the exchange, failing any read or write in progress.
+        request.setTransferAbort(new Runnable() {
+            @Override
+            public void run() {
+                httpRequest.abort();
+            }
+        });
         return mClient.execute(httpRequest);
     }
 
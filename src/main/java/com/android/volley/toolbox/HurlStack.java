@@ -103,7 +103,14 @@ public class HurlStack implements HttpStack {
             url = rewritten;
         }
         URL parsedUrl = new URL(url);
-        HttpURLConnection connection = openConnection(parsedUrl, request);
+        final HttpURLConnection connection = openConnection(parsedUrl, request);
+        // Canceling the request closes the connection, failing any read or write in progress.
+        request.setTransferAbort(new Runnable() {
+            @Override
+            public void run() {
+                connection.disconnect();
+            }
+        });
         for (String headerName : map.keySet()) {
             connection.addRequestProperty(headerName, map.get(headerName));
         }
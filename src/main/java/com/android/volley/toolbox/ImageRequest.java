@@ -144,6 +144,17 @@ public class ImageRequest extends Request<Bitmap> implements Response.ProgressLi
         return Priority.LOW;
     }
 
+    @Override
+    public boolean canShareResponseOf(Request<?> other) {
+        if (!super.canShareResponseOf(other)) {
+            return false;
+        }
+        // The bitmap is decoded for the requested size and format.
+        ImageRequest image = (ImageRequest) other;
+        return mMaxWidth == image.mMaxWidth && mMaxHeight == image.mMaxHeight
+                && mScaleType == image.mScaleType && mDecodeConfig == image.mDecodeConfig;
+    }
+
     @Override
     protected Response<Bitmap> parseNetworkResponse(NetworkResponse response) {
         // Serialize all decode on a global lock to reduce concurrent heap usage.
@@ -0,0 +1,48 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import com.android.volley.NetworkResponse;
+import com.android.volley.Request;
+import com.android.volley.RequestQueue;
+import com.android.volley.Response;
+
+/**
+ * A request for {@link RequestQueue#prefetch(Request)} that stores the response at a URL in
+ * cache without parsing it. A later GET request for the URL, of any type, parses the cached
+ * bytes itself.
+ */
+public class PrefetchRequest extends Request<Void> {
+
+    /**
+     * Creates a request prefetching the given URL.
+     *
+     * @param url URL to fetch into cache
+     */
+    public PrefetchRequest(String url) {
+        super(Method.GET, url, null);
+    }
+
+    @Override
+    protected Response<Void> parseNetworkResponse(NetworkResponse response) {
+        return Response.success(null, HttpHeaderParser.parseCacheHeaders(response));
+    }
+
+    @Override
+    protected void deliverResponse(Void response) {
+    }
+}
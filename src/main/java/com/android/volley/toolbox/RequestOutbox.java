@@ -0,0 +1,751 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import android.os.Process;
+
+import com.android.volley.AuthFailureError;
+import com.android.volley.CircuitOpenError;
+import com.android.volley.DeadlineExceededError;
+import com.android.volley.NetworkError;
+import com.android.volley.NetworkResponse;
+import com.android.volley.QueueFullError;
+import com.android.volley.Request;
+import com.android.volley.RequestQueue;
+import com.android.volley.Response;
+import com.android.volley.ServerError;
+import com.android.volley.TimeoutError;
+import com.android.volley.VolleyError;
+import com.android.volley.VolleyLog;
+
+import org.apache.http.HttpStatus;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.CRC32;
+
+/**
+ * A durable outbox for requests that must reach the server eventually, such as writes made
+ * while the device is offline.
+ * <p>
+ * {@link #add(Request)} queues the request's method, URL, headers and body to be appended to a
+ * log in the given directory and synced to disk, so the request survives the process being
+ * killed. All disk writes happen on the outbox's own thread, so requests can be added from the
+ * main thread; {@link #flush()} waits for them. Each request gets an idempotency key, sent as the {@value #IDEMPOTENCY_KEY_HEADER}
+ * header, so the server can discard a write it has already applied when an acknowledgement was
+ * lost. {@link #replay(RequestQueue)} sends the pending requests in the order they were added,
+ * {@link #getBatchSize()} at a time; each batch goes out once the previous one has finished.
+ * A request leaves the outbox once the server has answered it, or failed it in a way that
+ * sending it again would not fix. When a request fails because the network or server is
+ * unavailable, it stays in the outbox and replay stops until it is called again, typically when
+ * connectivity returns.
+ * <p>
+ * Only what goes over the wire is stored: the listeners of the original request are not, and
+ * are never called. Outcomes are reported to the {@link Listener} instead, by key. Replayed
+ * requests bypass the cache.
+ * <p>
+ * The log is compacted once most of its records belong to requests that have left the outbox.
+ */
+public class RequestOutbox {
+
+    /**
+     * Header carrying the idempotency key of every request sent from the outbox.
+     */
+    public static final String IDEMPOTENCY_KEY_HEADER = "Idempotency-Key";
+
+    /**
+     * Default number of requests sent together during replay.
+     */
+    public static final int DEFAULT_BATCH_SIZE = 8;
+
+    /**
+     * Number of dead records the log holds before it may be compacted.
+     */
+    private static final int COMPACT_THRESHOLD = 64;
+
+    /**
+     * Name of the log file within the root directory.
+     */
+    private static final String LOG_FILE = "outbox.log";
+
+    /**
+     * Suffix of the file the log is compacted into before it replaces the log.
+     */
+    private static final String TEMP_FILE_SUFFIX = ".tmp";
+
+    /**
+     * Record adding a request to the outbox.
+     */
+    private static final int RECORD_ADD = 1;
+
+    /**
+     * Record removing a request from the outbox.
+     */
+    private static final int RECORD_ACK = 2;
+
+    /**
+     * Receives the outcome of requests sent from the outbox.
+     */
+    public interface Listener {
+        /**
+         * Called when the server has answered the request with the given key.
+         */
+        void onDelivered(String key, NetworkResponse response);
+
+        /**
+         * Called when the request with the given key has failed in a way that sending it again
+         * would not fix. The request has been removed from the outbox.
+         */
+        void onFailed(String key, VolleyError error);
+    }
+
+    /**
+     * The directory holding the log.
+     */
+    private final File mRootDirectory;
+
+    /**
+     * Maximum number of requests in flight during replay.
+     */
+    private final int mBatchSize;
+
+    /**
+     * Requests waiting to be acknowledged, keyed by idempotency key, in the order they were added.
+     */
+    private final Map<String, Entry> mPending = new LinkedHashMap<String, Entry>();
+
+    /**
+     * Keys of the requests of the current batch.
+     */
+    private final Set<String> mInFlight = new HashSet<String>();
+
+    /**
+     * Whether the log has been read into {@link #mPending}.
+     */
+    private boolean mInitialized = false;
+
+    /**
+     * Number of records in the log that compaction would drop. Only used on the writer thread
+     * once the log has been read.
+     */
+    private int mDeadRecords = 0;
+
+    /**
+     * Stream appending to the log, or null until the first write. Only used on the writer
+     * thread.
+     */
+    private FileOutputStream mLogStream;
+
+    /**
+     * Thread appending, syncing and compacting the log, in the order the changes were made.
+     */
+    private final ExecutorService mWriter =
+            Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable runnable) {
+                    Thread thread = new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                            runnable.run();
+                        }
+                    }, "Volley-Outbox");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    /**
+     * The queue replay sends requests to.
+     */
+    private RequestQueue mQueue;
+
+    /**
+     * Whether replay has stopped on a request that could not be sent.
+     */
+    private boolean mStalled = false;
+
+    private volatile Listener mListener;
+
+    /**
+     * Creates an outbox keeping its log in the given directory.
+     *
+     * @param rootDirectory The directory to keep the log in, created if missing
+     */
+    public RequestOutbox(File rootDirectory) {
+        this(rootDirectory, DEFAULT_BATCH_SIZE);
+    }
+
+    /**
+     * @param rootDirectory The directory to keep the log in, created if missing
+     * @param batchSize     Number of requests sent together during replay; 1 sends them one
+     *                      after the other
+     */
+    public RequestOutbox(File rootDirectory, int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("batchSize must be at least 1");
+        }
+        mRootDirectory = rootDirectory;
+        mBatchSize = batchSize;
+    }
+
+    /**
+     * Reads the log into memory. Called by {@link #replay}, {@link #getPendingCount()} and the
+     * writer thread the first time they need it, but may be called ahead of time off the main
+     * thread. A record cut short by a crash while it was being written is dropped.
+     */
+    public synchronized void initialize() {
+        if (mInitialized) {
+            return;
+        }
+        if (!mRootDirectory.exists() && !mRootDirectory.mkdirs()) {
+            VolleyLog.e("Unable to create outbox dir %s", mRootDirectory.getAbsolutePath());
+        }
+        File log = getLogFile();
+        new File(log.getPath() + TEMP_FILE_SUFFIX).delete();
+        // Requests added before the log was read go after the ones in it.
+        Map<String, Entry> added = new LinkedHashMap<String, Entry>(mPending);
+        mPending.clear();
+        if (log.exists()) {
+            readLog(log);
+        }
+        mPending.putAll(added);
+        mInitialized = true;
+    }
+
+    /**
+     * Sets the listener told about the outcome of requests sent from the outbox.
+     */
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * @return the number of requests sent together during replay
+     */
+    public int getBatchSize() {
+        return mBatchSize;
+    }
+
+    /**
+     * @return the number of requests waiting to be acknowledged, including those in flight
+     */
+    public synchronized int getPendingCount() {
+        initialize();
+        return mPending.size();
+    }
+
+    /**
+     * Stores a request in the outbox. It is sent on the next call to {@link #replay}. Returns
+     * once the write to disk is queued; a write that fails is logged, and the request is then
+     * only kept in memory.
+     *
+     * @return the idempotency key of the request
+     * @throws AuthFailureError if the request cannot produce its headers or body
+     * @throws IOException if the request could not be serialized
+     */
+    public String add(Request<?> request) throws AuthFailureError, IOException {
+        Map<String, String> headers = new HashMap<String, String>(request.getHeaders());
+        String key = UUID.randomUUID().toString();
+        headers.put(IDEMPOTENCY_KEY_HEADER, key);
+        Entry entry = new Entry(key, request.getMethod(), request.getUrl(), headers,
+                request.getBodyContentType(), request.getBody());
+
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        payload.write(RECORD_ADD);
+        entry.writeTo(payload);
+        synchronized (this) {
+            mPending.put(key, entry);
+            // Queued under the lock, so records reach the log in the order of mPending.
+            writeLater(payload.toByteArray(), true, false);
+        }
+        return key;
+    }
+
+    /**
+     * Waits until every change made to the outbox so far has been written to disk.
+     */
+    public void flush() {
+        Future<?> done = mWriter.submit(new Runnable() {
+            @Override
+            public void run() {
+            }
+        });
+        boolean interrupted = false;
+        while (true) {
+            try {
+                done.get();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            } catch (ExecutionException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Sends the pending requests to the given queue, in the order they were added. Returns
+     * right away; the batches after the first go out as the ones before them finish. Does
+     * nothing while a batch is already in flight.
+     *
+     * @return the number of requests sent in the first batch
+     */
+    public int replay(RequestQueue queue) {
+        List<Request<?>> batch;
+        synchronized (this) {
+            initialize();
+            mQueue = queue;
+            mStalled = false;
+            batch = nextBatch();
+        }
+        queue.addAll(batch);
+        return batch.size();
+    }
+
+    /**
+     * Waits for queued writes and closes the log. The outbox reopens it if used again.
+     */
+    public void close() {
+        mWriter.execute(new Runnable() {
+            @Override
+            public void run() {
+                closeLog();
+            }
+        });
+        flush();
+        synchronized (this) {
+            mInitialized = false;
+            mPending.clear();
+            mInFlight.clear();
+        }
+    }
+
+    /**
+     * Returns whether a request that failed with the given error should stay in the outbox to
+     * be sent again. By default it stays when the network, the server or the queue was
+     * unavailable, or the server asked to be tried again later with a 408 or 429.
+     */
+    protected boolean shouldKeep(VolleyError error) {
+        if (error instanceof NetworkError || error instanceof TimeoutError
+                || error instanceof CircuitOpenError || error instanceof QueueFullError
+                || error instanceof DeadlineExceededError) {
+            return true;
+        }
+        if (error instanceof ServerError) {
+            if (error.networkResponse == null) {
+                return true;
+            }
+            int statusCode = error.networkResponse.statusCode;
+            return statusCode >= 500 || statusCode == HttpStatus.SC_REQUEST_TIMEOUT
+                    || statusCode == BasicNetwork.SC_TOO_MANY_REQUESTS;
+        }
+        return false;
+    }
+
+    /**
+     * Picks the next batch of requests and marks them in flight. Must be called with the lock
+     * held; the caller adds them to the queue once it has released it.
+     */
+    private List<Request<?>> nextBatch() {
+        if (!mInFlight.isEmpty() || mStalled || mQueue == null) {
+            return Collections.emptyList();
+        }
+        List<Request<?>> batch = new ArrayList<Request<?>>();
+        Iterator<Entry> it = mPending.values().iterator();
+        while (it.hasNext() && batch.size() < mBatchSize) {
+            Entry entry = it.next();
+            mInFlight.add(entry.key);
+            batch.add(new OutboxRequest(entry));
+        }
+        return batch;
+    }
+
+    /**
+     * Records the outcome of a request sent from the outbox and sends the next batch once the
+     * current one is done.
+     *
+     * @param response The server's answer, or null if there is none
+     * @param error    The error the request failed with, or null if there is none
+     */
+    private void onOutcome(String key, NetworkResponse response, VolleyError error) {
+        boolean keep = response == null && (error == null || shouldKeep(error));
+        List<Request<?>> batch;
+        RequestQueue queue;
+        synchronized (this) {
+            if (!mInFlight.remove(key)) {
+                return;
+            }
+            if (keep) {
+                mStalled = true;
+            } else {
+                acknowledge(key);
+            }
+            batch = nextBatch();
+            queue = mQueue;
+        }
+        Listener listener = mListener;
+        if (listener != null && !keep) {
+            if (response != null) {
+                listener.onDelivered(key, response);
+            } else {
+                listener.onFailed(key, error);
+            }
+        }
+        if (!batch.isEmpty()) {
+            queue.addAll(batch);
+        }
+    }
+
+    /**
+     * Removes a request from the outbox. Must be called with the lock held. The record is not
+     * synced: if it is lost, the request is sent again and the server recognizes its
+     * idempotency key.
+     */
+    private void acknowledge(String key) {
+        if (mPending.remove(key) == null) {
+            return;
+        }
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        payload.write(RECORD_ACK);
+        try {
+            DiskBasedCache.writeString(payload, key);
+        } catch (IOException e) {
+            // Writing to memory does not fail.
+            throw new IllegalStateException(e);
+        }
+        writeLater(payload.toByteArray(), false, true);
+    }
+
+    /**
+     * Has the writer thread append a record to the log.
+     *
+     * @param sync       Whether to sync the log to disk after the record
+     * @param deadRecord Whether the record drops a request, making the log a candidate for
+     *                   compaction
+     */
+    private void writeLater(final byte[] payload, final boolean sync, final boolean deadRecord) {
+        mWriter.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    openLog();
+                    writeRecord(mLogStream, payload);
+                    if (sync) {
+                        mLogStream.getFD().sync();
+                    }
+                } catch (IOException e) {
+                    VolleyLog.e("Unable to write outbox log: %s", e.toString());
+                    return;
+                }
+                if (deadRecord) {
+                    // The request's add record and this one.
+                    mDeadRecords += 2;
+                    maybeCompact();
+                }
+            }
+        });
+    }
+
+    /**
+     * Reads the log if nobody has yet, and opens it for appending. Runs on the writer thread.
+     */
+    private void openLog() throws IOException {
+        if (mLogStream == null) {
+            initialize();
+            mLogStream = new FileOutputStream(getLogFile(), true);
+        }
+    }
+
+    /**
+     * Closes the log. Runs on the writer thread.
+     */
+    private void closeLog() {
+        if (mLogStream == null) {
+            return;
+        }
+        try {
+            mLogStream.close();
+        } catch (IOException e) {
+            VolleyLog.d("Unable to close outbox log: %s", e.toString());
+        }
+        mLogStream = null;
+        mDeadRecords = 0;
+    }
+
+    /**
+     * Rewrites the log with only the pending requests, once most of its records are dead.
+     * Runs on the writer thread.
+     */
+    private void maybeCompact() {
+        List<Entry> pending;
+        synchronized (this) {
+            if (mDeadRecords < COMPACT_THRESHOLD || mDeadRecords <= mPending.size()) {
+                return;
+            }
+            pending = new ArrayList<Entry>(mPending.values());
+        }
+        File log = getLogFile();
+        File temp = new File(log.getPath() + TEMP_FILE_SUFFIX);
+        try {
+            FileOutputStream fos = new FileOutputStream(temp);
+            try {
+                for (Entry entry : pending) {
+                    ByteArrayOutputStream payload = new ByteArrayOutputStream();
+                    payload.write(RECORD_ADD);
+                    entry.writeTo(payload);
+                    writeRecord(fos, payload.toByteArray());
+                }
+                fos.getFD().sync();
+            } finally {
+                fos.close();
+            }
+            mLogStream.close();
+            if (!temp.renameTo(log)) {
+                throw new IOException("Unable to rename " + temp);
+            }
+            mDeadRecords = 0;
+        } catch (IOException e) {
+            VolleyLog.e("Unable to compact outbox log: %s", e.toString());
+            temp.delete();
+        } finally {
+            try {
+                mLogStream = new FileOutputStream(log, true);
+            } catch (IOException e) {
+                // The next write tries again.
+                VolleyLog.e("Unable to reopen outbox log: %s", e.toString());
+                mLogStream = null;
+            }
+        }
+    }
+
+    /**
+     * Writes a record as its length, the CRC32 of its payload and the payload itself, in a
+     * single write.
+     */
+    private static void writeRecord(FileOutputStream os, byte[] payload) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        ByteArrayOutputStream record = new ByteArrayOutputStream(payload.length + 8);
+        DiskBasedCache.writeInt(record, payload.length);
+        DiskBasedCache.writeInt(record, (int) crc.getValue());
+        record.write(payload);
+        os.write(record.toByteArray());
+    }
+
+    /**
+     * Replays the log into {@link #mPending}, truncating it after the last intact record.
+     */
+    private void readLog(File log) {
+        long length = log.length();
+        long validLength = 0;
+        int records = 0;
+        InputStream is = null;
+        try {
+            is = new BufferedInputStream(new FileInputStream(log));
+            while (validLength < length) {
+                int size = DiskBasedCache.readInt(is);
+                int checksum = DiskBasedCache.readInt(is);
+                if (size < 1 || size > length - validLength - 8) {
+                    break;
+                }
+                byte[] payload = DiskBasedCache.streamToBytes(is, size);
+                CRC32 crc = new CRC32();
+                crc.update(payload);
+                if ((int) crc.getValue() != checksum) {
+                    break;
+                }
+                applyRecord(payload);
+                validLength += size + 8;
+                records++;
+            }
+        } catch (EOFException e) {
+            // A record was cut short; everything before it is intact.
+        } catch (IOException e) {
+            VolleyLog.e("Unable to read outbox log: %s", e.toString());
+        } finally {
+            if (is != null) {
+                try {
+                    is.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+        mDeadRecords = records - mPending.size();
+        if (validLength < length) {
+            VolleyLog.d("Dropping %d bytes torn off the end of the outbox log",
+                    length - validLength);
+            truncate(log, validLength);
+        }
+    }
+
+    private void applyRecord(byte[] payload) throws IOException {
+        InputStream is = new ByteArrayInputStream(payload, 1, payload.length - 1);
+        switch (payload[0]) {
+            case RECORD_ADD:
+                Entry entry = Entry.readFrom(is);
+                mPending.put(entry.key, entry);
+                break;
+            case RECORD_ACK:
+                mPending.remove(DiskBasedCache.readString(is));
+                break;
+            default:
+                throw new IOException("Unknown outbox record " + payload[0]);
+        }
+    }
+
+    private static void truncate(File log, long length) {
+        try {
+            RandomAccessFile file = new RandomAccessFile(log, "rw");
+            try {
+                file.setLength(length);
+            } finally {
+                file.close();
+            }
+        } catch (IOException e) {
+            VolleyLog.e("Unable to truncate outbox log: %s", e.toString());
+        }
+    }
+
+    private File getLogFile() {
+        return new File(mRootDirectory, LOG_FILE);
+    }
+
+    /**
+     * What the outbox keeps of a request.
+     */
+    private static class Entry {
+        final String key;
+        final int method;
+        final String url;
+        final Map<String, String> headers;
+        final String bodyContentType;
+        final byte[] body;
+
+        Entry(String key, int method, String url, Map<String, String> headers,
+                String bodyContentType, byte[] body) {
+            this.key = key;
+            this.method = method;
+            this.url = url;
+            this.headers = headers;
+            this.bodyContentType = bodyContentType;
+            this.body = body;
+        }
+
+        void writeTo(ByteArrayOutputStream os) throws IOException {
+            DiskBasedCache.writeString(os, key);
+            DiskBasedCache.writeInt(os, method);
+            DiskBasedCache.writeString(os, url);
+            DiskBasedCache.writeStringStringMap(headers, os);
+            DiskBasedCache.writeString(os, bodyContentType);
+            if (body == null) {
+                DiskBasedCache.writeInt(os, -1);
+            } else {
+                DiskBasedCache.writeInt(os, body.length);
+                os.write(body);
+            }
+        }
+
+        static Entry readFrom(InputStream is) throws IOException {
+            String key = DiskBasedCache.readString(is);
+            int method = DiskBasedCache.readInt(is);
+            String url = DiskBasedCache.readString(is);
+            Map<String, String> headers = DiskBasedCache.readStringStringMap(is);
+            String bodyContentType = DiskBasedCache.readString(is);
+            int bodyLength = DiskBasedCache.readInt(is);
+            byte[] body = bodyLength < 0 ? null : DiskBasedCache.streamToBytes(is, bodyLength);
+            return new Entry(key, method, url, headers, bodyContentType, body);
+        }
+    }
+
+    /**
+     * Sends an outbox entry and reports its outcome back to the outbox.
+     */
+    private class OutboxRequest extends Request<NetworkResponse> {
+        private final Entry mEntry;
+
+        OutboxRequest(Entry entry) {
+            super(entry.method, entry.url, null);
+            mEntry = entry;
+            setShouldCache(false);
+        }
+
+        @Override
+        public Map<String, String> getHeaders() {
+            return mEntry.headers;
+        }
+
+        @Override
+        public String getBodyContentType() {
+            return mEntry.bodyContentType;
+        }
+
+        @Override
+        public byte[] getBody() {
+            return mEntry.body;
+        }
+
+        @Override
+        protected Response<NetworkResponse> parseNetworkResponse(NetworkResponse response) {
+            return Response.success(response, null);
+        }
+
+        @Override
+        protected void deliverResponse(NetworkResponse response) {
+            onOutcome(mEntry.key, response, null);
+        }
+
+        @Override
+        public void deliverError(VolleyError error) {
+            onOutcome(mEntry.key, null, error);
+        }
+
+        @Override
+        protected void onFinish() {
+            super.onFinish();
+            // Does nothing once the outcome has been delivered. Otherwise the request was
+            // canceled, and its entry stays for the next replay.
+            onOutcome(mEntry.key, null, null);
+        }
+    }
+}
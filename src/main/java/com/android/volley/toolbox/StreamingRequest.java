@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import com.android.volley.NetworkResponse;
+import com.android.volley.ParseError;
+import com.android.volley.Request;
+import com.android.volley.Response;
+import com.android.volley.Response.ErrorListener;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A request parsing a successful response body as it is read from the connection, on the
+ * network thread, instead of after {@link BasicNetwork} has copied all of it into a byte[].
+ * This keeps large bodies out of memory and gets the parse going with the first bytes.
+ * <p>
+ * A streamed body is not kept, so the response is not cached unless the request is set to
+ * {@link #setTeeToCache tee}: the body is then also copied aside while it is parsed and
+ * cached once the transfer is complete. Bodies that do not come from the connection, such
+ * as cache hits, 304s with a cache entry, or responses from another {@link
+ * com.android.volley.Network}, go through the same parser from a byte[].
+ *
+ * @param <T> The type of parsed response this request expects.
+ */
+public abstract class StreamingRequest<T> extends Request<T> {
+
+    /**
+     * Whether the streamed body is also kept for the cache.
+     */
+    private volatile boolean mTeeToCache = false;
+
+    /**
+     * Result of parsing the body streamed by the last attempt, until picked up by
+     * {@link #parseNetworkResponse(NetworkResponse)}.
+     */
+    private volatile Response<T> mStreamed;
+
+    /**
+     * Creates a new request.
+     *
+     * @param method        the request {@link Method} to use
+     * @param url           URL to fetch
+     * @param errorListener Error listener, or null to ignore errors
+     */
+    public StreamingRequest(int method, String url, ErrorListener errorListener) {
+        super(method, url, errorListener);
+    }
+
+    /**
+     * Sets whether the body is also copied aside while it is streamed, so the response can be
+     * cached. Off by default.
+     *
+     * @return This Request object to allow for chaining.
+     */
+    public StreamingRequest<T> setTeeToCache(boolean teeToCache) {
+        mTeeToCache = teeToCache;
+        return this;
+    }
+
+    /**
+     * @return whether the streamed body is kept for the cache
+     */
+    public boolean isTeeToCache() {
+        return mTeeToCache;
+    }
+
+    /**
+     * Parses a response body from a stream. Called on the network thread while the body is
+     * being read from the connection, or on the thread parsing responses for bodies already in
+     * memory. The stream is closed by the caller.
+     *
+     * @param in       The response body
+     * @param response Status code and headers of the response; its data is null while the
+     *                 body is streamed
+     * @return The parsed response, or null in the case of an error
+     * @throws IOException if the body could not be read
+     */
+    protected abstract Response<T> parseNetworkStream(InputStream in, NetworkResponse response)
+            throws IOException;
+
+    /**
+     * Parses the body streamed from the connection. Called by {@link BasicNetwork}.
+     */
+    final void onNetworkStream(InputStream in, NetworkResponse response) throws IOException {
+        mStreamed = null;
+        mStreamed = parseNetworkStream(in, response);
+    }
+
+    @Override
+    protected Response<T> parseNetworkResponse(NetworkResponse response) {
+        Response<T> streamed = mStreamed;
+        mStreamed = null;
+        if (streamed == null) {
+            byte[] data = response.data != null ? response.data : new byte[0];
+            try {
+                return parseNetworkStream(new ByteArrayInputStream(data), response);
+            } catch (IOException e) {
+                return Response.error(new ParseError(e));
+            }
+        }
+        if (!streamed.isSuccess() || streamed.cacheEntry == null) {
+            return streamed;
+        }
+        if (!mTeeToCache) {
+            // Nothing of the body is left to cache.
+            return Response.success(streamed.result, null);
+        }
+        streamed.cacheEntry.data = response.data;
+        return streamed;
+    }
+}
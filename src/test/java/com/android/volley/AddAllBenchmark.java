@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.volley;
+
+import com.android.volley.mock.MockNetwork;
+import com.android.volley.mock.MockRequest;
+import com.android.volley.toolbox.NoCache;
+import com.android.volley.utils.BenchmarkUtils;
+import com.android.volley.utils.ImmediateResponseDelivery;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Compares {@link RequestQueue#addAll(java.util.Collection)} with calling
+ * {@link RequestQueue#add(Request)} in a loop, for a screen's worth of requests at once.
+ * See {@link BenchmarkUtils} for how to run it.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class AddAllBenchmark {
+
+    private static final int BATCH_SIZE = 100;
+
+    @Test
+    public void addAllVersusLoopedAdd() throws Exception {
+        final long[] looped = new long[2];
+        final long[] batched = new long[2];
+        BenchmarkUtils.run(new BenchmarkUtils.Round() {
+            @Override
+            public void run(boolean measured) throws Exception {
+                runRound(false, measured ? looped : null);
+                runRound(true, measured ? batched : null);
+            }
+        });
+        report("add() loop", looped);
+        report("addAll()", batched);
+    }
+
+    /**
+     * Submits one batch to a fresh queue and waits for all of it to finish.
+     *
+     * @param timesNs If not null, accumulates the submission and completion times
+     */
+    private void runRound(boolean batch, long[] timesNs) throws Exception {
+        MockNetwork network = new MockNetwork();
+        network.setDataToReturn(new byte[16]);
+        RequestQueue queue = new RequestQueue(new NoCache(), network, 4,
+                new ImmediateResponseDelivery());
+        final CountDownLatch finished = new CountDownLatch(BATCH_SIZE);
+        queue.addRequestFinishedListener(new RequestQueue.RequestFinishedListener<Object>() {
+            @Override
+            public void onRequestFinished(Request<Object> request) {
+                finished.countDown();
+            }
+        });
+        List<Request<?>> requests = new ArrayList<Request<?>>(BATCH_SIZE);
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            requests.add(new MockRequest("http://foo.com/" + i, null));
+        }
+        queue.start();
+        try {
+            long startNs = System.nanoTime();
+            if (batch) {
+                queue.addAll(requests);
+            } else {
+                for (Request<?> request : requests) {
+                    queue.add(request);
+                }
+            }
+            long submittedNs = System.nanoTime();
+            assertTrue(finished.await(10, TimeUnit.SECONDS));
+            long finishedNs = System.nanoTime();
+            if (timesNs != null) {
+                timesNs[0] += submittedNs - startNs;
+                timesNs[1] += finishedNs - startNs;
+            }
+        } finally {
+            queue.stop();
+        }
+    }
+
+    private static void report(String label, long[] timesNs) {
+        BenchmarkUtils.report(label, "submit %6.1f us, all finished %8.1f us per batch of %d",
+                timesNs[0] / 1000.0 / BenchmarkUtils.DEFAULT_MEASURED_ROUNDS,
+                timesNs[1] / 1000.0 / BenchmarkUtils.DEFAULT_MEASURED_ROUNDS, BATCH_SIZE);
+    }
+}
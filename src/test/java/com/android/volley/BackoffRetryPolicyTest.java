@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.volley;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+@RunWith(RobolectricTestRunner.class)
+public class BackoffRetryPolicyTest {
+
+    @Test
+    public void delaysAreJitteredUnderExponentialCeiling() throws Exception {
+        BackoffRetryPolicy policy =
+                new BackoffRetryPolicy(1000, 4, 100, 300, new RetryBudget(1, 10));
+        long[] ceilings = {100, 200, 300, 300};
+        for (long ceiling : ceilings) {
+            policy.retry(new TimeoutError());
+            assertTrue(policy.getRetryDelayMs() >= 0);
+            assertTrue(policy.getRetryDelayMs() <= ceiling);
+            // The timeout does not back off; the delay does.
+            assertEquals(1000, policy.getCurrentTimeout());
+        }
+        assertGivesUp(policy, new TimeoutError());
+    }
+
+    @Test
+    public void retryAfterIsHonored() throws Exception {
+        BackoffRetryPolicy policy =
+                new BackoffRetryPolicy(1000, 3, 100, 5000, new RetryBudget(1, 10));
+        policy.retry(unavailable("2"));
+        assertEquals(2000, policy.getRetryDelayMs());
+
+        // Longer than the policy is willing to wait.
+        assertGivesUp(policy, unavailable("60"));
+    }
+
+    @Test
+    public void budgetCapsRetries() throws Exception {
+        RetryBudget budget = new RetryBudget(0.5, 1);
+        BackoffRetryPolicy first = new BackoffRetryPolicy(1000, 3, 100, 1000, budget);
+        first.retry(new TimeoutError());
+        // The reserve is spent, and one more request adds only half a retry.
+        BackoffRetryPolicy second = new BackoffRetryPolicy(1000, 3, 100, 1000, budget);
+        assertGivesUp(second, new TimeoutError());
+        assertEquals(1, budget.getDeniedCount());
+
+        new BackoffRetryPolicy(1000, 3, 100, 1000, budget);
+        second.retry(new TimeoutError());
+    }
+
+    private static ServerError unavailable(String retryAfter) {
+        return new ServerError(new NetworkResponse(503, new byte[0],
+                Collections.singletonMap("Retry-After", retryAfter), false));
+    }
+
+    private static void assertGivesUp(RetryPolicy policy, VolleyError error) {
+        try {
+            policy.retry(error);
+            fail("Expected the policy to give up");
+        } catch (VolleyError e) {
+            assertSame(error, e);
+        }
+    }
+}
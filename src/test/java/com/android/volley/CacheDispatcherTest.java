@@ -16,6 +16,8 @@
 
 package com.android.volley;
 
+import android.os.SystemClock;
+
 import com.android.volley.mock.MockCache;
 import com.android.volley.mock.MockRequest;
 import com.android.volley.mock.MockResponseDelivery;
@@ -28,6 +30,7 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.robolectric.RobolectricTestRunner;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertSame;
@@ -74,6 +77,18 @@ public class CacheDispatcherTest {
         assertFalse(mDelivery.wasEitherResponseCalled());
     }
 
+    // A request whose deadline has passed is failed without reading the cache.
+    @Test
+    public void pastDeadlineRequest() throws Exception {
+        SystemClock.sleep(10);
+        mRequest.setDeadline(SystemClock.elapsedRealtime());
+        mCacheQueue.add(mRequest);
+        mCacheQueue.waitUntilEmpty(TIMEOUT_MILLIS);
+        assertFalse(mCache.getCalled);
+        assertTrue(mDelivery.errorPosted instanceof DeadlineExceededError);
+        assertEquals(0, mNetworkQueue.size());
+    }
+
     // A cache miss does not post a response and puts the request on the network queue.
     @Test
     public void cacheMiss() throws Exception {
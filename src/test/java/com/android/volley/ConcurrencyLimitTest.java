@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.volley;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ConcurrencyLimitTest {
+
+    @Test
+    public void aimd_growsWhileUsedAndBacksOffOnCongestion() {
+        AimdConcurrencyLimit limit = new AimdConcurrencyLimit(4, 1, 6, 100, 0.5);
+
+        // Fast requests grow the limit only while at least half of it is in use.
+        limit.onSample(50, 1, false);
+        assertEquals(4, limit.getLimit());
+        limit.onSample(50, 2, false);
+        assertEquals(5, limit.getLimit());
+        limit.onSample(50, 5, false);
+        limit.onSample(50, 5, false);
+        assertEquals(6, limit.getLimit());
+
+        // Slow and timed out requests halve it, down to the minimum.
+        limit.onSample(150, 6, false);
+        assertEquals(3, limit.getLimit());
+        limit.onSample(50, 3, true);
+        assertEquals(1, limit.getLimit());
+        limit.onSample(50, 1, true);
+        assertEquals(1, limit.getLimit());
+    }
+
+    @Test
+    public void gradient_followsRoundTripTime() {
+        GradientConcurrencyLimit limit = new GradientConcurrencyLimit(10, 2, 50);
+
+        // Steady round trips with the limit in use let it grow.
+        for (int i = 0; i < 20; i++) {
+            limit.onSample(100, limit.getLimit(), false);
+        }
+        int grown = limit.getLimit();
+        assertTrue(grown > 10);
+
+        // Round trips stretching out mean requests are queuing; the limit shrinks.
+        for (int i = 0; i < 20; i++) {
+            limit.onSample(400, limit.getLimit(), false);
+        }
+        assertTrue(limit.getLimit() < grown);
+
+        // An unused limit does not grow.
+        GradientConcurrencyLimit idle = new GradientConcurrencyLimit(10, 2, 50);
+        for (int i = 0; i < 20; i++) {
+            idle.onSample(100, 1, false);
+        }
+        assertEquals(10, idle.getLimit());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void aimd_rejectsInitialLimitAboveMax() {
+        new AimdConcurrencyLimit(8, 1, 4, 100);
+    }
+}
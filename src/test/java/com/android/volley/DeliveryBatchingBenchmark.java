@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+import com.android.volley.mock.MockRequest;
+import com.android.volley.utils.BenchmarkUtils;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Compares delivering a burst of responses one message each with batched delivery passes, on
+ * a single thread standing in for the main looper. Reports the number of main thread messages
+ * and how long they run, which bounds how long a frame can be held up, and the total main
+ * thread time. See {@link BenchmarkUtils} for how to run it.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class DeliveryBatchingBenchmark {
+
+    private static final int BURST_SIZE = 100;
+    private static final long DELIVERY_COST_NS = TimeUnit.MICROSECONDS.toNanos(200);
+    private static final int WARMUP_ROUNDS = 20;
+    private static final int MEASURED_ROUNDS = 100;
+
+    @Test
+    public void batchedVersusPerResponseDelivery() throws Exception {
+        final MainThread warmup = new MainThread();
+        final MainThread perResponse = new MainThread();
+        final MainThread batched = new MainThread();
+        try {
+            BenchmarkUtils.run(WARMUP_ROUNDS, MEASURED_ROUNDS, new BenchmarkUtils.Round() {
+                @Override
+                public void run(boolean measured) throws Exception {
+                    runRound(0, measured ? perResponse : warmup);
+                    runRound(ExecutorDelivery.DEFAULT_FRAME_BUDGET_MS,
+                            measured ? batched : warmup);
+                }
+            });
+        } finally {
+            warmup.shutdown();
+            perResponse.shutdown();
+            batched.shutdown();
+        }
+        report("per response", perResponse);
+        report("batched", batched);
+    }
+
+    /**
+     * Posts a burst of responses from a background thread and waits until all are delivered.
+     *
+     * @param main The thread to deliver on, which accumulates what the deliveries cost it
+     */
+    private void runRound(long frameBudgetMs, MainThread main) throws Exception {
+        ExecutorDelivery delivery = new ExecutorDelivery(main, frameBudgetMs);
+        final AtomicLong delivered = new AtomicLong();
+        byte[] data = new byte[16];
+        Response<byte[]> response = Response.success(data, null);
+        for (int i = 0; i < BURST_SIZE; i++) {
+            delivery.postResponse(new MockRequest() {
+                @Override
+                protected void deliverResponse(byte[] response) {
+                    long busyUntilNs = System.nanoTime() + DELIVERY_COST_NS;
+                    while (System.nanoTime() < busyUntilNs) {
+                        // Stand in for a listener updating views.
+                    }
+                    delivered.incrementAndGet();
+                }
+            }, response);
+        }
+        long deadline = System.currentTimeMillis() + 10000;
+        while (delivered.get() < BURST_SIZE && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        assertTrue(delivered.get() == BURST_SIZE);
+    }
+
+    private static void report(String label, MainThread stats) {
+        BenchmarkUtils.report(label, "%6.1f messages of %5.2f ms (longest %6.2f ms), main thread "
+                        + "%6.2f ms per burst of %d",
+                stats.mMessages.get() / (double) MEASURED_ROUNDS,
+                stats.mTotalNs.get() / 1e6 / stats.mMessages.get(),
+                stats.mLongestNs.get() / 1e6,
+                stats.mTotalNs.get() / 1e6 / MEASURED_ROUNDS, BURST_SIZE);
+    }
+
+    /**
+     * Runs posted tasks on one thread, timing each of them.
+     */
+    private static class MainThread implements Executor {
+        private final ExecutorService mThread = Executors.newSingleThreadExecutor();
+        final AtomicLong mMessages = new AtomicLong();
+        final AtomicLong mTotalNs = new AtomicLong();
+        final AtomicLong mLongestNs = new AtomicLong();
+
+        @Override
+        public void execute(final Runnable command) {
+            mThread.execute(new Runnable() {
+                @Override
+                public void run() {
+                    long startNs = System.nanoTime();
+                    command.run();
+                    long elapsedNs = System.nanoTime() - startNs;
+                    mMessages.incrementAndGet();
+                    mTotalNs.addAndGet(elapsedNs);
+                    if (elapsedNs > mLongestNs.get()) {
+                        mLongestNs.set(elapsedNs);
+                    }
+                }
+            });
+        }
+
+        void shutdown() {
+            mThread.shutdown();
+        }
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+import com.android.volley.mock.MockRequest;
+import com.android.volley.mock.ShadowSystemClock;
+import com.android.volley.toolbox.NoCache;
+import com.android.volley.utils.ImmediateResponseDelivery;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for {@link ExecutorDispatchStrategy} driving a real {@link RequestQueue}.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(shadows = {ShadowSystemClock.class})
+public class ExecutorDispatchStrategyTest {
+
+    private static final int REQUEST_COUNT = 20;
+
+    @Test
+    public void sharedExecutor_neverExceedsMaxConcurrency() throws Exception {
+        ExecutorService executor = Executors.newCachedThreadPool();
+        ConcurrencyTrackingNetwork network = new ConcurrencyTrackingNetwork(REQUEST_COUNT);
+        RequestQueue queue = new RequestQueue(new NoCache(), network,
+                new ExecutorDispatchStrategy(executor, 3), new ImmediateResponseDelivery());
+        queue.start();
+        for (int i = 0; i < REQUEST_COUNT; i++) {
+            MockRequest request = new MockRequest();
+            request.setCacheKey("key-" + i);
+            queue.add(request);
+        }
+
+        assertTrue(network.mDone.await(5, TimeUnit.SECONDS));
+        assertTrue(network.mMaxInFlight.get() <= 3);
+        queue.stop();
+        // A caller-owned executor is left running.
+        assertTrue(!executor.isShutdown());
+        executor.shutdown();
+    }
+
+    @Test
+    public void elasticPool_growsWithLoadAndProcessesEverything() throws Exception {
+        ConcurrencyTrackingNetwork network = new ConcurrencyTrackingNetwork(REQUEST_COUNT);
+        ExecutorDispatchStrategy strategy =
+                new ExecutorDispatchStrategy(0, 4, 50, TimeUnit.MILLISECONDS);
+        RequestQueue queue = new RequestQueue(new NoCache(), network, strategy,
+                new ImmediateResponseDelivery());
+        queue.start();
+        for (int i = 0; i < REQUEST_COUNT; i++) {
+            MockRequest request = new MockRequest();
+            request.setCacheKey("key-" + i);
+            queue.add(request);
+        }
+
+        assertTrue(network.mDone.await(5, TimeUnit.SECONDS));
+        assertTrue(network.mMaxInFlight.get() > 1);
+        assertTrue(network.mMaxInFlight.get() <= 4);
+        assertEquals(4, strategy.getMaxConcurrency());
+        queue.stop();
+    }
+
+    @Test
+    public void adaptiveLimit_holdsConcurrencyBelowMaxThreads() throws Exception {
+        ConcurrencyTrackingNetwork network = new ConcurrencyTrackingNetwork(REQUEST_COUNT);
+        FixedLimit limit = new FixedLimit(2);
+        ExecutorDispatchStrategy strategy =
+                new ExecutorDispatchStrategy(0, 4, 50, TimeUnit.MILLISECONDS, limit);
+        RequestQueue queue = new RequestQueue(new NoCache(), network, strategy,
+                new ImmediateResponseDelivery());
+        queue.start();
+        for (int i = 0; i < REQUEST_COUNT; i++) {
+            MockRequest request = new MockRequest();
+            request.setCacheKey("key-" + i);
+            queue.add(request);
+        }
+
+        assertTrue(network.mDone.await(5, TimeUnit.SECONDS));
+        assertTrue(network.mMaxInFlight.get() <= 2);
+        // Samples are taken once the network returns, just after the latch is counted down.
+        long deadline = System.currentTimeMillis() + 5000;
+        while (limit.mSamples.get() < REQUEST_COUNT && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(REQUEST_COUNT, limit.mSamples.get());
+        assertEquals(2, strategy.getConcurrencyLimit());
+        assertEquals(4, strategy.getMaxConcurrency());
+        queue.stop();
+    }
+
+    private static class FixedLimit implements ConcurrencyLimit {
+        final int mLimit;
+        final AtomicInteger mSamples = new AtomicInteger();
+
+        FixedLimit(int limit) {
+            mLimit = limit;
+        }
+
+        @Override
+        public int getLimit() {
+            return mLimit;
+        }
+
+        @Override
+        public void onSample(long rttMs, int inFlight, boolean dropped) {
+            mSamples.incrementAndGet();
+        }
+    }
+
+    private static class ConcurrencyTrackingNetwork implements Network {
+        final CountDownLatch mDone;
+        final AtomicInteger mInFlight = new AtomicInteger();
+        final AtomicInteger mMaxInFlight = new AtomicInteger();
+
+        ConcurrencyTrackingNetwork(int expectedRequests) {
+            mDone = new CountDownLatch(expectedRequests);
+        }
+
+        @Override
+        public NetworkResponse performRequest(Request<?> request) throws VolleyError {
+            int inFlight = mInFlight.incrementAndGet();
+            while (true) {
+                int max = mMaxInFlight.get();
+                if (inFlight <= max || mMaxInFlight.compareAndSet(max, inFlight)) {
+                    break;
+                }
+            }
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                throw new VolleyError(e);
+            } finally {
+                mInFlight.decrementAndGet();
+                mDone.countDown();
+            }
+            return new NetworkResponse(new byte[0]);
+        }
+    }
+}
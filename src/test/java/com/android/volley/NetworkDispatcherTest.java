@@ -16,11 +16,23 @@
 
 package com.android.volley;
 
+import android.os.SystemClock;
+
 import com.android.volley.mock.MockCache;
+import com.android.volley.mock.MockHttpStack;
 import com.android.volley.mock.MockNetwork;
 import com.android.volley.mock.MockRequest;
 import com.android.volley.mock.MockResponseDelivery;
 import com.android.volley.mock.WaitableQueue;
+import com.android.volley.toolbox.BasicNetwork;
+import com.android.volley.toolbox.ByteArrayPool;
+import com.android.volley.toolbox.CircuitBreaker;
+import com.android.volley.utils.CacheTestUtils;
+
+import org.apache.http.HttpStatus;
+import org.apache.http.ProtocolVersion;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.message.BasicHttpResponse;
 
 import org.junit.After;
 import org.junit.Before;
@@ -28,12 +40,21 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.robolectric.RobolectricTestRunner;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 @RunWith(RobolectricTestRunner.class)
 public class NetworkDispatcherTest {
@@ -87,6 +108,17 @@ public class NetworkDispatcherTest {
         assertTrue(mDelivery.postError_called);
     }
 
+    @Test
+    public void pastDeadlineNotPerformed() throws Exception {
+        SystemClock.sleep(10);
+        mRequest.setDeadline(SystemClock.elapsedRealtime());
+        mNetworkQueue.add(mRequest);
+        mNetworkQueue.waitUntilEmpty(TIMEOUT_MILLIS);
+        assertNull(mNetwork.requestHandled);
+        assertFalse(mDelivery.postResponse_called);
+        assertTrue(mDelivery.errorPosted instanceof DeadlineExceededError);
+    }
+
     @Test
     public void shouldCacheFalse() throws Exception {
         mRequest.setShouldCache(false);
@@ -107,4 +139,136 @@ public class NetworkDispatcherTest {
         assertTrue(Arrays.equals(mCache.entryPut.data, CANNED_DATA));
         assertEquals("bananaphone", mCache.keyPut);
     }
+
+    @Test
+    public void openCircuitLeavesStaleCacheEntryExpiry() throws Exception {
+        MockHttpStack stack = new MockHttpStack();
+        BasicHttpResponse fakeResponse = new BasicHttpResponse(new ProtocolVersion("HTTP", 1, 1),
+                503, "Service Unavailable");
+        fakeResponse.setEntity(new StringEntity("down"));
+        stack.setResponseToReturn(fakeResponse);
+        CircuitBreaker breaker = new CircuitBreaker(1, 2, 60000);
+        BasicNetwork network = new BasicNetwork(stack, new ByteArrayPool(4096), breaker);
+        for (int i = 0; i < 2; i++) {
+            try {
+                network.performRequest(new MockRequest());
+                fail("Expected ServerError");
+            } catch (ServerError expected) {
+            }
+        }
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState("foo.com"));
+
+        Cache.Entry entry = CacheTestUtils.makeRandomCacheEntry(CANNED_DATA, true, true);
+        long ttl = entry.ttl;
+        long softTtl = entry.softTtl;
+        mRequest.setShouldCache(true);
+        mRequest.setCacheEntry(entry);
+        WaitableQueue queue = new WaitableQueue();
+        NetworkDispatcher dispatcher = new NetworkDispatcher(queue, network, mCache, mDelivery);
+        dispatcher.start();
+        try {
+            queue.add(mRequest);
+            queue.waitUntilEmpty(TIMEOUT_MILLIS);
+        } finally {
+            dispatcher.quit();
+            dispatcher.join();
+        }
+
+        // The stale entry is delivered but not cached again with fresh expiry times.
+        assertTrue(mDelivery.postResponse_called);
+        assertFalse(mCache.putCalled);
+        assertEquals(ttl, entry.ttl);
+        assertEquals(softTtl, entry.softTtl);
+    }
+
+    @Test
+    public void rejectedByExecutor_releasesHostSlot() throws Exception {
+        PerHostBlockingQueue queue = new PerHostBlockingQueue(1);
+        final CountDownLatch rejected = new CountDownLatch(2);
+        Executor rejecting = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                rejected.countDown();
+                throw new RejectedExecutionException();
+            }
+        };
+        NetworkDispatcher dispatcher =
+                new NetworkDispatcher(queue, mNetwork, mCache, mDelivery, rejecting, 2);
+        dispatcher.start();
+        try {
+            queue.add(new MockRequest());
+            queue.add(new MockRequest());
+            // With a limit of one per host, the second request is only taken once the first
+            // rejected one has given its slot back.
+            assertTrue(rejected.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        } finally {
+            dispatcher.quit();
+            dispatcher.join();
+        }
+        assertTrue(mDelivery.postError_called);
+        assertEquals(0, queue.getInFlightCount("foo.com"));
+    }
+
+    @Test
+    public void idleDispatchersDoNotCountAsInFlight() throws Exception {
+        RecordingLimit limit = new RecordingLimit();
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(2, limit);
+        WaitableQueue queue = new WaitableQueue();
+        NetworkDispatcher first =
+                new NetworkDispatcher(queue, mNetwork, mCache, mDelivery, null, limiter, null);
+        NetworkDispatcher second =
+                new NetworkDispatcher(queue, mNetwork, mCache, mDelivery, null, limiter, null);
+        first.start();
+        second.start();
+        try {
+            queue.add(mRequest);
+            queue.waitUntilEmpty(TIMEOUT_MILLIS);
+        } finally {
+            first.quit();
+            second.quit();
+            first.join();
+            second.join();
+        }
+        // The other dispatcher was waiting for a request, not performing one.
+        assertEquals(Arrays.asList(1), limit.mInFlight);
+    }
+
+    @Test
+    public void staleResponsesAreNotSampled() throws Exception {
+        RecordingLimit limit = new RecordingLimit();
+        Network network = new Network() {
+            @Override
+            public NetworkResponse performRequest(Request<?> request) {
+                return new NetworkResponse(HttpStatus.SC_NOT_MODIFIED, CANNED_DATA,
+                        Collections.<String, String>emptyMap(), true, 0, true);
+            }
+        };
+        WaitableQueue queue = new WaitableQueue();
+        NetworkDispatcher dispatcher = new NetworkDispatcher(queue, network, mCache, mDelivery,
+                null, new ConcurrencyLimiter(1, limit), null);
+        dispatcher.start();
+        try {
+            queue.add(mRequest);
+            queue.waitUntilEmpty(TIMEOUT_MILLIS);
+        } finally {
+            dispatcher.quit();
+            dispatcher.join();
+        }
+        // The open circuit answered locally, so there is no round trip to learn from.
+        assertTrue(limit.mInFlight.isEmpty());
+    }
+
+    private static class RecordingLimit implements ConcurrencyLimit {
+        final List<Integer> mInFlight = Collections.synchronizedList(new ArrayList<Integer>());
+
+        @Override
+        public int getLimit() {
+            return Integer.MAX_VALUE;
+        }
+
+        @Override
+        public void onSample(long rttMs, int inFlight, boolean dropped) {
+            mInFlight.add(inFlight);
+        }
+    }
 }
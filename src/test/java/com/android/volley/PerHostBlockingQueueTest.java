@@ -0,0 +1,235 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+import android.os.SystemClock;
+
+import com.android.volley.Request.Priority;
+import com.android.volley.mock.MockRequest;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+@RunWith(RobolectricTestRunner.class)
+public class PerHostBlockingQueueTest {
+
+    private int mSequence;
+
+    private MockRequest makeRequest(String url) {
+        MockRequest request = new MockRequest(url, null);
+        request.setSequence(mSequence++);
+        return request;
+    }
+
+    @Test
+    public void unlimited_ordersLikePriorityQueue() throws Exception {
+        PerHostBlockingQueue queue = new PerHostBlockingQueue();
+        MockRequest a1 = makeRequest("http://a.com/1");
+        MockRequest b1 = makeRequest("http://b.com/1");
+        MockRequest a2 = makeRequest("http://a.com/2");
+        a2.setPriority(Priority.HIGH);
+        queue.add(a1);
+        queue.add(b1);
+        queue.add(a2);
+
+        assertSame(a2, queue.take());
+        assertSame(a1, queue.take());
+        assertSame(b1, queue.take());
+        assertEquals(2, queue.getInFlightCount("a.com"));
+    }
+
+    @Test
+    public void hostAtLimit_isSkipped() throws Exception {
+        PerHostBlockingQueue queue = new PerHostBlockingQueue(1);
+        MockRequest a1 = makeRequest("http://a.com/1");
+        MockRequest a2 = makeRequest("http://a.com/2");
+        MockRequest b1 = makeRequest("http://b.com/1");
+        queue.add(a1);
+        queue.add(a2);
+        queue.add(b1);
+
+        assertSame(a1, queue.take());
+        // a.com is at its limit, so b.com is served even though a2 is older.
+        assertSame(b1, queue.take());
+        assertNull(queue.poll(10, TimeUnit.MILLISECONDS));
+        assertEquals(1, queue.size());
+
+        queue.release(a1);
+        assertSame(a2, queue.take());
+    }
+
+    @Test
+    public void equalPriority_servedRoundRobin() throws Exception {
+        PerHostBlockingQueue queue = new PerHostBlockingQueue(10);
+        MockRequest a1 = makeRequest("http://a.com/1");
+        MockRequest a2 = makeRequest("http://a.com/2");
+        MockRequest a3 = makeRequest("http://a.com/3");
+        MockRequest b1 = makeRequest("http://b.com/1");
+        MockRequest c1 = makeRequest("http://c.com/1");
+        queue.add(a1);
+        queue.add(a2);
+        queue.add(a3);
+        queue.add(b1);
+        queue.add(c1);
+
+        assertSame(a1, queue.take());
+        assertSame(b1, queue.take());
+        assertSame(c1, queue.take());
+        assertSame(a2, queue.take());
+        assertSame(a3, queue.take());
+    }
+
+    @Test
+    public void higherPriority_beatsRoundRobin() throws Exception {
+        PerHostBlockingQueue queue = new PerHostBlockingQueue(10);
+        MockRequest a1 = makeRequest("http://a.com/1");
+        MockRequest a2 = makeRequest("http://a.com/2");
+        MockRequest b1 = makeRequest("http://b.com/1");
+        a2.setPriority(Priority.HIGH);
+        queue.add(a1);
+        queue.add(b1);
+        queue.add(a2);
+
+        assertSame(a2, queue.take());
+        assertSame(b1, queue.take());
+        assertSame(a1, queue.take());
+    }
+
+    @Test
+    public void release_wakesBlockedTaker() throws Exception {
+        final PerHostBlockingQueue queue = new PerHostBlockingQueue(1);
+        final MockRequest a1 = makeRequest("http://a.com/1");
+        MockRequest a2 = makeRequest("http://a.com/2");
+        queue.add(a1);
+        queue.add(a2);
+        assertSame(a1, queue.take());
+
+        new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(20);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                queue.release(a1);
+            }
+        }.start();
+        assertSame(a2, queue.poll(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void deadlines_earliestFirstWithinPriority() throws Exception {
+        PerHostBlockingQueue queue = new PerHostBlockingQueue();
+        MockRequest none = makeRequest("http://a.com/none");
+        MockRequest late = makeRequest("http://a.com/late");
+        late.setDeadline(2000);
+        MockRequest early = makeRequest("http://a.com/early");
+        early.setDeadline(1000);
+        MockRequest high = makeRequest("http://a.com/high");
+        high.setPriority(Priority.HIGH);
+        queue.add(none);
+        queue.add(late);
+        queue.add(early);
+        queue.add(high);
+
+        // Deadlines order requests within a priority, never across priorities.
+        assertSame(high, queue.take());
+        assertSame(early, queue.take());
+        assertSame(late, queue.take());
+        assertSame(none, queue.take());
+    }
+
+    @Test
+    public void aging_promotesLongWaitingRequests() throws Exception {
+        PerHostBlockingQueue queue = new PerHostBlockingQueue();
+        queue.setPriorityAging(new PriorityAging(100));
+        MockRequest low = makeRequest("http://a.com/low");
+        low.setPriority(Priority.LOW);
+        MockRequest normal = makeRequest("http://a.com/normal");
+        queue.add(low);
+        SystemClock.sleep(150);
+        queue.add(normal);
+
+        // The low priority request has waited longer than one promotion interval.
+        assertSame(low, queue.take());
+        assertSame(normal, queue.take());
+
+        // Without aging, priority wins regardless of waiting time.
+        queue.setPriorityAging(null);
+        queue.add(low);
+        SystemClock.sleep(150);
+        queue.add(normal);
+        assertSame(normal, queue.take());
+        assertSame(low, queue.take());
+    }
+
+    @Test
+    public void aging_raisesEffectivePriorityAcrossHosts() throws Exception {
+        PerHostBlockingQueue queue = new PerHostBlockingQueue(10);
+        queue.setPriorityAging(new PriorityAging(100));
+        MockRequest a1 = makeRequest("http://a.com/1");
+        MockRequest b1 = makeRequest("http://b.com/1");
+        MockRequest b2 = makeRequest("http://b.com/2");
+        b1.setPriority(Priority.LOW);
+        a1.setPriority(Priority.HIGH);
+        queue.add(b1);
+        SystemClock.sleep(250);
+        queue.add(a1);
+        queue.add(b2);
+
+        // b1 has waited long enough to count as HIGH, so round-robin starts with its host.
+        assertSame(b1, queue.take());
+        assertSame(a1, queue.take());
+        assertSame(b2, queue.take());
+    }
+
+    @Test
+    public void waitStats_percentilesPerPriority() throws Exception {
+        PerHostBlockingQueue queue = new PerHostBlockingQueue();
+        QueueWaitStats stats = queue.getWaitStats();
+        assertEquals(-1, stats.getPercentile(Priority.LOW, 50));
+
+        for (int i = 1; i <= 4; i++) {
+            MockRequest request = makeRequest("http://a.com/" + i);
+            request.setPriority(Priority.LOW);
+            queue.add(request);
+            SystemClock.sleep(i * 10);
+            queue.take();
+        }
+        MockRequest normal = makeRequest("http://a.com/normal");
+        queue.add(normal);
+        queue.take();
+
+        assertEquals(4, stats.getCount(Priority.LOW));
+        assertEquals(10, stats.getPercentile(Priority.LOW, 0));
+        assertEquals(20, stats.getPercentile(Priority.LOW, 50));
+        assertEquals(40, stats.getPercentile(Priority.LOW, 100));
+        assertEquals(1, stats.getCount(Priority.NORMAL));
+        assertEquals(0, stats.getPercentile(Priority.NORMAL, 99));
+
+        stats.reset();
+        assertEquals(-1, stats.getPercentile(Priority.LOW, 50));
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.volley;
+
+import com.android.volley.mock.MockNetwork;
+import com.android.volley.mock.MockRequest;
+import com.android.volley.toolbox.NoCache;
+import com.android.volley.utils.BenchmarkUtils;
+import com.android.volley.utils.ImmediateResponseDelivery;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Measures what creating a request and adding it to a queue costs, for a list's worth of image
+ * requests. See {@link BenchmarkUtils} for how to run it.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class RequestConstructionBenchmark {
+
+    private static final int BATCH_SIZE = 1000;
+
+    /**
+     * Keeps the JIT from discarding the work being measured.
+     */
+    private long mSink;
+
+    private long mConstructNs;
+    private long mEnqueueNs;
+
+    @Test
+    public void constructAndEnqueue() throws Exception {
+        BenchmarkUtils.run(new BenchmarkUtils.Round() {
+            @Override
+            public void run(boolean measured) {
+                long constructNs = construct();
+                long enqueueNs = enqueue();
+                if (measured) {
+                    mConstructNs += constructNs;
+                    mEnqueueNs += enqueueNs;
+                }
+            }
+        });
+        report("construct", mConstructNs);
+        report("construct + add()", mEnqueueNs);
+        System.out.println("(checksum " + mSink + ")");
+    }
+
+    /**
+     * @return the time taken to create one batch of requests
+     */
+    private long construct() {
+        long startNs = System.nanoTime();
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            MockRequest request = new MockRequest("http://foo.com/image/" + i, null);
+            mSink += request.getMethod();
+        }
+        return System.nanoTime() - startNs;
+    }
+
+    /**
+     * @return the time taken to create one batch of requests and add them to a queue that is
+     * not started, so only the cost of admitting them is measured
+     */
+    private long enqueue() {
+        RequestQueue queue = new RequestQueue(new NoCache(), new MockNetwork(), 1,
+                new ImmediateResponseDelivery());
+        long startNs = System.nanoTime();
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            queue.add(new MockRequest("http://foo.com/image/" + i, null));
+        }
+        long elapsedNs = System.nanoTime() - startNs;
+        assertEquals(BATCH_SIZE, queue.getCacheQueueDepth());
+        return elapsedNs;
+    }
+
+    private static void report(String label, long timeNs) {
+        BenchmarkUtils.report(label, "%6.1f ns per request",
+                timeNs / (double) BenchmarkUtils.DEFAULT_MEASURED_ROUNDS / BATCH_SIZE);
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley;
+
+import com.android.volley.mock.MockRequest;
+import com.android.volley.mock.MockResponseDelivery;
+import com.android.volley.mock.ShadowSystemClock;
+import com.android.volley.toolbox.NoCache;
+import com.android.volley.utils.ImmediateResponseDelivery;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(shadows = {ShadowSystemClock.class})
+public class RequestPromiseTest {
+
+    private BlockingNetwork mNetwork;
+    private RequestQueue mQueue;
+    private ExecutorService mWorker;
+
+    @Before
+    public void setUp() throws Exception {
+        mNetwork = new BlockingNetwork();
+        mQueue = new RequestQueue(new NoCache(), mNetwork, 2, new ImmediateResponseDelivery());
+        mQueue.start();
+        mWorker = Executors.newSingleThreadExecutor();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mNetwork.release.countDown();
+        mQueue.stop();
+        mWorker.shutdown();
+    }
+
+    @Test
+    public void thenApplyAndThenComposeChainRequests() throws Exception {
+        mNetwork.release.countDown();
+        RequestPromise<Integer> promise = mQueue.addAsync(request("http://foo.com/a"))
+                .thenApply(new RequestPromise.Function<byte[], String>() {
+                    @Override
+                    public String apply(byte[] body) {
+                        return new String(body);
+                    }
+                }, mWorker)
+                .thenCompose(new RequestPromise.Function<String, RequestPromise<byte[]>>() {
+                    @Override
+                    public RequestPromise<byte[]> apply(String url) {
+                        return mQueue.addAsync(request(url + "/b"));
+                    }
+                }, mWorker)
+                .thenApply(new RequestPromise.Function<byte[], Integer>() {
+                    @Override
+                    public Integer apply(byte[] body) {
+                        return body.length;
+                    }
+                }, mWorker);
+
+        assertEquals("http://foo.com/a/b".length(), (int) promise.get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void thrownExceptionFailsPromise() throws Exception {
+        mNetwork.release.countDown();
+        final IllegalStateException thrown = new IllegalStateException();
+        RequestPromise<String> promise = mQueue.addAsync(request("http://foo.com/a"))
+                .thenApply(new RequestPromise.Function<byte[], String>() {
+                    @Override
+                    public String apply(byte[] body) {
+                        throw thrown;
+                    }
+                }, mWorker);
+        try {
+            promise.get(5, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertEquals(thrown, e.getCause());
+        }
+    }
+
+    @Test
+    public void cancelPropagatesBothWays() throws Exception {
+        MockRequest request = request("http://foo.com/a");
+        RequestPromise<byte[]> promise = mQueue.addAsync(request);
+        RequestPromise<String> chained = promise.thenApply(
+                new RequestPromise.Function<byte[], String>() {
+                    @Override
+                    public String apply(byte[] body) {
+                        return new String(body);
+                    }
+                }, mWorker);
+
+        assertTrue(chained.cancel(true));
+        assertTrue(request.isCanceled());
+        assertTrue(promise.isCancelled());
+
+        MockRequest other = request("http://foo.com/b");
+        RequestPromise<byte[]> otherPromise = mQueue.addAsync(other);
+        other.cancel();
+        assertTrue(otherPromise.isCancelled());
+        try {
+            otherPromise.get();
+            fail();
+        } catch (CancellationException expected) {
+        }
+    }
+
+    @Test
+    public void orTimeoutFailsAndCancelsRequest() throws Exception {
+        MockRequest request = request("http://foo.com/a");
+        RequestPromise<byte[]> promise = mQueue.addAsync(request)
+                .orTimeout(50, TimeUnit.MILLISECONDS);
+        try {
+            promise.get(5, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof TimeoutError);
+        }
+        assertTrue(request.isCanceled());
+    }
+
+    @Test
+    public void completesWithAnyDelivery() throws Exception {
+        mNetwork.release.countDown();
+        // Posts responses somewhere else entirely, without knowing about promises.
+        MockResponseDelivery delivery = new MockResponseDelivery();
+        RequestQueue queue = new RequestQueue(new NoCache(), mNetwork, 1, delivery);
+        queue.start();
+        try {
+            RequestPromise<byte[]> promise = queue.addAsync(request("http://foo.com/a"));
+            assertEquals("http://foo.com/a", new String(promise.get(5, TimeUnit.SECONDS)));
+            assertTrue(delivery.postResponse_called);
+        } finally {
+            queue.stop();
+        }
+    }
+
+    private static MockRequest request(String url) {
+        MockRequest request = new MockRequest(url, null);
+        request.setShouldCache(false);
+        return request;
+    }
+
+    /**
+     * Echoes the URL of each request as its body, once released.
+     */
+    private static class BlockingNetwork implements Network {
+        final CountDownLatch release = new CountDownLatch(1);
+
+        @Override
+        public NetworkResponse performRequest(Request<?> request) throws VolleyError {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new VolleyError(e);
+            }
+            return new NetworkResponse(request.getUrl().getBytes());
+        }
+    }
+}
@@ -21,6 +21,7 @@ import com.android.volley.RequestQueue.RequestFinishedListener;
 import com.android.volley.mock.MockRequest;
 import com.android.volley.mock.ShadowSystemClock;
 import com.android.volley.toolbox.NoCache;
+import com.android.volley.utils.CacheTestUtils;
 import com.android.volley.utils.ImmediateResponseDelivery;
 
 import org.junit.Before;
@@ -32,7 +33,19 @@ import org.mockito.stubbing.Answer;
 import org.robolectric.RobolectricTestRunner;
 import org.robolectric.annotation.Config;
 
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.timeout;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
@@ -135,6 +148,360 @@ public class RequestQueueIntegrationTest {
         queue.stop();
     }
 
+    /**
+     * Hammers {@link RequestQueue#add(Request)} from many threads while the queue is running and
+     * verifies that duplicates are still staged behind the request in flight: every request
+     * finishes exactly once and each cache key goes to the network exactly once, with all
+     * duplicates served from the cache the first request primed.
+     */
+    @Test
+    public void add_concurrentDuplicatesDeduped() throws Exception {
+        final int threadCount = 8;
+        final int requestsPerThread = 200;
+        final int keyCount = 5;
+        final ConcurrentHashMap<String, AtomicInteger> networkCalls =
+                new ConcurrentHashMap<String, AtomicInteger>();
+        final ConcurrentHashMap<Request<?>, Boolean> finished =
+                new ConcurrentHashMap<Request<?>, Boolean>();
+        final CountDownLatch allFinished = new CountDownLatch(threadCount * requestsPerThread);
+        final AtomicInteger duplicateFinishes = new AtomicInteger();
+
+        Network network = new Network() {
+            @Override
+            public NetworkResponse performRequest(Request<?> request) throws VolleyError {
+                AtomicInteger calls = new AtomicInteger();
+                AtomicInteger existing = networkCalls.putIfAbsent(request.getCacheKey(), calls);
+                (existing != null ? existing : calls).incrementAndGet();
+                try {
+                    Thread.sleep(2);
+                } catch (InterruptedException e) {
+                    throw new VolleyError(e);
+                }
+                return new NetworkResponse(new byte[8]);
+            }
+        };
+        RequestQueue queue = new RequestQueue(new InMemoryCache(), network, 4, mDelivery);
+        queue.addRequestFinishedListener(new RequestFinishedListener<Object>() {
+            @Override
+            public void onRequestFinished(Request<Object> request) {
+                if (finished.put(request, Boolean.TRUE) != null) {
+                    duplicateFinishes.incrementAndGet();
+                }
+                allFinished.countDown();
+            }
+        });
+        queue.start();
+
+        final RequestQueue finalQueue = queue;
+        final CountDownLatch go = new CountDownLatch(1);
+        Thread[] threads = new Thread[threadCount];
+        for (int t = 0; t < threadCount; t++) {
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        go.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < requestsPerThread; i++) {
+                        MockRequest request = new MockRequest();
+                        request.setCacheKey("key-" + (i % keyCount));
+                        finalQueue.add(request);
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        go.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertTrue(allFinished.await(10, TimeUnit.SECONDS));
+        assertEquals(0, duplicateFinishes.get());
+        assertEquals(keyCount, networkCalls.size());
+        for (AtomicInteger calls : networkCalls.values()) {
+            assertEquals(1, calls.get());
+        }
+        queue.stop();
+    }
+
+    /**
+     * Verifies that several cache dispatchers read cache hits at the same time, and that the
+     * cache is initialized exactly once before the first lookup.
+     */
+    @Test
+    public void add_cacheHitsResolvedInParallel() throws Exception {
+        final AtomicInteger initializeCalls = new AtomicInteger();
+        final AtomicInteger earlyLookups = new AtomicInteger();
+        final CyclicBarrier concurrentReads = new CyclicBarrier(2);
+        final AtomicInteger parallelReads = new AtomicInteger();
+        InMemoryCache cache = new InMemoryCache() {
+            @Override
+            public void initialize() {
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                initializeCalls.incrementAndGet();
+            }
+
+            @Override
+            public Entry get(String key) {
+                if (initializeCalls.get() == 0) {
+                    earlyLookups.incrementAndGet();
+                }
+                try {
+                    // Only passes if another dispatcher is reading at the same time.
+                    concurrentReads.await(5, TimeUnit.SECONDS);
+                    parallelReads.incrementAndGet();
+                } catch (Exception e) {
+                    // Fall through; the assertion below reports the failure.
+                }
+                return super.get(key);
+            }
+        };
+        MockRequest req1 = new MockRequest();
+        req1.setCacheKey("1");
+        MockRequest req2 = new MockRequest();
+        req2.setCacheKey("2");
+        cache.put("1", CacheTestUtils.makeRandomCacheEntry(null));
+        cache.put("2", CacheTestUtils.makeRandomCacheEntry(null));
+
+        RequestFinishedListener listener = mock(RequestFinishedListener.class);
+        RequestQueue queue = new RequestQueue(cache, mMockNetwork, 1, mDelivery);
+        queue.setCacheThreadPoolSize(3);
+        queue.addRequestFinishedListener(listener);
+        queue.add(req1);
+        queue.add(req2);
+        queue.start();
+
+        verify(listener, timeout(5000)).onRequestFinished(req1);
+        verify(listener, timeout(5000)).onRequestFinished(req2);
+        assertEquals(1, initializeCalls.get());
+        assertEquals(0, earlyLookups.get());
+        assertEquals(2, parallelReads.get());
+        queue.stop();
+    }
+
+    /**
+     * Verifies that with a response pipeline the network thread goes on to the next request
+     * while responses wait to be parsed, and that responses are only delivered once written to
+     * cache.
+     */
+    @Test
+    public void add_responsePipelineFreesNetworkThread() throws Exception {
+        final CountDownLatch parseBlocked = new CountDownLatch(1);
+        final InMemoryCache cache = new InMemoryCache();
+        final AtomicInteger deliveredBeforeCached = new AtomicInteger();
+        MockRequest slowParse = new MockRequest() {
+            @Override
+            protected Response<byte[]> parseNetworkResponse(NetworkResponse response) {
+                try {
+                    parseBlocked.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return super.parseNetworkResponse(response);
+            }
+        };
+        slowParse.setCacheKey("1");
+        slowParse.setPriority(Priority.HIGH);
+        MockRequest next = new MockRequest();
+        next.setCacheKey("2");
+        when(mMockNetwork.performRequest(slowParse)).thenReturn(new NetworkResponse(new byte[8]));
+        when(mMockNetwork.performRequest(next)).thenReturn(new NetworkResponse(new byte[8]));
+
+        RequestQueue queue = new RequestQueue(cache, mMockNetwork, 1, mDelivery);
+        ResponsePipeline pipeline = new ResponsePipeline(1, 4, true);
+        queue.setResponsePipeline(pipeline);
+        final CountDownLatch finished = new CountDownLatch(2);
+        queue.addRequestFinishedListener(new RequestFinishedListener<Object>() {
+            @Override
+            public void onRequestFinished(Request<Object> request) {
+                if (cache.get(request.getCacheKey()) == null) {
+                    deliveredBeforeCached.incrementAndGet();
+                }
+                finished.countDown();
+            }
+        });
+        queue.add(slowParse);
+        queue.add(next);
+        queue.start();
+
+        // The single network thread performs the second request while the first is parsing.
+        verify(mMockNetwork, timeout(5000)).performRequest(next);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (pipeline.getParseQueueDepth() != 1 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(1, pipeline.getParseQueueDepth());
+        assertEquals(0, queue.getNetworkQueueDepth());
+
+        parseBlocked.countDown();
+        assertTrue(finished.await(5, TimeUnit.SECONDS));
+        assertEquals(0, deliveredBeforeCached.get());
+        assertEquals(0, pipeline.getParseQueueDepth());
+        assertEquals(0, pipeline.getCacheWriteQueueDepth());
+        queue.stop();
+    }
+
+    /**
+     * Verifies that identical uncacheable requests that opted in share one network call and
+     * all receive its response, while requests that did not opt in go out on their own.
+     */
+    @Test
+    public void add_uncacheableRequestsCoalesced() throws Exception {
+        final AtomicInteger networkCalls = new AtomicInteger();
+        final CountDownLatch networkBlocked = new CountDownLatch(1);
+        Network network = new Network() {
+            @Override
+            public NetworkResponse performRequest(Request<?> request) throws VolleyError {
+                networkCalls.incrementAndGet();
+                try {
+                    networkBlocked.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    throw new VolleyError(e);
+                }
+                return new NetworkResponse(new byte[8]);
+            }
+        };
+        MockRequest[] coalesced = new MockRequest[3];
+        for (int i = 0; i < coalesced.length; i++) {
+            coalesced[i] = new MockRequest();
+            coalesced[i].setShouldCache(false);
+            coalesced[i].setShouldCoalesce(true);
+        }
+        MockRequest standalone = new MockRequest();
+        standalone.setShouldCache(false);
+
+        final CountDownLatch finished = new CountDownLatch(coalesced.length + 1);
+        RequestQueue queue = new RequestQueue(new NoCache(), network, 4, mDelivery);
+        queue.addRequestFinishedListener(new RequestFinishedListener<Object>() {
+            @Override
+            public void onRequestFinished(Request<Object> request) {
+                finished.countDown();
+            }
+        });
+        queue.start();
+        for (MockRequest request : coalesced) {
+            queue.add(request);
+        }
+        queue.add(standalone);
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (networkCalls.get() < 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        networkBlocked.countDown();
+        assertTrue(finished.await(5, TimeUnit.SECONDS));
+        assertEquals(2, networkCalls.get());
+        for (MockRequest request : coalesced) {
+            assertTrue(request.deliverResponse_called);
+        }
+        assertTrue(standalone.deliverResponse_called);
+        queue.stop();
+    }
+
+    /**
+     * Verifies that duplicates staged behind a request are handed its parsed response instead
+     * of reading and parsing it again, unless they cannot share it.
+     */
+    @Test
+    public void add_stagedDuplicatesShareResponse() throws Exception {
+        final AtomicInteger cacheReads = new AtomicInteger();
+        InMemoryCache cache = new InMemoryCache() {
+            @Override
+            public Entry get(String key) {
+                cacheReads.incrementAndGet();
+                return super.get(key);
+            }
+        };
+        MockRequest primary = new MockRequest();
+        MockRequest[] duplicates = new MockRequest[3];
+        for (int i = 0; i < duplicates.length; i++) {
+            duplicates[i] = new MockRequest();
+        }
+        // Same cache key, but parses into something else.
+        MockRequest otherKind = new MockRequest() {
+        };
+        when(mMockNetwork.performRequest(primary)).thenReturn(new NetworkResponse(new byte[8]));
+
+        final CountDownLatch finished = new CountDownLatch(duplicates.length + 2);
+        RequestQueue queue = new RequestQueue(cache, mMockNetwork, 1, mDelivery);
+        queue.addRequestFinishedListener(new RequestFinishedListener<Object>() {
+            @Override
+            public void onRequestFinished(Request<Object> request) {
+                finished.countDown();
+            }
+        });
+        queue.add(primary);
+        for (MockRequest duplicate : duplicates) {
+            queue.add(duplicate);
+        }
+        queue.add(otherKind);
+        queue.start();
+
+        assertTrue(finished.await(5, TimeUnit.SECONDS));
+        assertTrue(primary.parseResponse_called);
+        for (MockRequest duplicate : duplicates) {
+            assertTrue(duplicate.deliverResponse_called);
+            assertFalse(duplicate.parseResponse_called);
+        }
+        // The other kind of request reads its own response from the primed cache.
+        assertTrue(otherKind.parseResponse_called);
+        assertTrue(otherKind.deliverResponse_called);
+        assertEquals(2, cacheReads.get());
+        verify(mMockNetwork, times(1)).performRequest(any(Request.class));
+        queue.stop();
+    }
+
+    /**
+     * Verifies that duplicates are handed the error of a failed request, or re-issued when the
+     * queue is set to do so.
+     */
+    @Test
+    public void add_stagedDuplicatesOnError() throws Exception {
+        assertStagedDuplicatesOnError(false, 1);
+        assertStagedDuplicatesOnError(true, 3);
+    }
+
+    private void assertStagedDuplicatesOnError(boolean reissue, int expectedNetworkCalls)
+            throws Exception {
+        final AtomicInteger networkCalls = new AtomicInteger();
+        Network network = new Network() {
+            @Override
+            public NetworkResponse performRequest(Request<?> request) throws VolleyError {
+                networkCalls.incrementAndGet();
+                throw new VolleyError("unreachable");
+            }
+        };
+        MockRequest[] requests = new MockRequest[3];
+        final CountDownLatch finished = new CountDownLatch(requests.length);
+        RequestQueue queue = new RequestQueue(new InMemoryCache(), network, 1, mDelivery);
+        queue.setReissueDuplicatesOnError(reissue);
+        queue.addRequestFinishedListener(new RequestFinishedListener<Object>() {
+            @Override
+            public void onRequestFinished(Request<Object> request) {
+                finished.countDown();
+            }
+        });
+        for (int i = 0; i < requests.length; i++) {
+            requests[i] = new MockRequest();
+            queue.add(requests[i]);
+        }
+        queue.start();
+
+        assertTrue(finished.await(5, TimeUnit.SECONDS));
+        for (MockRequest request : requests) {
+            assertTrue(request.deliverError_called);
+        }
+        assertEquals(expectedNetworkCalls, networkCalls.get());
+        queue.stop();
+    }
+
     /**
      * Verify RequestFinishedListeners are informed when requests are canceled
      * <p>
@@ -209,4 +576,209 @@ public class RequestQueueIntegrationTest {
         queue.stop();
     }
 
+    /**
+     * A thread-safe cache that keeps entries in memory.
+     */
+    private static class InMemoryCache implements Cache {
+        private final ConcurrentHashMap<String, Entry> mEntries =
+                new ConcurrentHashMap<String, Entry>();
+
+        @Override
+        public Entry get(String key) {
+            return mEntries.get(key);
+        }
+
+        @Override
+        public void put(String key, Entry entry) {
+            mEntries.put(key, entry);
+        }
+
+        @Override
+        public void initialize() {
+        }
+
+        @Override
+        public void invalidate(String key, boolean fullExpire) {
+        }
+
+        @Override
+        public void remove(String key) {
+            mEntries.remove(key);
+        }
+
+        @Override
+        public void clear() {
+            mEntries.clear();
+        }
+    }
+
+    @Test
+    public void shutdown_completesRequestsAlreadyAdded() throws Exception {
+        Answer<NetworkResponse> delayAnswer = new Answer<NetworkResponse>() {
+            @Override
+            public NetworkResponse answer(InvocationOnMock invocationOnMock) throws Throwable {
+                Thread.sleep(20);
+                return mock(NetworkResponse.class);
+            }
+        };
+        when(mMockNetwork.performRequest(any(Request.class))).thenAnswer(delayAnswer);
+        RequestFinishedListener listener = mock(RequestFinishedListener.class);
+        RequestQueue queue = new RequestQueue(new NoCache(), mMockNetwork, 1, mDelivery);
+        queue.addRequestFinishedListener(listener);
+        MockRequest[] requests = new MockRequest[3];
+        for (int i = 0; i < requests.length; i++) {
+            requests[i] = new MockRequest();
+            requests[i].setCacheKey(String.valueOf(i));
+            queue.add(requests[i]);
+        }
+        queue.start();
+
+        // All three requests complete, although only one can be in flight at a time.
+        assertTrue(queue.shutdown(5, TimeUnit.SECONDS).isEmpty());
+        assertTrue(queue.awaitTermination(0, TimeUnit.MILLISECONDS));
+        for (MockRequest request : requests) {
+            assertTrue(request.deliverResponse_called);
+            verify(listener).onRequestFinished(request);
+        }
+
+        // Requests added after the shutdown are turned away.
+        MockRequest late = new MockRequest();
+        queue.add(late);
+        assertTrue(queue.isShutdown());
+        assertTrue(late.deliverError_called);
+        verify(mMockNetwork, times(3)).performRequest(any(Request.class));
+    }
+
+    @Test
+    public void shutdown_abandonsRequestsStillRunningAtTimeout() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        Answer<NetworkResponse> blockingAnswer = new Answer<NetworkResponse>() {
+            @Override
+            public NetworkResponse answer(InvocationOnMock invocationOnMock) throws Throwable {
+                release.await(5, TimeUnit.SECONDS);
+                return mock(NetworkResponse.class);
+            }
+        };
+        when(mMockNetwork.performRequest(any(Request.class))).thenAnswer(blockingAnswer);
+        RequestQueue queue = new RequestQueue(new NoCache(), mMockNetwork, 1, mDelivery);
+        MockRequest request = new MockRequest();
+        queue.add(request);
+        queue.start();
+        verify(mMockNetwork, timeout(1000)).performRequest(request);
+
+        assertFalse(queue.awaitTermination(0, TimeUnit.MILLISECONDS));
+        List<Request<?>> abandoned = queue.shutdown(50, TimeUnit.MILLISECONDS);
+        release.countDown();
+
+        assertEquals(1, abandoned.size());
+        assertTrue(abandoned.contains(request));
+        assertTrue(request.isCanceled());
+        assertTrue(queue.awaitTermination(0, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void retryLater_setsRequestAsideAndPerformsItAgain() throws Exception {
+        final AtomicInteger attempts = new AtomicInteger();
+        final MockRequest request = new MockRequest();
+        when(mMockNetwork.performRequest(request)).thenAnswer(new Answer<NetworkResponse>() {
+            @Override
+            public NetworkResponse answer(InvocationOnMock invocation) throws Throwable {
+                if (attempts.incrementAndGet() == 1) {
+                    throw new RetryLaterError(new TimeoutError(), 200);
+                }
+                return new NetworkResponse(new byte[0]);
+            }
+        });
+        RequestFinishedListener listener = mock(RequestFinishedListener.class);
+        RequestQueue queue = new RequestQueue(new NoCache(), mMockNetwork, 1, mDelivery);
+        queue.addRequestFinishedListener(listener);
+        queue.start();
+        queue.add(request);
+
+        // The request waits in the retry queue, not on the network thread.
+        long deadline = System.currentTimeMillis() + 5000;
+        while (queue.getDelayedRetryCount() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(1, queue.getDelayedRetryCount());
+        assertEquals(1, attempts.get());
+
+        verify(listener, timeout(5000)).onRequestFinished(request);
+        assertEquals(2, attempts.get());
+        assertEquals(0, queue.getDelayedRetryCount());
+        assertTrue(request.deliverResponse_called);
+        assertFalse(request.deliverError_called);
+        queue.stop();
+    }
+
+    @Test
+    public void prefetch_fillsCacheInSpareCapacityWithinBudget() throws Exception {
+        when(mMockNetwork.performRequest(any(Request.class)))
+                .thenReturn(new NetworkResponse(new byte[8]));
+        InMemoryCache cache = new InMemoryCache();
+        final CountDownLatch finished = new CountDownLatch(3);
+        RequestQueue queue = new RequestQueue(cache, mMockNetwork, 1, mDelivery);
+        queue.addRequestFinishedListener(new RequestFinishedListener<Object>() {
+            @Override
+            public void onRequestFinished(Request<Object> request) {
+                finished.countDown();
+            }
+        });
+        queue.setPrefetchBudget(1, 12);
+        MockRequest real = new MockRequest("http://foo.com/real", null);
+        MockRequest[] prefetches = new MockRequest[3];
+        queue.add(real);
+        for (int i = 0; i < prefetches.length; i++) {
+            prefetches[i] = new MockRequest("http://foo.com/" + i, null);
+            assertTrue(queue.prefetch(prefetches[i]));
+        }
+        // The real request is waiting, so the prefetches are held back.
+        assertEquals(3, queue.getWaitingPrefetchCount());
+        assertEquals(1, queue.getCacheQueueDepth());
+
+        queue.start();
+        assertTrue(finished.await(5, TimeUnit.SECONDS));
+        queue.stop();
+
+        assertTrue(real.deliverResponse_called);
+        // Two prefetches spend the budget; the third is dropped.
+        assertEquals(16, queue.getPrefetchedBytes());
+        assertEquals(0, queue.getWaitingPrefetchCount());
+        for (int i = 0; i < 2; i++) {
+            assertTrue(cache.get(prefetches[i].getCacheKey()) != null);
+            assertFalse(prefetches[i].deliverResponse_called);
+        }
+        assertTrue(cache.get(prefetches[2].getCacheKey()) == null);
+        assertFalse(queue.prefetch(new MockRequest("http://foo.com/3", null)));
+    }
+
+    @Test
+    public void prefetch_supersededByRequestForSameKey() throws Exception {
+        when(mMockNetwork.performRequest(any(Request.class)))
+                .thenReturn(new NetworkResponse(new byte[8]));
+        RequestFinishedListener listener = mock(RequestFinishedListener.class);
+        RequestQueue queue = new RequestQueue(new InMemoryCache(), mMockNetwork, 1, mDelivery);
+        queue.addRequestFinishedListener(listener);
+        MockRequest prefetch = new MockRequest();
+        MockRequest real = new MockRequest();
+        real.setPriority(Priority.HIGH);
+
+        // Nothing else is waiting, so the prefetch is queued right away.
+        assertTrue(queue.prefetch(prefetch));
+        assertEquals(0, queue.getWaitingPrefetchCount());
+        assertEquals(1, queue.getCacheQueueDepth());
+
+        // The real request takes its place instead of waiting behind it.
+        queue.add(real);
+        verify(listener).onRequestFinished(prefetch);
+        assertEquals(1, queue.getCacheQueueDepth());
+
+        queue.start();
+        verify(listener, timeout(5000)).onRequestFinished(real);
+        queue.stop();
+        assertTrue(real.deliverResponse_called);
+        assertFalse(prefetch.deliverResponse_called);
+        verify(mMockNetwork, times(1)).performRequest(real);
+        verify(mMockNetwork, times(1)).performRequest(any(Request.class));
+    }
 }
@@ -16,6 +16,9 @@
 
 package com.android.volley;
 
+import com.android.volley.Request.Priority;
+import com.android.volley.RequestQueue.RejectionPolicy;
+import com.android.volley.mock.MockRequest;
 import com.android.volley.mock.ShadowSystemClock;
 import com.android.volley.toolbox.NoCache;
 import com.android.volley.utils.ImmediateResponseDelivery;
@@ -27,6 +30,11 @@ import org.mockito.Mock;
 import org.robolectric.RobolectricTestRunner;
 import org.robolectric.annotation.Config;
 
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
@@ -75,4 +83,134 @@ public class RequestQueueTest {
         verify(req2, never()).cancel(); // B not cancelled
         verify(req4, never()).cancel(); // A added after cancel not cancelled
     }
+
+    @Test
+    public void cancelAll_followsTagChangedAfterAdd() throws Exception {
+        RequestQueue queue = new RequestQueue(new NoCache(), mMockNetwork, 0, mDelivery);
+        Object tagA = new Object();
+        Object tagB = new Object();
+        MockRequest request = new MockRequest();
+        request.setTag(tagA);
+
+        queue.add(request);
+        request.setTag(tagB);
+        queue.cancelAll(tagA);
+        assertFalse(request.isCanceled());
+
+        queue.cancelAll(tagB);
+        assertTrue(request.isCanceled());
+    }
+
+    @Test
+    public void cancelAll_skipsFinishedRequests() throws Exception {
+        RequestQueue queue = new RequestQueue(new NoCache(), mMockNetwork, 0, mDelivery);
+        Object tag = new Object();
+        MockRequest finished = new MockRequest();
+        finished.setTag(tag);
+        MockRequest pending = new MockRequest();
+        pending.setTag(tag);
+
+        queue.add(finished);
+        queue.add(pending);
+        queue.finish(finished);
+        queue.cancelAll(tag);
+
+        assertFalse(finished.isCanceled());
+        assertTrue(pending.isCanceled());
+    }
+
+    @Test
+    public void add_rejectsNewestWhenFull() throws Exception {
+        RequestQueue queue = new RequestQueue(new NoCache(), mMockNetwork, 1, mDelivery);
+        queue.setQueueCapacity(2, RejectionPolicy.REJECT_NEWEST);
+        MockRequest first = new MockRequest("http://foo.com/1", null);
+        MockRequest second = new MockRequest("http://foo.com/2", null);
+        MockRequest third = new MockRequest("http://foo.com/3", null);
+        third.setPriority(Priority.HIGH);
+
+        queue.add(first);
+        queue.add(second);
+        queue.add(third);
+
+        assertFalse(first.deliverError_called);
+        assertFalse(second.deliverError_called);
+        assertTrue(third.deliverError_called);
+        assertEquals(2, queue.getCacheQueueDepth());
+        assertEquals(1, queue.getRejectedCount());
+    }
+
+    @Test
+    public void add_dropsLowestPriorityWhenFull() throws Exception {
+        RequestQueue queue = new RequestQueue(new NoCache(), mMockNetwork, 1, mDelivery);
+        queue.setQueueCapacity(2, RejectionPolicy.DROP_LOWEST_PRIORITY);
+        MockRequest low = new MockRequest("http://foo.com/low", null);
+        low.setPriority(Priority.LOW);
+        MockRequest normal = new MockRequest("http://foo.com/normal", null);
+        MockRequest high = new MockRequest("http://foo.com/high", null);
+        high.setPriority(Priority.HIGH);
+        MockRequest anotherLow = new MockRequest("http://foo.com/low2", null);
+        anotherLow.setPriority(Priority.LOW);
+
+        queue.add(low);
+        queue.add(normal);
+        queue.add(high);
+        assertTrue(low.deliverError_called);
+        assertFalse(high.deliverError_called);
+        assertEquals(1, queue.getDroppedCount());
+
+        // Nothing waiting has a lower priority, so the new request is turned away.
+        queue.add(anotherLow);
+        assertTrue(anotherLow.deliverError_called);
+        assertFalse(normal.deliverError_called);
+        assertEquals(1, queue.getRejectedCount());
+        assertEquals(2, queue.getCacheQueueDepth());
+    }
+
+    @Test
+    public void add_blocksUntilRequestsLeaveQueue() throws Exception {
+        final RequestQueue queue = new RequestQueue(new NoCache(), mMockNetwork, 1, mDelivery);
+        queue.setQueueCapacity(1, RejectionPolicy.BLOCK);
+        queue.add(new MockRequest("http://foo.com/1", null));
+        final MockRequest blocked = new MockRequest("http://foo.com/2", null);
+        Thread producer = new Thread() {
+            @Override
+            public void run() {
+                queue.add(blocked);
+            }
+        };
+        producer.start();
+        long deadline = System.currentTimeMillis() + 5000;
+        while (queue.getBlockedCount() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, queue.getBlockedCount());
+        assertTrue(producer.isAlive());
+
+        // Dispatching the waiting request makes room.
+        queue.start();
+        producer.join(5000);
+        queue.stop();
+        assertFalse(producer.isAlive());
+        assertEquals(0, queue.getRejectedCount());
+    }
+
+    @Test
+    public void addAll_stagesDuplicatesAndKeepsOrder() throws Exception {
+        RequestQueue queue = new RequestQueue(new NoCache(), mMockNetwork, 1, mDelivery);
+        MockRequest first = new MockRequest("http://foo.com/1", null);
+        MockRequest duplicate = new MockRequest("http://foo.com/1", null);
+        MockRequest second = new MockRequest("http://foo.com/2", null);
+        MockRequest uncacheable = new MockRequest("http://foo.com/3", null);
+        uncacheable.setShouldCache(false);
+
+        queue.addAll(Arrays.<Request<?>>asList(first, duplicate, second, uncacheable));
+
+        // The duplicate waits for the first request instead of being queued.
+        assertEquals(2, queue.getCacheQueueDepth());
+        assertEquals(1, queue.getNetworkQueueDepth());
+        assertEquals(first.getSequence() + 1, duplicate.getSequence());
+        assertEquals(first.getSequence() + 2, second.getSequence());
+        assertEquals(first.getSequence() + 3, uncacheable.getSequence());
+        assertTrue(queue.getSequenceNumber() > uncacheable.getSequence());
+    }
 }
@@ -22,12 +22,23 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.robolectric.RobolectricTestRunner;
 
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
 @RunWith(RobolectricTestRunner.class)
 public class RequestTest {
+    private static final long TIMEOUT_MILLIS = 5000;
 
     @Test
     public void compareTo() {
@@ -86,6 +97,74 @@ public class RequestTest {
         assertFalse(0 == goodProtocol.getTrafficStatsTag());
     }
 
+    @Test
+    public void lazyFields() {
+        UrlParseRequest first = new UrlParseRequest("http://foo/a");
+        UrlParseRequest second = new UrlParseRequest("http://foo/a");
+        UrlParseRequest noHost = new UrlParseRequest("");
+
+        assertEquals("foo", first.getHost());
+        assertNull(noHost.getHost());
+        assertNull(noHost.getHost());
+        assertSame(first.getCacheKey(), first.getCacheKey());
+        assertEquals(first.getCacheKey(), second.getCacheKey());
+        assertSame(first.getIdentifier(), first.getIdentifier());
+        assertFalse(first.getIdentifier().equals(second.getIdentifier()));
+        assertTrue(first.getRetryPolicy() instanceof DefaultRetryPolicy);
+        assertSame(first.getRetryPolicy(), first.getRetryPolicy());
+    }
+
+    @Test
+    public void cancel_abortsTransferInFlight() throws Exception {
+        UrlParseRequest request = new UrlParseRequest("http://foo/a");
+        CountingAbort finished = new CountingAbort();
+        request.setTransferAbort(finished);
+        request.setTransferAbort(null);
+        CountingAbort inFlight = new CountingAbort();
+        request.setTransferAbort(inFlight);
+
+        request.cancel();
+        request.cancel();
+        assertTrue(inFlight.mRan.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        assertEquals(0, finished.mRuns.get());
+        assertEquals(1, inFlight.mRuns.get());
+
+        // A transfer starting after the request was canceled is aborted right away.
+        CountingAbort late = new CountingAbort();
+        request.setTransferAbort(late);
+        assertEquals(1, late.mRuns.get());
+    }
+
+    @Test
+    public void cancel_abortsOffTheCallingThread() throws Exception {
+        UrlParseRequest request = new UrlParseRequest("http://foo/a");
+        final AtomicReference<Thread> abortThread = new AtomicReference<Thread>();
+        final CountDownLatch aborted = new CountDownLatch(1);
+        request.setTransferAbort(new Runnable() {
+            @Override
+            public void run() {
+                abortThread.set(Thread.currentThread());
+                aborted.countDown();
+            }
+        });
+
+        // Closing a connection can block, so cancel() leaves it to another thread.
+        request.cancel();
+        assertTrue(aborted.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        assertNotSame(Thread.currentThread(), abortThread.get());
+    }
+
+    private static class CountingAbort implements Runnable {
+        final AtomicInteger mRuns = new AtomicInteger();
+        final CountDownLatch mRan = new CountDownLatch(1);
+
+        @Override
+        public void run() {
+            mRuns.incrementAndGet();
+            mRan.countDown();
+        }
+    }
+
     private class UrlParseRequest extends Request<Object> {
         public UrlParseRequest(String url) {
             super(Request.Method.GET, url, null);
@@ -100,4 +179,47 @@ public class RequestTest {
             return null;
         }
     }
+
+    @Test
+    public void coalescingKey() throws Exception {
+        HeaderRequest plain = new HeaderRequest(Request.Method.GET, "http://foo/a", "x");
+        HeaderRequest same = new HeaderRequest(Request.Method.GET, "http://foo/a", "x");
+        HeaderRequest otherHeader = new HeaderRequest(Request.Method.GET, "http://foo/a", "y");
+        HeaderRequest otherMethod = new HeaderRequest(Request.Method.HEAD, "http://foo/a", "x");
+        HeaderRequest otherUrl = new HeaderRequest(Request.Method.GET, "http://foo/b", "x");
+
+        assertFalse(plain.shouldCoalesce());
+        assertEquals(plain.getCoalescingKey(), same.getCoalescingKey());
+        assertFalse(plain.getCoalescingKey().equals(otherMethod.getCoalescingKey()));
+        assertFalse(plain.getCoalescingKey().equals(otherUrl.getCoalescingKey()));
+
+        // The key is computed when the request is added, so it does not build the headers.
+        assertEquals(plain.getCoalescingKey(), otherHeader.getCoalescingKey());
+        assertEquals(0, plain.mHeaderBuilds + otherHeader.mHeaderBuilds);
+    }
+
+    private class HeaderRequest extends Request<Object> {
+        private final String mToken;
+        int mHeaderBuilds;
+
+        public HeaderRequest(int method, String url, String token) {
+            super(method, url, null);
+            mToken = token;
+        }
+
+        @Override
+        public Map<String, String> getHeaders() {
+            mHeaderBuilds++;
+            return Collections.singletonMap("Authorization", mToken);
+        }
+
+        @Override
+        protected void deliverResponse(Object response) {
+        }
+
+        @Override
+        protected Response<Object> parseNetworkResponse(NetworkResponse response) {
+            return null;
+        }
+    }
 }
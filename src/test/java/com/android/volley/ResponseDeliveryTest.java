@@ -25,6 +25,11 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.robolectric.RobolectricTestRunner;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
@@ -69,4 +74,88 @@ public class ResponseDeliveryTest {
         assertTrue(mRequest.deliverError_called);
         assertFalse(mRequest.deliverResponse_called);
     }
+
+    @Test
+    public void batchedDeliveryRunsBurstInOnePass() {
+        QueuedExecutor executor = new QueuedExecutor();
+        ExecutorDelivery delivery = new ExecutorDelivery(executor, 1000);
+        MockRequest[] requests = new MockRequest[3];
+        for (int i = 0; i < requests.length; i++) {
+            requests[i] = new MockRequest();
+            delivery.postResponse(requests[i], mSuccessResponse);
+        }
+        assertEquals(1, executor.tasks.size());
+
+        executor.runNext();
+        for (MockRequest request : requests) {
+            assertTrue(request.deliverResponse_called);
+        }
+        assertTrue(executor.tasks.isEmpty());
+    }
+
+    @Test
+    public void batchedDeliveryRollsOverPastFrameBudget() {
+        QueuedExecutor executor = new QueuedExecutor();
+        ExecutorDelivery delivery = new ExecutorDelivery(executor, 1);
+        MockRequest[] requests = new MockRequest[3];
+        for (int i = 0; i < requests.length; i++) {
+            requests[i] = new MockRequest() {
+                @Override
+                protected void deliverResponse(byte[] response) {
+                    super.deliverResponse(response);
+                    long busyUntilNs = System.nanoTime() + 2000000;
+                    while (System.nanoTime() < busyUntilNs) {
+                        // Spin past the budget.
+                    }
+                }
+            };
+            delivery.postResponse(requests[i], mSuccessResponse);
+        }
+
+        // Each pass spends the budget on one delivery and posts the next pass for the rest.
+        for (int i = 0; i < requests.length; i++) {
+            assertEquals(1, executor.tasks.size());
+            executor.runNext();
+            assertTrue(requests[i].deliverResponse_called);
+            if (i + 1 < requests.length) {
+                assertFalse(requests[i + 1].deliverResponse_called);
+            }
+        }
+        assertTrue(executor.tasks.isEmpty());
+    }
+
+    @Test
+    public void requestDeliveryExecutorBypassesDeliveryThread() {
+        QueuedExecutor mainThread = new QueuedExecutor();
+        QueuedExecutor background = new QueuedExecutor();
+        ExecutorDelivery delivery = new ExecutorDelivery(mainThread, 1000);
+        MockRequest direct = new MockRequest();
+        direct.setDeliveryExecutor(ExecutorDelivery.DIRECT_EXECUTOR);
+        MockRequest onBackground = new MockRequest();
+        onBackground.setDeliveryExecutor(background);
+
+        delivery.postResponse(direct, mSuccessResponse);
+        delivery.postError(onBackground, new ServerError());
+        assertTrue(direct.deliverResponse_called);
+        assertEquals(1, background.tasks.size());
+        background.runNext();
+        assertTrue(onBackground.deliverError_called);
+        assertTrue(mainThread.tasks.isEmpty());
+    }
+
+    /**
+     * Holds posted tasks until the test runs them, like a looper between frames.
+     */
+    private static class QueuedExecutor implements Executor {
+        final List<Runnable> tasks = new ArrayList<Runnable>();
+
+        @Override
+        public void execute(Runnable command) {
+            tasks.add(command);
+        }
+
+        void runNext() {
+            tasks.remove(0).run();
+        }
+    }
 }
@@ -31,6 +31,7 @@ public class MockResponseDelivery implements ResponseDelivery {
     }
 
     public Response<?> responsePosted = null;
+    public VolleyError errorPosted = null;
 
     @Override
     public void postResponse(Request<?> request, Response<?> response) {
@@ -48,5 +49,6 @@ public class MockResponseDelivery implements ResponseDelivery {
     @Override
     public void postError(Request<?> request, VolleyError error) {
         postError_called = true;
+        errorPosted = error;
     }
 }
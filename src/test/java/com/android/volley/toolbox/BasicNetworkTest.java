@@ -16,22 +16,40 @@
 
 package com.android.volley.toolbox;
 
+import com.android.volley.AuthFailureError;
+import com.android.volley.BackoffRetryPolicy;
+import com.android.volley.Cache;
+import com.android.volley.CanceledError;
+import com.android.volley.CircuitOpenError;
 import com.android.volley.NetworkResponse;
+import com.android.volley.NoConnectionError;
 import com.android.volley.Request;
 import com.android.volley.Response;
+import com.android.volley.RetryBudget;
+import com.android.volley.RetryLaterError;
+import com.android.volley.ServerError;
 import com.android.volley.mock.MockHttpStack;
 
+import org.apache.http.HttpResponse;
 import org.apache.http.ProtocolVersion;
+import org.apache.http.entity.BasicHttpEntity;
 import org.apache.http.entity.StringEntity;
 import org.apache.http.message.BasicHttpResponse;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.robolectric.RobolectricTestRunner;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.UnknownHostException;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 @RunWith(RobolectricTestRunner.class)
 public class BasicNetworkTest {
@@ -73,4 +91,287 @@ public class BasicNetworkTest {
         assertEquals("foo", mockHttpStack.getLastHeaders().get("requestheader"));
         assertEquals("requestpost=foo&", new String(mockHttpStack.getLastPostBody()));
     }
+
+    @Test
+    public void cancelDuringRead_stopsAndReturnsBuffers() throws Exception {
+        final TestRequest request = new TestRequest();
+        final int[] reads = new int[1];
+        InputStream body = new InputStream() {
+            @Override
+            public int read() {
+                return 'x';
+            }
+
+            @Override
+            public int read(byte[] buffer, int offset, int length) {
+                // The caller gives up after the first chunk.
+                if (++reads[0] == 1) {
+                    request.cancel();
+                }
+                Arrays.fill(buffer, offset, offset + length, (byte) 'x');
+                return length;
+            }
+        };
+        BasicHttpEntity entity = new BasicHttpEntity();
+        entity.setContent(body);
+        entity.setContentLength(1 << 20);
+        BasicHttpResponse fakeResponse = new BasicHttpResponse(new ProtocolVersion("HTTP", 1, 1),
+                200, "OK");
+        fakeResponse.setEntity(entity);
+        MockHttpStack mockHttpStack = new MockHttpStack();
+        mockHttpStack.setResponseToReturn(fakeResponse);
+        CountingPool pool = new CountingPool();
+        BasicNetwork httpNetwork = new BasicNetwork(mockHttpStack, pool);
+
+        try {
+            httpNetwork.performRequest(request);
+            fail("Expected CanceledError");
+        } catch (CanceledError expected) {
+        }
+        assertEquals(1, reads[0]);
+        assertTrue(pool.mTaken > 0);
+        assertEquals(pool.mTaken, pool.mReturned);
+    }
+
+    @Test
+    public void openCircuitFailsFastOrServesStaleCache() throws Exception {
+        final int[] calls = new int[1];
+        MockHttpStack mockHttpStack = new MockHttpStack() {
+            @Override
+            public HttpResponse performRequest(Request<?> request,
+                    Map<String, String> additionalHeaders) throws AuthFailureError {
+                calls[0]++;
+                return super.performRequest(request, additionalHeaders);
+            }
+        };
+        BasicHttpResponse fakeResponse = new BasicHttpResponse(new ProtocolVersion("HTTP", 1, 1),
+                503, "Service Unavailable");
+        fakeResponse.setEntity(new StringEntity("down"));
+        mockHttpStack.setResponseToReturn(fakeResponse);
+        CircuitBreaker breaker = new CircuitBreaker(1, 2, 60000);
+        BasicNetwork httpNetwork =
+                new BasicNetwork(mockHttpStack, new ByteArrayPool(4096), breaker);
+
+        for (int i = 0; i < 2; i++) {
+            try {
+                httpNetwork.performRequest(new TestRequest());
+                fail("Expected ServerError");
+            } catch (ServerError expected) {
+            }
+        }
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState("foo"));
+
+        try {
+            httpNetwork.performRequest(new TestRequest());
+            fail("Expected CircuitOpenError");
+        } catch (CircuitOpenError expected) {
+        }
+        TestRequest cached = new TestRequest();
+        Cache.Entry entry = new Cache.Entry();
+        entry.data = "stale".getBytes();
+        entry.responseHeaders = new HashMap<String, String>();
+        cached.setCacheEntry(entry);
+        NetworkResponse response = httpNetwork.performRequest(cached);
+
+        assertTrue(response.notModified);
+        assertEquals("stale", new String(response.data));
+        assertEquals(2, calls[0]);
+        assertEquals(2, breaker.getRejectedCount());
+    }
+
+    @Test
+    public void beingOfflineDoesNotOpenCircuit() throws Exception {
+        HttpStack offlineStack = new HttpStack() {
+            @Override
+            public HttpResponse performRequest(Request<?> request,
+                    Map<String, String> additionalHeaders) throws IOException {
+                throw new UnknownHostException("foo");
+            }
+        };
+        CircuitBreaker breaker = new CircuitBreaker(1, 2, 60000);
+        BasicNetwork httpNetwork =
+                new BasicNetwork(offlineStack, new ByteArrayPool(4096), breaker);
+
+        for (int i = 0; i < 4; i++) {
+            try {
+                httpNetwork.performRequest(new TestRequest());
+                fail("Expected NoConnectionError");
+            } catch (NoConnectionError expected) {
+            }
+        }
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState("foo"));
+    }
+
+    @Test
+    public void serviceUnavailableRetriedLaterWithBackoffPolicy() throws Exception {
+        BasicHttpResponse fakeResponse = new BasicHttpResponse(new ProtocolVersion("HTTP", 1, 1),
+                503, "Service Unavailable");
+        fakeResponse.setEntity(new StringEntity("busy"));
+        fakeResponse.addHeader("Retry-After", "3");
+        MockHttpStack mockHttpStack = new MockHttpStack();
+        mockHttpStack.setResponseToReturn(fakeResponse);
+        BasicNetwork httpNetwork = new BasicNetwork(mockHttpStack);
+        TestRequest request = new TestRequest();
+        request.setRetryPolicy(
+                new BackoffRetryPolicy(1000, 1, 100, 5000, new RetryBudget(1, 10)));
+
+        try {
+            httpNetwork.performRequest(request);
+            fail("Expected RetryLaterError");
+        } catch (RetryLaterError expected) {
+            assertEquals(3000, expected.getDelayMs());
+            assertTrue(expected.getCause() instanceof ServerError);
+        }
+        // Out of retries.
+        try {
+            httpNetwork.performRequest(request);
+            fail("Expected ServerError");
+        } catch (ServerError expected) {
+        }
+    }
+
+    @Test
+    public void streamingRequestParsesBodyWhileReading() throws Exception {
+        BasicNetwork httpNetwork = new BasicNetwork(streamingStack("first\nsecond\nthird"));
+        LineRequest request = new LineRequest();
+        NetworkResponse response = httpNetwork.performRequest(request);
+
+        // Parsed on this thread before performRequest returned; the body was not buffered.
+        assertEquals("first", request.mParsedLine);
+        assertEquals(0, response.data.length);
+        Response<String> parsed = request.parseNetworkResponse(response);
+        assertEquals("first", parsed.result);
+        assertNull(parsed.cacheEntry);
+    }
+
+    @Test
+    public void streamingRequestTeesWholeBodyToCache() throws Exception {
+        BasicNetwork httpNetwork = new BasicNetwork(streamingStack("first\nsecond\nthird"));
+        LineRequest request = new LineRequest();
+        request.setTeeToCache(true);
+        NetworkResponse response = httpNetwork.performRequest(request);
+
+        assertEquals("first", request.mParsedLine);
+        Response<String> parsed = request.parseNetworkResponse(response);
+        assertEquals("first", parsed.result);
+        // The cache gets all of the body although the parser stopped after the first line.
+        assertEquals("first\nsecond\nthird", new String(parsed.cacheEntry.data));
+        // A later cache hit goes through the same parser.
+        request.mParsedLine = null;
+        assertEquals("first", request.parseNetworkResponse(
+                new NetworkResponse(parsed.cacheEntry.data)).result);
+    }
+
+    @Test
+    public void streamingRequestDoesNotTeeUncacheableBody() throws Exception {
+        BasicNetwork httpNetwork =
+                new BasicNetwork(streamingStack("first\nsecond\nthird", "no-store"));
+        LineRequest request = new LineRequest();
+        request.setTeeToCache(true);
+        NetworkResponse response = httpNetwork.performRequest(request);
+
+        // The cache would not take the body, so it was not copied aside.
+        assertEquals("first", request.mParsedLine);
+        assertEquals(0, response.data.length);
+        assertNull(request.parseNetworkResponse(response).cacheEntry);
+    }
+
+    @Test
+    public void streamingRequestThroughHedgingNetworkIsStreamed() throws Exception {
+        HedgingNetwork hedgingNetwork = new HedgingNetwork(
+                new BasicNetwork(streamingStack("first\nsecond\nthird")), 50, 1);
+        for (int i = 0; i < HedgingNetwork.MIN_SAMPLES; i++) {
+            hedgingNetwork.performRequest(new TestRequest());
+        }
+        assertTrue(hedgingNetwork.getHedgeDelayMs("foo") >= 0);
+
+        LineRequest request = new LineRequest();
+        NetworkResponse response = hedgingNetwork.performRequest(request);
+
+        // The body went to the request's parser instead of being buffered for a hedge race.
+        assertEquals("first", request.mParsedLine);
+        assertEquals(0, response.data.length);
+        assertEquals("first", request.parseNetworkResponse(response).result);
+        assertEquals(0, hedgingNetwork.getHedgesIssued());
+    }
+
+    private static MockHttpStack streamingStack(String body) throws Exception {
+        return streamingStack(body, "max-age=60");
+    }
+
+    private static MockHttpStack streamingStack(String body, String cacheControl)
+            throws Exception {
+        BasicHttpResponse fakeResponse = new BasicHttpResponse(new ProtocolVersion("HTTP", 1, 1),
+                200, "OK");
+        fakeResponse.setEntity(new StringEntity(body));
+        fakeResponse.addHeader("Cache-Control", cacheControl);
+        MockHttpStack mockHttpStack = new MockHttpStack();
+        mockHttpStack.setResponseToReturn(fakeResponse);
+        return mockHttpStack;
+    }
+
+    /**
+     * Parses the first line of the body.
+     */
+    private static class LineRequest extends StreamingRequest<String> {
+        String mParsedLine;
+
+        LineRequest() {
+            super(Request.Method.GET, "http://foo", null);
+        }
+
+        @Override
+        protected Response<String> parseNetworkStream(InputStream in, NetworkResponse response)
+                throws IOException {
+            StringBuilder line = new StringBuilder();
+            int b;
+            while ((b = in.read()) != -1 && b != '\n') {
+                line.append((char) b);
+            }
+            mParsedLine = line.toString();
+            return Response.success(mParsedLine, HttpHeaderParser.parseCacheHeaders(response));
+        }
+
+        @Override
+        protected void deliverResponse(String response) {
+        }
+    }
+
+    private static class TestRequest extends Request<String> {
+        TestRequest() {
+            super(Request.Method.GET, "http://foo", null);
+        }
+
+        @Override
+        protected Response<String> parseNetworkResponse(NetworkResponse response) {
+            return null;
+        }
+
+        @Override
+        protected void deliverResponse(String response) {
+        }
+    }
+
+    private static class CountingPool extends ByteArrayPool {
+        int mTaken;
+        int mReturned;
+
+        CountingPool() {
+            super(4096);
+        }
+
+        @Override
+        public synchronized byte[] getBuf(int len) {
+            mTaken++;
+            return super.getBuf(len);
+        }
+
+        @Override
+        public synchronized void returnBuf(byte[] buf) {
+            if (buf != null) {
+                mReturned++;
+            }
+            super.returnBuf(buf);
+        }
+    }
 }
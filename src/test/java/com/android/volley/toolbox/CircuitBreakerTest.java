@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.volley.toolbox;
+
+import android.os.SystemClock;
+
+import com.android.volley.toolbox.CircuitBreaker.State;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+public class CircuitBreakerTest {
+
+    private static final Object ATTEMPT = new Object();
+
+    @Test
+    public void opensOnFailureRateAndProbesAfterOpenTime() {
+        CircuitBreaker breaker = new CircuitBreaker(0.5, 4, 1000);
+        breaker.record("foo", ATTEMPT, false);
+        assertEquals(State.CLOSED, breaker.getState("foo"));
+        // Outcomes are tracked from a host's first failure on.
+        breaker.record("foo", ATTEMPT, true);
+        breaker.record("foo", ATTEMPT, false);
+        breaker.record("foo", ATTEMPT, false);
+        assertEquals(State.CLOSED, breaker.getState("foo"));
+
+        // Two failures in a full window of four.
+        breaker.record("foo", ATTEMPT, true);
+        assertEquals(State.OPEN, breaker.getState("foo"));
+        assertEquals(State.CLOSED, breaker.getState("bar"));
+        assertFalse(breaker.allowRequest("foo", ATTEMPT));
+        assertTrue(breaker.allowRequest("bar", ATTEMPT));
+        assertEquals(1, breaker.getRejectedCount());
+
+        // A single probe goes through once the open time has passed; its failure reopens.
+        SystemClock.sleep(1000);
+        assertEquals(State.HALF_OPEN, breaker.getState("foo"));
+        assertTrue(breaker.allowRequest("foo", ATTEMPT));
+        assertFalse(breaker.allowRequest("foo", ATTEMPT));
+        breaker.record("foo", ATTEMPT, true);
+        assertEquals(State.OPEN, breaker.getState("foo"));
+        assertEquals(2, breaker.getOpenedCount());
+
+        // A successful probe closes the circuit with a fresh window.
+        SystemClock.sleep(1000);
+        assertTrue(breaker.allowRequest("foo", ATTEMPT));
+        breaker.record("foo", ATTEMPT, false);
+        assertEquals(State.CLOSED, breaker.getState("foo"));
+        breaker.record("foo", ATTEMPT, true);
+        assertEquals(State.CLOSED, breaker.getState("foo"));
+    }
+
+    @Test
+    public void successesSlideFailuresOutOfWindow() {
+        CircuitBreaker breaker = new CircuitBreaker(0.5, 2, 1000);
+        breaker.record(null, ATTEMPT, true);
+        breaker.record(null, ATTEMPT, false);
+        breaker.record(null, ATTEMPT, false);
+        // The window now holds two successes.
+        breaker.record(null, ATTEMPT, true);
+        assertEquals(State.OPEN, breaker.getState(null));
+        breaker.reset();
+        assertEquals(State.CLOSED, breaker.getState(null));
+    }
+
+    @Test
+    public void onlyTheProbeDecidesHalfOpenCircuit() {
+        CircuitBreaker breaker = new CircuitBreaker(1, 1, 1000);
+        Object earlier = new Object();
+        assertTrue(breaker.allowRequest("foo", earlier));
+        breaker.record("foo", ATTEMPT, true);
+        assertEquals(State.OPEN, breaker.getState("foo"));
+
+        SystemClock.sleep(1000);
+        Object probe = new Object();
+        assertTrue(breaker.allowRequest("foo", probe));
+        // A request admitted before the circuit opened succeeds; the probe is still out.
+        breaker.record("foo", earlier, false);
+        assertEquals(State.HALF_OPEN, breaker.getState("foo"));
+        breaker.record("foo", probe, false);
+        assertEquals(State.CLOSED, breaker.getState("foo"));
+    }
+
+    @Test
+    public void hostsWithoutFailuresAreForgotten() {
+        CircuitBreaker breaker = new CircuitBreaker(1, 2, 1000);
+        breaker.record("foo", ATTEMPT, true);
+        breaker.record("bar", ATTEMPT, true);
+        assertEquals(2, breaker.getTrackedHostCount());
+        // Two successes slide foo's only failure out of its window.
+        breaker.record("foo", ATTEMPT, false);
+        breaker.record("foo", ATTEMPT, false);
+        assertEquals(1, breaker.getTrackedHostCount());
+        assertEquals(State.CLOSED, breaker.getState("foo"));
+        // A successful probe forgets the host too.
+        breaker.record("bar", ATTEMPT, true);
+        assertEquals(State.OPEN, breaker.getState("bar"));
+        SystemClock.sleep(1000);
+        assertTrue(breaker.allowRequest("bar", ATTEMPT));
+        breaker.record("bar", ATTEMPT, false);
+        assertEquals(0, breaker.getTrackedHostCount());
+    }
+}
@@ -19,7 +19,9 @@ package com.android.volley.toolbox;
 import com.android.volley.Cache;
 import com.android.volley.toolbox.DiskBasedCache.CacheHeader;
 
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
@@ -27,11 +29,16 @@ import java.io.File;
 import java.util.HashMap;
 import java.util.Map;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 
 public class DiskBasedCacheTest {
 
+    @Rule
+    public TemporaryFolder mTemporaryFolder = new TemporaryFolder();
+
     // Simple end-to-end serialize/deserialize test.
     @Test
     public void cacheHeaderSerialization() throws Exception {
@@ -132,6 +139,36 @@ public class DiskBasedCacheTest {
         assertEquals(DiskBasedCache.readStringStringMap(bais), emptyValue);
     }
 
+    // Entries are replaced through a temporary file, which never outlives a write.
+    @Test
+    public void putReplacesEntryAtomically() throws Exception {
+        File root = mTemporaryFolder.newFolder("cache");
+        DiskBasedCache cache = new DiskBasedCache(root);
+        cache.initialize();
+
+        Cache.Entry first = new Cache.Entry();
+        first.data = new byte[]{1, 2, 3};
+        first.etag = "first";
+        cache.put("key", first);
+        Cache.Entry second = new Cache.Entry();
+        second.data = new byte[]{4, 5};
+        second.etag = "second";
+        cache.put("key", second);
+
+        Cache.Entry read = cache.get("key");
+        assertArrayEquals(second.data, read.data);
+        assertEquals("second", read.etag);
+        assertEquals(1, root.listFiles().length);
+
+        // A temporary file left behind by an interrupted write is discarded on startup.
+        File stray = new File(root, cache.getFileForKey("other").getName() + ".tmp");
+        assertEquals(true, stray.createNewFile());
+        DiskBasedCache reopened = new DiskBasedCache(root);
+        reopened.initialize();
+        assertFalse(stray.exists());
+        assertArrayEquals(second.data, reopened.get("key").data);
+    }
+
     @Test
     public void publicMethods() throws Exception {
         // Catch-all test to find API-breaking changes.
@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.volley.toolbox;
+
+import com.android.volley.CanceledError;
+import com.android.volley.Network;
+import com.android.volley.NetworkResponse;
+import com.android.volley.Request;
+import com.android.volley.VolleyError;
+import com.android.volley.mock.MockRequest;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+public class HedgingNetworkTest {
+
+    private static final NetworkResponse FAST_RESPONSE = new NetworkResponse(new byte[1]);
+    private static final NetworkResponse HEDGE_RESPONSE = new NetworkResponse(new byte[2]);
+
+    @Test
+    public void hedgeWinsAgainstStuckAttempt() throws Exception {
+        StuckFirstAttemptNetwork network = new StuckFirstAttemptNetwork();
+        HedgingNetwork hedgingNetwork = new HedgingNetwork(network, 50, 1);
+        assertEquals(-1, hedgingNetwork.getHedgeDelayMs("foo.com"));
+        warmUp(hedgingNetwork);
+        assertTrue(hedgingNetwork.getHedgeDelayMs("foo.com") >= 0);
+
+        network.mStuck.set(true);
+        NetworkResponse response =
+                hedgingNetwork.performRequest(new MockRequest("http://foo.com/stuck", null));
+
+        assertSame(HEDGE_RESPONSE, response);
+        assertTrue(network.mStuckAttemptCanceled.get());
+        assertEquals(1, hedgingNetwork.getHedgesIssued());
+        assertEquals(1, hedgingNetwork.getHedgesWon());
+    }
+
+    @Test
+    public void hedgesStayWithinBudget() throws Exception {
+        SlowNetwork network = new SlowNetwork();
+        HedgingNetwork hedgingNetwork = new HedgingNetwork(network, 50, 0);
+        warmUp(hedgingNetwork);
+
+        network.mDelayMs = 50;
+        NetworkResponse response =
+                hedgingNetwork.performRequest(new MockRequest("http://foo.com/slow", null));
+
+        assertSame(FAST_RESPONSE, response);
+        assertEquals(HedgingNetwork.MIN_SAMPLES + 1, network.mCalls.get());
+        assertEquals(0, hedgingNetwork.getHedgesIssued());
+    }
+
+    private static void warmUp(HedgingNetwork network) throws VolleyError {
+        for (int i = 0; i < HedgingNetwork.MIN_SAMPLES; i++) {
+            network.performRequest(new MockRequest("http://foo.com/" + i, null));
+        }
+    }
+
+    /**
+     * Answers right away, except for the first attempt once stuck, which hangs until canceled.
+     */
+    private static class StuckFirstAttemptNetwork implements Network {
+        final AtomicBoolean mStuck = new AtomicBoolean();
+        final AtomicBoolean mStuckAttemptCanceled = new AtomicBoolean();
+
+        @Override
+        public NetworkResponse performRequest(Request<?> request) throws VolleyError {
+            if (!mStuck.compareAndSet(true, false)) {
+                return request.getUrl().endsWith("stuck") ? HEDGE_RESPONSE : FAST_RESPONSE;
+            }
+            long deadline = System.currentTimeMillis() + 5000;
+            while (!request.isCanceled() && System.currentTimeMillis() < deadline) {
+                try {
+                    Thread.sleep(5);
+                } catch (InterruptedException e) {
+                    break;
+                }
+            }
+            mStuckAttemptCanceled.set(request.isCanceled());
+            throw new CanceledError();
+        }
+    }
+
+    private static class SlowNetwork implements Network {
+        final AtomicInteger mCalls = new AtomicInteger();
+        volatile long mDelayMs;
+
+        @Override
+        public NetworkResponse performRequest(Request<?> request) throws VolleyError {
+            mCalls.incrementAndGet();
+            try {
+                Thread.sleep(mDelayMs);
+            } catch (InterruptedException e) {
+                // Answer early.
+            }
+            return FAST_RESPONSE;
+        }
+    }
+}
@@ -34,6 +34,7 @@ import java.io.IOException;
 import java.io.InputStream;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 
@@ -155,6 +156,22 @@ public class ImageRequestTest {
         assertEquals(4, ImageUtils.findBestSampleSize(100, 200, 24, 50));
     }
 
+    @Test
+    public void canShareResponseOf_onlySameDecoding() {
+        ImageRequest request = new ImageRequest("http://foo/a.png", null, 100, 100,
+                ScaleType.CENTER_INSIDE, Config.RGB_565, null, null);
+        ImageRequest same = new ImageRequest("http://foo/a.png", null, 100, 100,
+                ScaleType.CENTER_INSIDE, Config.RGB_565, null, null);
+        ImageRequest smaller = new ImageRequest("http://foo/a.png", null, 50, 50,
+                ScaleType.CENTER_INSIDE, Config.RGB_565, null, null);
+        ImageRequest otherConfig = new ImageRequest("http://foo/a.png", null, 100, 100,
+                ScaleType.CENTER_INSIDE, Config.ARGB_8888, null, null);
+
+        assertTrue(request.canShareResponseOf(same));
+        assertFalse(request.canShareResponseOf(smaller));
+        assertFalse(request.canShareResponseOf(otherConfig));
+    }
+
     private static byte[] readInputStream(InputStream in) throws IOException {
         ByteArrayOutputStream bytes = new ByteArrayOutputStream();
         byte[] buffer = new byte[1024];
@@ -0,0 +1,228 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.toolbox;
+
+import com.android.volley.AuthFailureError;
+import com.android.volley.Network;
+import com.android.volley.NetworkResponse;
+import com.android.volley.NoConnectionError;
+import com.android.volley.Request;
+import com.android.volley.Request.Method;
+import com.android.volley.RequestQueue;
+import com.android.volley.ServerError;
+import com.android.volley.VolleyError;
+import com.android.volley.mock.ShadowSystemClock;
+import com.android.volley.utils.ImmediateResponseDelivery;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(shadows = {ShadowSystemClock.class})
+public class RequestOutboxTest {
+
+    @Rule
+    public TemporaryFolder mTemporaryFolder = new TemporaryFolder();
+
+    private RequestQueue mQueue;
+
+    @After
+    public void tearDown() {
+        if (mQueue != null) {
+            mQueue.stop();
+        }
+    }
+
+    @Test
+    public void add_survivesRestartAndDropsTornRecord() throws Exception {
+        File root = mTemporaryFolder.newFolder("outbox");
+        RequestOutbox outbox = new RequestOutbox(root);
+        outbox.add(post("http://foo.com/1", "one"));
+        outbox.add(post("http://foo.com/2", "two"));
+        outbox.close();
+
+        // Simulate a crash in the middle of appending a third record.
+        File log = new File(root, "outbox.log");
+        long intact = log.length();
+        RandomAccessFile file = new RandomAccessFile(log, "rw");
+        file.seek(intact);
+        file.write(new byte[] {100, 0, 0, 0, 1, 2, 3});
+        file.close();
+
+        outbox = new RequestOutbox(root);
+        assertEquals(2, outbox.getPendingCount());
+        assertEquals(intact, log.length());
+
+        RecordingNetwork network = new RecordingNetwork();
+        startQueue(network);
+        outbox.replay(mQueue);
+        waitForEmpty(outbox);
+        assertEquals(Arrays.asList("http://foo.com/1", "http://foo.com/2"), network.urls);
+        assertArrayEquals("one".getBytes(), network.bodies.get(0));
+        assertEquals(2, new HashSet<String>(network.keys).size());
+    }
+
+    @Test
+    public void replay_keepsEntriesWhileOfflineAndResumesInOrder() throws Exception {
+        RequestOutbox outbox = new RequestOutbox(mTemporaryFolder.newFolder("outbox"), 2);
+        final List<String> delivered = Collections.synchronizedList(new ArrayList<String>());
+        final List<String> failed = Collections.synchronizedList(new ArrayList<String>());
+        outbox.setListener(new RequestOutbox.Listener() {
+            @Override
+            public void onDelivered(String key, NetworkResponse response) {
+                delivered.add(key);
+            }
+
+            @Override
+            public void onFailed(String key, VolleyError error) {
+                failed.add(key);
+            }
+        });
+        String first = outbox.add(post("http://foo.com/1", "one"));
+        String rejected = outbox.add(post("http://foo.com/bad", "two"));
+        String third = outbox.add(post("http://foo.com/3", "three"));
+
+        RecordingNetwork network = new RecordingNetwork();
+        network.offline = true;
+        startQueue(network);
+        assertEquals(2, outbox.replay(mQueue));
+        waitForSent(network, 2);
+        Thread.sleep(100);
+        // Nothing went through, and replay stopped after the first batch.
+        assertEquals(2, network.urls.size());
+        assertEquals(3, outbox.getPendingCount());
+        assertTrue(delivered.isEmpty());
+
+        network.offline = false;
+        outbox.replay(mQueue);
+        waitForEmpty(outbox);
+        assertEquals(Arrays.asList(first, third), delivered);
+        assertEquals(Arrays.asList(rejected), failed);
+        assertEquals(Arrays.asList(first, rejected, first, rejected, third), network.keys);
+    }
+
+    @Test
+    public void acknowledgedEntriesAreCompacted() throws Exception {
+        File root = mTemporaryFolder.newFolder("outbox");
+        RequestOutbox outbox = new RequestOutbox(root);
+        RecordingNetwork network = new RecordingNetwork();
+        startQueue(network);
+        for (int i = 0; i < 40; i++) {
+            outbox.add(post("http://foo.com/" + i, "body"));
+        }
+        outbox.flush();
+        long full = new File(root, "outbox.log").length();
+        outbox.replay(mQueue);
+        waitForEmpty(outbox);
+        outbox.add(post("http://foo.com/last", "body"));
+        outbox.flush();
+
+        assertTrue(new File(root, "outbox.log").length() < full / 2);
+        outbox.close();
+        assertEquals(1, new RequestOutbox(root).getPendingCount());
+    }
+
+    @Test
+    public void shouldKeep_transientClientErrors() throws Exception {
+        RequestOutbox outbox = new RequestOutbox(mTemporaryFolder.newFolder("outbox"));
+        assertTrue(outbox.shouldKeep(serverError(408)));
+        assertTrue(outbox.shouldKeep(serverError(429)));
+        assertTrue(outbox.shouldKeep(serverError(503)));
+        assertFalse(outbox.shouldKeep(serverError(400)));
+        assertFalse(outbox.shouldKeep(serverError(404)));
+    }
+
+    private static ServerError serverError(int statusCode) {
+        return new ServerError(new NetworkResponse(statusCode, new byte[0],
+                Collections.<String, String>emptyMap(), false));
+    }
+
+    private void startQueue(Network network) {
+        mQueue = new RequestQueue(new NoCache(), network, 1, new ImmediateResponseDelivery());
+        mQueue.start();
+    }
+
+    private static void waitForEmpty(RequestOutbox outbox) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (outbox.getPendingCount() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, outbox.getPendingCount());
+    }
+
+    private static void waitForSent(RecordingNetwork network, int count)
+            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (network.urls.size() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertFalse(network.urls.size() < count);
+    }
+
+    private static Request<String> post(String url, final String body) {
+        return new StringRequest(Method.POST, url, null, null) {
+            @Override
+            public byte[] getBody() {
+                return body.getBytes();
+            }
+        };
+    }
+
+    private static class RecordingNetwork implements Network {
+        final List<String> urls = Collections.synchronizedList(new ArrayList<String>());
+        final List<String> keys = Collections.synchronizedList(new ArrayList<String>());
+        final List<byte[]> bodies = Collections.synchronizedList(new ArrayList<byte[]>());
+        volatile boolean offline = false;
+
+        @Override
+        public NetworkResponse performRequest(Request<?> request) throws VolleyError {
+            try {
+                keys.add(request.getHeaders().get(RequestOutbox.IDEMPOTENCY_KEY_HEADER));
+                bodies.add(request.getBody());
+            } catch (AuthFailureError e) {
+                throw new AssertionError(e);
+            }
+            urls.add(request.getUrl());
+            if (offline) {
+                throw new NoConnectionError();
+            }
+            if (request.getUrl().endsWith("bad")) {
+                throw new ServerError(new NetworkResponse(400, new byte[0],
+                        Collections.<String, String>emptyMap(), false));
+            }
+            return new NetworkResponse(new byte[0]);
+        }
+    }
+}
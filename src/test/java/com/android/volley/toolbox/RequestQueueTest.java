@@ -18,14 +18,20 @@ package com.android.volley.toolbox;
 
 import com.android.volley.Cache;
 import com.android.volley.Network;
+import com.android.volley.PriorityAging;
+import com.android.volley.NetworkDispatchStrategy;
 import com.android.volley.Request;
 import com.android.volley.RequestQueue;
 import com.android.volley.ResponseDelivery;
+import com.android.volley.ResponsePipeline;
 
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.robolectric.RobolectricTestRunner;
 
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+
 import static org.junit.Assert.assertNotNull;
 
 @RunWith(RobolectricTestRunner.class)
@@ -38,14 +44,46 @@ public class RequestQueueTest {
                 ResponseDelivery.class));
         assertNotNull(RequestQueue.class.getConstructor(Cache.class, Network.class, int.class));
         assertNotNull(RequestQueue.class.getConstructor(Cache.class, Network.class));
+        assertNotNull(RequestQueue.class.getConstructor(Cache.class, Network.class,
+                NetworkDispatchStrategy.class, ResponseDelivery.class));
+        assertNotNull(RequestQueue.class.getConstructor(Cache.class, Network.class,
+                NetworkDispatchStrategy.class));
 
         assertNotNull(RequestQueue.class.getMethod("start"));
         assertNotNull(RequestQueue.class.getMethod("stop"));
         assertNotNull(RequestQueue.class.getMethod("getSequenceNumber"));
         assertNotNull(RequestQueue.class.getMethod("getCache"));
+        assertNotNull(RequestQueue.class.getMethod("setCacheThreadPoolSize", int.class));
+        assertNotNull(RequestQueue.class.getMethod("getCacheThreadPoolSize"));
+        assertNotNull(RequestQueue.class.getMethod("setResponsePipeline",
+                ResponsePipeline.class));
+        assertNotNull(RequestQueue.class.getMethod("getCacheQueueDepth"));
+        assertNotNull(RequestQueue.class.getMethod("getNetworkQueueDepth"));
+        assertNotNull(RequestQueue.class.getMethod("getDelayedRetryCount"));
+        assertNotNull(RequestQueue.class.getMethod("setReissueDuplicatesOnError",
+                boolean.class));
+        assertNotNull(RequestQueue.class.getMethod("setPriorityAging", PriorityAging.class));
+        assertNotNull(RequestQueue.class.getMethod("getCacheQueueWaitStats"));
+        assertNotNull(RequestQueue.class.getMethod("getNetworkQueueWaitStats"));
+        assertNotNull(RequestQueue.class.getMethod("setQueueCapacity", int.class,
+                RequestQueue.RejectionPolicy.class));
+        assertNotNull(RequestQueue.class.getMethod("getRejectedCount"));
+        assertNotNull(RequestQueue.class.getMethod("getDroppedCount"));
+        assertNotNull(RequestQueue.class.getMethod("getBlockedCount"));
+        assertNotNull(RequestQueue.class.getMethod("shutdown", long.class, TimeUnit.class));
+        assertNotNull(RequestQueue.class.getMethod("awaitTermination", long.class,
+                TimeUnit.class));
+        assertNotNull(RequestQueue.class.getMethod("isShutdown"));
         assertNotNull(RequestQueue.class.getMethod("cancelAll", RequestQueue.RequestFilter.class));
         assertNotNull(RequestQueue.class.getMethod("cancelAll", Object.class));
         assertNotNull(RequestQueue.class.getMethod("add", Request.class));
+        assertNotNull(RequestQueue.class.getMethod("addAsync", Request.class));
+        assertNotNull(RequestQueue.class.getMethod("addAll", Collection.class));
+        assertNotNull(RequestQueue.class.getMethod("prefetch", Request.class));
+        assertNotNull(RequestQueue.class.getMethod("setPrefetchBudget", int.class, long.class));
+        assertNotNull(RequestQueue.class.getMethod("getPrefetchedBytes"));
+        assertNotNull(RequestQueue.class.getMethod("getWaitingPrefetchCount"));
+        assertNotNull(RequestQueue.class.getMethod("cancelPrefetches"));
         assertNotNull(RequestQueue.class.getDeclaredMethod("finish", Request.class));
     }
 }
@@ -28,6 +28,8 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.robolectric.RobolectricTestRunner;
 
+import java.util.concurrent.Executor;
+
 import static org.junit.Assert.assertNotNull;
 
 @RunWith(RobolectricTestRunner.class)
@@ -56,6 +58,7 @@ public class RequestTest {
         assertNotNull(Request.class.getMethod("getCacheEntry"));
         assertNotNull(Request.class.getMethod("cancel"));
         assertNotNull(Request.class.getMethod("isCanceled"));
+        assertNotNull(Request.class.getMethod("setTransferAbort", Runnable.class));
         assertNotNull(Request.class.getMethod("getHeaders"));
         assertNotNull(Request.class.getDeclaredMethod("getParams"));
         assertNotNull(Request.class.getDeclaredMethod("getParamsEncoding"));
@@ -63,7 +66,17 @@ public class RequestTest {
         assertNotNull(Request.class.getMethod("getBody"));
         assertNotNull(Request.class.getMethod("setShouldCache", boolean.class));
         assertNotNull(Request.class.getMethod("shouldCache"));
+        assertNotNull(Request.class.getMethod("setShouldCoalesce", boolean.class));
+        assertNotNull(Request.class.getMethod("shouldCoalesce"));
+        assertNotNull(Request.class.getMethod("setDeliveryExecutor", Executor.class));
+        assertNotNull(Request.class.getMethod("getDeliveryExecutor"));
+        assertNotNull(Request.class.getMethod("getCoalescingKey"));
+        assertNotNull(Request.class.getMethod("canShareResponseOf", Request.class));
+        assertNotNull(Request.class.getMethod("setDeadline", long.class));
+        assertNotNull(Request.class.getMethod("getDeadline"));
+        assertNotNull(Request.class.getMethod("isPastDeadline", long.class));
         assertNotNull(Request.class.getMethod("getPriority"));
+        assertNotNull(Request.class.getMethod("isPrefetch"));
         assertNotNull(Request.class.getMethod("getTimeoutMs"));
         assertNotNull(Request.class.getMethod("getRetryPolicy"));
         assertNotNull(Request.class.getMethod("markDelivered"));
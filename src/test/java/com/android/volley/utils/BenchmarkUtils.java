@@ -0,0 +1,67 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.volley.utils;
+
+/**
+ * Runs the benchmarks, the test classes named <code>*Benchmark</code>. They only print timings,
+ * so they are left out of the regular test run; run them with
+ * <code>./gradlew test -Pbenchmarks</code> or <code>mvn test -Dtest=*Benchmark</code>.
+ */
+public class BenchmarkUtils {
+
+    public static final int DEFAULT_WARMUP_ROUNDS = 50;
+    public static final int DEFAULT_MEASURED_ROUNDS = 200;
+
+    /**
+     * One round of a benchmark, which usually runs each of the variants compared once.
+     */
+    public interface Round {
+        /**
+         * @param measured false while warming up, when the results are to be discarded
+         */
+        void run(boolean measured) throws Exception;
+    }
+
+    /**
+     * Runs {@link #DEFAULT_WARMUP_ROUNDS} rounds to warm up, then
+     * {@link #DEFAULT_MEASURED_ROUNDS} measured ones.
+     */
+    public static void run(Round round) throws Exception {
+        run(DEFAULT_WARMUP_ROUNDS, DEFAULT_MEASURED_ROUNDS, round);
+    }
+
+    /**
+     * Runs the given number of rounds to warm up the JIT, then the measured ones.
+     */
+    public static void run(int warmupRounds, int measuredRounds, Round round) throws Exception {
+        for (int i = 0; i < warmupRounds; i++) {
+            round.run(false);
+        }
+        for (int i = 0; i < measuredRounds; i++) {
+            round.run(true);
+        }
+    }
+
+    /**
+     * Prints one result line, with the labels of a benchmark lined up.
+     *
+     * @param format Format of the result, as for {@link String#format(String, Object...)}
+     */
+    public static void report(String label, String format, Object... args) {
+        System.out.printf("%-18s: %s%n", label, String.format(format, args));
+    }
+}